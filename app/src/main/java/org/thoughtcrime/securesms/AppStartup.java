@@ -0,0 +1,240 @@
+package org.thoughtcrime.securesms;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import org.session.libsession.utilities.concurrent.SignalExecutors;
+import org.session.libsignal.utilities.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the initialization of the app in three stages:
+ *
+ * - Blocking tasks run in order on the main thread in {@link #execute()}. Only what has to be in
+ *   place before an activity can be shown belongs here.
+ * - Non-blocking tasks run in parallel in the background as soon as the blocking ones are done.
+ *   A task can name other non-blocking tasks it depends on, and only starts once they've finished.
+ * - Post-render tasks run one after the other in the background once the first activity has been
+ *   drawn, see {@link #onCriticalRenderEventEnd()}.
+ *
+ * Every task is timed, and the timings are logged and kept so that cold start can be measured.
+ */
+public final class AppStartup {
+
+  private static final String TAG = AppStartup.class.getSimpleName();
+
+  private static final AppStartup INSTANCE = new AppStartup(SignalExecutors.BOUNDED);
+
+  private final Executor          executor;
+  private final List<Task>        blocking;
+  private final List<Task>        nonBlocking;
+  private final List<Task>        postRender;
+  private final Map<String, Long> timings;
+
+  private final Map<String, List<Task>> dependents;
+  private final Map<Task, Integer>      remainingDependencies;
+
+  private boolean executed;
+  private boolean renderComplete;
+  private long    startTime;
+
+  public static @NonNull AppStartup getInstance() {
+    return INSTANCE;
+  }
+
+  @VisibleForTesting
+  AppStartup(@NonNull Executor executor) {
+    this.executor              = executor;
+    this.blocking              = new ArrayList<>();
+    this.nonBlocking           = new ArrayList<>();
+    this.postRender            = new ArrayList<>();
+    this.timings               = new LinkedHashMap<>();
+    this.dependents            = new HashMap<>();
+    this.remainingDependencies = new HashMap<>();
+  }
+
+  public synchronized @NonNull AppStartup addBlocking(@NonNull String name, @NonNull Runnable task) {
+    blocking.add(new Task(name, task, Collections.emptyList()));
+    return this;
+  }
+
+  /**
+   * @param dependencies The names of other non-blocking tasks that have to finish first. Blocking
+   *                     tasks have always finished by the time a non-blocking one starts.
+   */
+  public synchronized @NonNull AppStartup addNonBlocking(@NonNull String name, @NonNull Runnable task, @NonNull String... dependencies) {
+    nonBlocking.add(new Task(name, task, Arrays.asList(dependencies)));
+    return this;
+  }
+
+  public synchronized @NonNull AppStartup addPostRender(@NonNull String name, @NonNull Runnable task) {
+    postRender.add(new Task(name, task, Collections.emptyList()));
+    return this;
+  }
+
+  @MainThread
+  public void execute() {
+    List<Task> blockingTasks;
+
+    synchronized (this) {
+      if (executed) throw new IllegalStateException("Startup has already been executed.");
+      executed      = true;
+      startTime     = System.currentTimeMillis();
+      blockingTasks = new ArrayList<>(blocking);
+    }
+
+    for (Task task : blockingTasks) {
+      run(task);
+    }
+
+    Log.i(TAG, "Blocking tasks took " + (System.currentTimeMillis() - startTime) + " ms.");
+
+    startNonBlocking();
+
+    synchronized (this) {
+      if (renderComplete) startPostRender();
+    }
+  }
+
+  /**
+   * Called once the first activity has been drawn, or when it's clear that none is going to be. Only
+   * the first call has any effect.
+   */
+  @MainThread
+  public synchronized void onCriticalRenderEventEnd() {
+    if (renderComplete) return;
+
+    renderComplete = true;
+
+    if (executed) {
+      Log.i(TAG, "First render after " + (System.currentTimeMillis() - startTime) + " ms.");
+      startPostRender();
+    }
+  }
+
+  /**
+   * @return The duration of each task that has finished so far in milliseconds, by task name.
+   */
+  public synchronized @NonNull Map<String, Long> getTimings() {
+    return new LinkedHashMap<>(timings);
+  }
+
+  private synchronized void startNonBlocking() {
+    Map<String, Task> tasksByName = new HashMap<>();
+
+    for (Task task : nonBlocking) {
+      tasksByName.put(task.name, task);
+    }
+
+    List<Task> ready = new ArrayList<>();
+
+    for (Task task : nonBlocking) {
+      int count = 0;
+
+      for (String dependency : task.dependencies) {
+        if (!tasksByName.containsKey(dependency)) {
+          throw new IllegalStateException(task.name + " depends on unknown task " + dependency + ".");
+        }
+
+        List<Task> tasks = dependents.get(dependency);
+
+        if (tasks == null) {
+          tasks = new ArrayList<>();
+          dependents.put(dependency, tasks);
+        }
+
+        tasks.add(task);
+        count++;
+      }
+
+      if (count == 0) {
+        ready.add(task);
+      } else {
+        remainingDependencies.put(task, count);
+      }
+    }
+
+    for (Task task : ready) {
+      submit(task);
+    }
+  }
+
+  private void submit(@NonNull Task task) {
+    executor.execute(() -> {
+      try {
+        run(task);
+      } finally {
+        onNonBlockingTaskFinished(task);
+      }
+    });
+  }
+
+  private void onNonBlockingTaskFinished(@NonNull Task task) {
+    List<Task> ready = new ArrayList<>();
+
+    synchronized (this) {
+      List<Task> tasks = dependents.remove(task.name);
+      if (tasks == null) return;
+
+      for (Task dependent : tasks) {
+        int count = remainingDependencies.get(dependent) - 1;
+
+        if (count == 0) {
+          remainingDependencies.remove(dependent);
+          ready.add(dependent);
+        } else {
+          remainingDependencies.put(dependent, count);
+        }
+      }
+    }
+
+    for (Task dependent : ready) {
+      submit(dependent);
+    }
+  }
+
+  private void startPostRender() {
+    List<Task> tasks = new ArrayList<>(postRender);
+
+    executor.execute(() -> {
+      for (Task task : tasks) {
+        run(task);
+      }
+    });
+  }
+
+  private void run(@NonNull Task task) {
+    long start = System.currentTimeMillis();
+
+    task.runnable.run();
+
+    long duration = System.currentTimeMillis() - start;
+
+    synchronized (this) {
+      timings.put(task.name, duration);
+    }
+
+    Log.i(TAG, task.name + " took " + duration + " ms.");
+  }
+
+  private static final class Task {
+    private final String       name;
+    private final Runnable     runnable;
+    private final List<String> dependencies;
+
+    private Task(@NonNull String name, @NonNull Runnable runnable, @NonNull List<String> dependencies) {
+      this.name         = name;
+      this.runnable     = runnable;
+      this.dependencies = dependencies;
+    }
+  }
+}
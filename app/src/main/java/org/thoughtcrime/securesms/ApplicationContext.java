@@ -18,7 +18,6 @@ package org.thoughtcrime.securesms;
 import android.app.Application;
 import android.content.Context;
 import android.content.Intent;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
@@ -40,6 +39,7 @@ import org.session.libsession.utilities.ProfilePictureUtilities;
 import org.session.libsession.utilities.SSKEnvironment;
 import org.session.libsession.utilities.TextSecurePreferences;
 import org.session.libsession.utilities.Util;
+import org.session.libsession.utilities.concurrent.SignalExecutors;
 import org.session.libsession.utilities.dynamiclanguage.DynamicLanguageContextWrapper;
 import org.session.libsession.utilities.dynamiclanguage.LocaleParser;
 import org.session.libsignal.utilities.Log;
@@ -110,6 +110,8 @@ public class ApplicationContext extends Application implements DependencyInjecto
 
     private static final String TAG = ApplicationContext.class.getSimpleName();
 
+    private static final long FAILSAFE_RENDER_TIME_MS = 2000;
+
     private ExpiringMessageManager expiringMessageManager;
     private TypingStatusRepository typingStatusRepository;
     private TypingStatusSender typingStatusSender;
@@ -138,40 +140,27 @@ public class ApplicationContext extends Application implements DependencyInjecto
     public void onCreate() {
         super.onCreate();
         Log.i(TAG, "onCreate()");
-        startKovenant();
-        initializeSecurityProvider();
-        initializeLogging();
-        initializeCrashHandling();
-        initializeDependencyInjection();
-        NotificationChannels.create(this);
-        ProcessLifecycleOwner.get().getLifecycle().addObserver(this);
-        AppContext.INSTANCE.configureKovenant();
-        messageNotifier = new OptimizedMessageNotifier(new DefaultMessageNotifier());
-        broadcaster = new Broadcaster(this);
-        conversationListNotificationHandler = new Handler(Looper.getMainLooper());
-        LokiAPIDatabase apiDB = DatabaseFactory.getLokiAPIDatabase(this);
-        MessagingModuleConfiguration.Companion.configure(this,
-                DatabaseFactory.getStorage(this),
-                DatabaseFactory.getAttachmentProvider(this),
-                ()-> KeyPairUtilities.INSTANCE.getUserED25519KeyPair(this)
-        );
-        SnodeModule.Companion.configure(apiDB, broadcaster);
-        String userPublicKey = TextSecurePreferences.getLocalNumber(this);
-        if (userPublicKey != null) {
-            registerForFCMIfNeeded(false);
-        }
-        UiModeUtilities.setupUiModeToUserSelected(this);
-        initializeExpiringMessageManager();
-        initializeTypingStatusRepository();
-        initializeTypingStatusSender();
-        initializeReadReceiptManager();
-        initializeProfileManager();
-        initializePeriodicTasks();
-        SSKEnvironment.Companion.configure(getTypingStatusRepository(), getReadReceiptManager(), getProfileManager(), messageNotifier, getExpiringMessageManager());
-        initializeJobManager();
-        initializeWebRtc();
-        initializeBlobProvider();
-        resubmitProfilePictureIfNeeded();
+        AppStartup.getInstance()
+                .addBlocking("kovenant", () -> startKovenant())
+                .addBlocking("security-provider", this::initializeSecurityProvider)
+                .addBlocking("logging", this::initializeLogging)
+                .addBlocking("crash-handling", this::initializeCrashHandling)
+                .addBlocking("dependency-injection", this::initializeDependencyInjection)
+                .addBlocking("notification-channels", () -> NotificationChannels.create(this))
+                .addBlocking("lifecycle-observer", () -> ProcessLifecycleOwner.get().getLifecycle().addObserver(this))
+                .addBlocking("app-context", this::initializeAppContext)
+                .addBlocking("messaging-module", this::initializeMessagingModule)
+                .addBlocking("ui-mode", () -> UiModeUtilities.setupUiModeToUserSelected(this))
+                .addBlocking("ssk-environment", this::initializeSSKEnvironment)
+                .addBlocking("job-manager", this::initializeJobManager)
+                .addNonBlocking("fcm", this::initializeFCMIfNeeded)
+                .addNonBlocking("periodic-tasks", this::initializePeriodicTasks)
+                .addNonBlocking("blob-provider", this::initializeBlobProvider)
+                .addNonBlocking("profile-picture", this::resubmitProfilePictureIfNeeded)
+                .addPostRender("webrtc", this::initializeWebRtc)
+                .execute();
+        // In case no activity gets drawn, e.g. when the process was started for a push notification
+        Util.runOnMainDelayed(() -> AppStartup.getInstance().onCriticalRenderEventEnd(), FAILSAFE_RENDER_TIME_MS);
     }
 
     @Override
@@ -275,6 +264,39 @@ public class ApplicationContext extends Application implements DependencyInjecto
         }
     }
 
+    private void initializeAppContext() {
+        AppContext.INSTANCE.configureKovenant();
+        messageNotifier = new OptimizedMessageNotifier(new DefaultMessageNotifier());
+        broadcaster = new Broadcaster(this);
+        conversationListNotificationHandler = new Handler(Looper.getMainLooper());
+    }
+
+    private void initializeMessagingModule() {
+        LokiAPIDatabase apiDB = DatabaseFactory.getLokiAPIDatabase(this);
+        MessagingModuleConfiguration.Companion.configure(this,
+                DatabaseFactory.getStorage(this),
+                DatabaseFactory.getAttachmentProvider(this),
+                ()-> KeyPairUtilities.INSTANCE.getUserED25519KeyPair(this)
+        );
+        SnodeModule.Companion.configure(apiDB, broadcaster);
+    }
+
+    private void initializeSSKEnvironment() {
+        initializeExpiringMessageManager();
+        initializeTypingStatusRepository();
+        initializeTypingStatusSender();
+        initializeReadReceiptManager();
+        initializeProfileManager();
+        SSKEnvironment.Companion.configure(getTypingStatusRepository(), getReadReceiptManager(), getProfileManager(), messageNotifier, getExpiringMessageManager());
+    }
+
+    private void initializeFCMIfNeeded() {
+        String userPublicKey = TextSecurePreferences.getLocalNumber(this);
+        if (userPublicKey != null) {
+            registerForFCMIfNeeded(false);
+        }
+    }
+
     private void initializeLogging() {
         Log.initialize(new AndroidLogger());
     }
@@ -290,7 +312,7 @@ public class ApplicationContext extends Application implements DependencyInjecto
             .setJobFactories(JobManagerFactories.getJobFactories(this))
             .setConstraintFactories(JobManagerFactories.getConstraintFactories(this))
             .setConstraintObservers(JobManagerFactories.getConstraintObservers(this))
-            .setJobStorage(new FastJobStorage(DatabaseFactory.getJobDatabase(this)))
+            .setJobStorage(new FastJobStorage(DatabaseFactory.getJobDatabase(this), SignalExecutors.newCachedSingleThreadExecutor("signal-JobStorage")))
             .setDependencyInjector(this)
             .build());
     }
@@ -364,9 +386,7 @@ public class ApplicationContext extends Application implements DependencyInjecto
     }
 
     private void initializeBlobProvider() {
-        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
-            BlobProvider.getInstance().onSessionStart(this);
-        });
+        BlobProvider.getInstance().onSessionStart(this);
     }
 
     @Override
@@ -377,7 +397,7 @@ public class ApplicationContext extends Application implements DependencyInjecto
 
     private static class ProviderInitializationException extends RuntimeException { }
 
-    public void registerForFCMIfNeeded(final Boolean force) {
+    public synchronized void registerForFCMIfNeeded(final Boolean force) {
         if (firebaseInstanceIdJob != null && firebaseInstanceIdJob.isActive() && !force) return;
         if (force && firebaseInstanceIdJob != null) {
             firebaseInstanceIdJob.cancel(null);
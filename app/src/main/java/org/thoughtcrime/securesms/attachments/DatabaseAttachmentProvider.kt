@@ -175,6 +175,23 @@ class DatabaseAttachmentProvider(context: Context, helper: SQLCipherOpenHelper)
         DatabaseFactory.getLokiMessageDatabase(context).deleteMessageServerHash(messageID)
     }
 
+    override fun deleteMessagesForServerIDs(serverIDs: Collection<Long>, threadID: Long) {
+        val lokiMessageDatabase = DatabaseFactory.getLokiMessageDatabase(context)
+        val messageIDs = lokiMessageDatabase.getMessageIDs(serverIDs, threadID)
+        if (messageIDs.isEmpty()) { return }
+        val smsMessageIDs = messageIDs.filter { it.second }.map { it.first }
+        val mmsMessageIDs = messageIDs.filter { !it.second }.map { it.first }
+        val database = databaseHelper.writableDatabase
+        database.beginTransaction()
+        try {
+            lokiMessageDatabase.deleteMessages(smsMessageIDs, mmsMessageIDs, serverIDs, threadID)
+            DatabaseFactory.getMmsSmsDatabase(context).deleteMessages(threadID, smsMessageIDs, mmsMessageIDs)
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
+        }
+    }
+
     override fun updateMessageAsDeleted(timestamp: Long, author: String) {
         val database = DatabaseFactory.getMmsSmsDatabase(context)
         val address = Address.fromSerialized(author)
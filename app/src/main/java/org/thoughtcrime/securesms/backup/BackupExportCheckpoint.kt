@@ -0,0 +1,169 @@
+package org.thoughtcrime.securesms.backup
+
+import android.content.Context
+import android.net.Uri
+import androidx.documentfile.provider.DocumentFile
+import org.json.JSONArray
+import org.json.JSONException
+import org.json.JSONObject
+import org.session.libsignal.utilities.Base64
+import org.session.libsignal.utilities.Log
+import org.thoughtcrime.securesms.util.BackupUtil
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Progress of an interrupted [FullBackupExporter] run, recorded at table boundaries so that
+ * the next export can continue writing into the same file instead of starting over.
+ *
+ * Some tables are filtered against others, attachments against the messages for example, so
+ * an export is only resumed while every table is in the state recorded in [tableStates].
+ */
+data class BackupExportCheckpoint(
+        val fileUri: Uri,
+        val startedAt: Long,
+        val databaseVersion: Int,
+        val salt: ByteArray,
+        val iv: ByteArray,
+        val keyCheck: String,
+        val counter: Int,
+        val byteOffset: Long,
+        val count: Int,
+        val completedTables: Set<String>,
+        val tableStates: Map<String, String>) {
+
+    fun withCompletedTable(table: String, counter: Int, byteOffset: Long, count: Int): BackupExportCheckpoint {
+        return copy(counter = counter, byteOffset = byteOffset, count = count, completedTables = completedTables + table)
+    }
+
+    @Throws(JSONException::class)
+    private fun toJson(): String {
+        return JSONObject()
+                .put(KEY_FILE_URI, fileUri.toString())
+                .put(KEY_STARTED_AT, startedAt)
+                .put(KEY_DATABASE_VERSION, databaseVersion)
+                .put(KEY_SALT, Base64.encodeBytes(salt))
+                .put(KEY_IV, Base64.encodeBytes(iv))
+                .put(KEY_KEY_CHECK, keyCheck)
+                .put(KEY_COUNTER, counter)
+                .put(KEY_BYTE_OFFSET, byteOffset)
+                .put(KEY_COUNT, count)
+                .put(KEY_COMPLETED_TABLES, JSONArray(completedTables))
+                .put(KEY_TABLE_STATES, JSONObject(tableStates))
+                .toString()
+    }
+
+    companion object {
+        private val TAG = BackupExportCheckpoint::class.java.simpleName
+
+        private const val FILE_NAME = "backup_export_checkpoint"
+
+        /** Checkpoints older than this are discarded, the backup would be out of date by then anyway. */
+        private val MAX_AGE_MS = TimeUnit.DAYS.toMillis(1)
+
+        private const val KEY_FILE_URI = "file_uri"
+        private const val KEY_STARTED_AT = "started_at"
+        private const val KEY_DATABASE_VERSION = "database_version"
+        private const val KEY_SALT = "salt"
+        private const val KEY_IV = "iv"
+        private const val KEY_KEY_CHECK = "key_check"
+        private const val KEY_COUNTER = "counter"
+        private const val KEY_BYTE_OFFSET = "byte_offset"
+        private const val KEY_COUNT = "count"
+        private const val KEY_COMPLETED_TABLES = "completed_tables"
+        private const val KEY_TABLE_STATES = "table_states"
+
+        /**
+         * @return The checkpoint of the last interrupted export, if it is recent and its file still exists.
+         * An expired checkpoint is discarded along with its file.
+         */
+        @JvmStatic
+        fun load(context: Context): BackupExportCheckpoint? {
+            val file = getFile(context)
+            if (!file.exists()) return null
+            try {
+                val json = JSONObject(file.readText())
+                val tables = json.getJSONArray(KEY_COMPLETED_TABLES)
+                val completedTables = HashSet<String>()
+                for (i in 0 until tables.length()) {
+                    completedTables.add(tables.getString(i))
+                }
+                val states = json.getJSONObject(KEY_TABLE_STATES)
+                val tableStates = HashMap<String, String>()
+                for (table in states.keys()) {
+                    tableStates[table] = states.getString(table)
+                }
+                val checkpoint = BackupExportCheckpoint(
+                        Uri.parse(json.getString(KEY_FILE_URI)),
+                        json.getLong(KEY_STARTED_AT),
+                        json.getInt(KEY_DATABASE_VERSION),
+                        Base64.decode(json.getString(KEY_SALT)),
+                        Base64.decode(json.getString(KEY_IV)),
+                        json.getString(KEY_KEY_CHECK),
+                        json.getInt(KEY_COUNTER),
+                        json.getLong(KEY_BYTE_OFFSET),
+                        json.getInt(KEY_COUNT),
+                        completedTables,
+                        tableStates)
+                if (DocumentFile.fromSingleUri(context, checkpoint.fileUri)?.exists() != true) {
+                    clear(context)
+                    return null
+                }
+                if (System.currentTimeMillis() - checkpoint.startedAt > MAX_AGE_MS) {
+                    discard(context, checkpoint)
+                    return null
+                }
+                return checkpoint
+            } catch (e: Exception) {
+                when (e) {
+                    is IOException, is JSONException -> {
+                        Log.w(TAG, "Discarding unreadable backup export checkpoint.", e)
+                        clear(context)
+                        return null
+                    }
+                    else -> throw e
+                }
+            }
+        }
+
+        @JvmStatic
+        fun save(context: Context, checkpoint: BackupExportCheckpoint) {
+            try {
+                val file = getFile(context)
+                val tempFile = File(file.parentFile, "$FILE_NAME.tmp")
+                tempFile.writeText(checkpoint.toJson())
+                if (!tempFile.renameTo(file)) {
+                    Log.w(TAG, "Failed to persist backup export checkpoint.")
+                }
+            } catch (e: Exception) {
+                when (e) {
+                    is IOException, is JSONException -> Log.w(TAG, "Failed to persist backup export checkpoint.", e)
+                    else -> throw e
+                }
+            }
+        }
+
+        /**
+         * Clears the checkpoint and deletes the partial backup file it was made for, which can't be
+         * resumed anymore.
+         */
+        @JvmStatic
+        fun discard(context: Context, checkpoint: BackupExportCheckpoint) {
+            clear(context)
+            BackupUtil.deleteBackupDocument(context, checkpoint.fileUri)
+        }
+
+        @JvmStatic
+        fun clear(context: Context) {
+            val file = getFile(context)
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Failed to delete backup export checkpoint.")
+            }
+        }
+
+        private fun getFile(context: Context): File {
+            return File(context.filesDir, FILE_NAME)
+        }
+    }
+}
@@ -3,10 +3,9 @@ package org.thoughtcrime.securesms.backup
 import android.content.Context
 import android.database.Cursor
 import android.net.Uri
+import android.os.ParcelFileDescriptor
 import android.text.TextUtils
 import androidx.annotation.WorkerThread
-import com.annimon.stream.function.Consumer
-import com.annimon.stream.function.Predicate
 import com.google.protobuf.ByteString
 import net.sqlcipher.database.SQLiteDatabase
 import org.greenrobot.eventbus.EventBus
@@ -26,12 +25,19 @@ import org.thoughtcrime.securesms.util.BackupUtil
 import org.session.libsession.utilities.Util
 import org.session.libsignal.crypto.kdf.HKDFv3
 import org.session.libsignal.utilities.ByteUtil
+import org.session.libsignal.utilities.Hex
 import java.io.*
 import java.lang.Exception
-import java.security.InvalidAlgorithmParameterException
-import java.security.InvalidKeyException
+import java.security.GeneralSecurityException
+import java.security.MessageDigest
 import java.security.NoSuchAlgorithmException
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
 import javax.crypto.*
 import javax.crypto.spec.IvParameterSpec
 import javax.crypto.spec.SecretKeySpec
@@ -39,78 +45,148 @@ import javax.crypto.spec.SecretKeySpec
 object FullBackupExporter {
     private val TAG = FullBackupExporter::class.java.simpleName
 
+    /** Attachments up to this size are decrypted and re-encrypted on the worker pool, ahead of the writer. */
+    private const val MAX_PIPELINED_ATTACHMENT_SIZE = 4L * 1024 * 1024
+
+    /** Upper bound for the encoded frames held in memory while waiting for the sequential writer. */
+    private const val MAX_PENDING_BYTES = 32L * 1024 * 1024
+    private const val MAX_PENDING_FRAMES = 256
+
+    /**
+     * The document a backup was written into, and when its export started.
+     */
+    data class ExportedFile(val fileUri: Uri, val startedAt: Long)
+
+    /**
+     * Continues an interrupted export into its document if it can be resumed, and writes a new
+     * backup otherwise. A checkpoint that can't be resumed is discarded along with its document.
+     *
+     * @param createFile Creates the document for a new export, given the time the export started.
+     */
     @JvmStatic
     @WorkerThread
     @Throws(IOException::class)
     fun export(context: Context,
                attachmentSecret: AttachmentSecret,
                input: SQLiteDatabase,
-               fileUri: Uri,
-               passphrase: String) {
+               passphrase: String,
+               createFile: (startedAt: Long) -> Uri): ExportedFile {
+
+        val tableStates = getTableStates(input)
+        val storedCheckpoint = BackupExportCheckpoint.load(context)
+        var baseOutputStream: ParcelFileDescriptor.AutoCloseOutputStream? = null
+        var resumedOutputStream: BackupFrameOutputStream? = null
+
+        if (storedCheckpoint != null) {
+            if (storedCheckpoint.databaseVersion == input.version && storedCheckpoint.tableStates == tableStates) {
+                try {
+                    val fileOutputStream = openFile(context, storedCheckpoint.fileUri)
+                    baseOutputStream = fileOutputStream
+                    resumedOutputStream = BackupFrameOutputStream.resume(fileOutputStream, passphrase, storedCheckpoint)
+                } catch (e: IOException) {
+                    Log.w(TAG, "Failed to reopen the file of the backup export checkpoint.", e)
+                }
+            }
+            if (resumedOutputStream == null) {
+                Log.i(TAG, "Discarding a backup export checkpoint that can't be resumed.")
+                baseOutputStream?.close()
+                baseOutputStream = null
+                BackupExportCheckpoint.discard(context, storedCheckpoint)
+            }
+        }
 
-        val baseOutputStream = context.contentResolver.openOutputStream(fileUri)
-                ?: throw IOException("Cannot open an output stream for the file URI: $fileUri")
+        // The file is only chosen once it's known whether the export is resumed, so that a new
+        // backup gets a file named after its own start time.
+        var checkpoint = if (resumedOutputStream != null) storedCheckpoint else null
+        val startedAt = checkpoint?.startedAt ?: System.currentTimeMillis()
+        val fileUri = checkpoint?.fileUri ?: createFile(startedAt)
+        var isResumable = checkpoint != null
 
-        var count = 0
+        val executor = Executors.newFixedThreadPool(Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4)))
         try {
-            BackupFrameOutputStream(baseOutputStream, passphrase).use { outputStream ->
-                outputStream.writeDatabaseVersion(input.version)
-                val tables = exportSchema(input, outputStream)
-                for (table in tables) if (shouldExportTable(table)) {
-                    count = when (table) {
+            if (baseOutputStream == null) baseOutputStream = openFile(context, fileUri)
+            val outputStream = resumedOutputStream ?: BackupFrameOutputStream.create(baseOutputStream!!, passphrase)
+
+            outputStream.use {
+                val progress = ProgressReporter(checkpoint?.count ?: 0)
+                val tables: List<String>
+                if (checkpoint == null) {
+                    outputStream.writeDatabaseVersion(input.version)
+                    tables = exportSchema(input, outputStream)
+                    checkpoint = outputStream.createCheckpoint(fileUri, startedAt, input.version, tableStates)
+                    outputStream.sync()
+                    BackupExportCheckpoint.save(context, checkpoint!!)
+                    isResumable = true
+                } else {
+                    Log.i(TAG, "Resuming backup export at offset ${checkpoint!!.byteOffset}.")
+                    tables = getTables(input)
+                }
+
+                for (table in tables) {
+                    if (!shouldExportTable(table) || checkpoint!!.completedTables.contains(table)) continue
+                    val query = when (table) {
                         SmsDatabase.TABLE_NAME, MmsDatabase.TABLE_NAME -> {
-                            exportTable(table, input, outputStream,
-                                    { cursor: Cursor ->
-                                        cursor.getInt(cursor.getColumnIndexOrThrow(MmsSmsColumns.EXPIRES_IN)) <= 0
-                                    },
-                                    null,
-                                    count)
+                            "SELECT * FROM $table WHERE IFNULL(${MmsSmsColumns.EXPIRES_IN}, 0) <= 0"
                         }
                         GroupReceiptDatabase.TABLE_NAME -> {
-                            exportTable(table, input, outputStream,
-                                    { cursor: Cursor ->
-                                        isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID)))
-                                    },
-                                    null,
-                                    count)
+                            nonExpiringMessageQuery(table, GroupReceiptDatabase.MMS_ID)
                         }
                         AttachmentDatabase.TABLE_NAME -> {
-                            exportTable(table, input, outputStream,
-                                    { cursor: Cursor ->
-                                        isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID)))
-                                    },
-                                    { cursor: Cursor ->
-                                        exportAttachment(attachmentSecret, cursor, outputStream)
-                                    },
-                                    count)
+                            nonExpiringMessageQuery(table, AttachmentDatabase.MMS_ID)
                         }
-                        else -> {
-                            exportTable(table, input, outputStream, null, null, count)
+                        else -> "SELECT * FROM $table"
+                    }
+                    if (table == AttachmentDatabase.TABLE_NAME) {
+                        exportTable(table, query, input, outputStream, progress) { cursor ->
+                            exportAttachment(attachmentSecret, cursor, outputStream, executor)
                         }
+                    } else {
+                        exportTable(table, query, input, outputStream, progress, null)
                     }
+                    outputStream.drain()
+                    outputStream.sync()
+                    checkpoint = checkpoint!!.withCompletedTable(table, outputStream.counter, outputStream.bytesWritten, progress.count)
+                    BackupExportCheckpoint.save(context, checkpoint!!)
                 }
                 for (preference in BackupUtil.getBackupRecords(context)) {
-                    EventBus.getDefault().post(BackupEvent.createProgress(++count))
+                    progress.increment()
                     outputStream.writePreferenceEntry(preference)
                 }
                 for (preference in BackupPreferences.getBackupRecords(context)) {
-                    EventBus.getDefault().post(BackupEvent.createProgress(++count))
+                    progress.increment()
                     outputStream.writePreferenceEntry(preference)
                 }
                 for (avatar in AvatarHelper.getAvatarFiles(context)) {
-                    EventBus.getDefault().post(BackupEvent.createProgress(++count))
+                    progress.increment()
                     outputStream.writeAvatar(avatar.name, FileInputStream(avatar), avatar.length())
                 }
                 outputStream.writeEnd()
             }
+            BackupExportCheckpoint.clear(context)
             EventBus.getDefault().post(BackupEvent.createFinished())
+            return ExportedFile(fileUri, startedAt)
         } catch (e: Exception) {
             Log.e(TAG, "Failed to make full backup.", e)
             EventBus.getDefault().post(BackupEvent.createFinished(e))
+            // Keep the partial file only if the export can be resumed from it
+            if (!isResumable) {
+                baseOutputStream?.close()
+                BackupUtil.deleteBackupDocument(context, fileUri)
+            }
             throw e
+        } finally {
+            executor.shutdownNow()
+            baseOutputStream?.close()
         }
     }
 
+    @Throws(IOException::class)
+    private fun openFile(context: Context, fileUri: Uri): ParcelFileDescriptor.AutoCloseOutputStream {
+        val fileDescriptor = context.contentResolver.openFileDescriptor(fileUri, "rw")
+                ?: throw IOException("Cannot open a file descriptor for the file URI: $fileUri")
+        return ParcelFileDescriptor.AutoCloseOutputStream(fileDescriptor)
+    }
+
     private inline fun shouldExportTable(table: String): Boolean {
         return  table != PushDatabase.TABLE_NAME &&
 
@@ -126,6 +202,16 @@ object FullBackupExporter {
                 !table.startsWith("sqlite_")
     }
 
+    /**
+     * Selects the rows of the given table that belong to non-expiring MMS messages, in a single join
+     * rather than a lookup per row.
+     */
+    private fun nonExpiringMessageQuery(table: String, mmsIdColumn: String): String {
+        return "SELECT $table.* FROM $table INNER JOIN ${MmsDatabase.TABLE_NAME} " +
+                "ON $table.$mmsIdColumn = ${MmsDatabase.TABLE_NAME}.${MmsDatabase.ID} " +
+                "WHERE IFNULL(${MmsDatabase.TABLE_NAME}.${MmsDatabase.EXPIRES_IN}, 0) = 0"
+    }
+
     @Throws(IOException::class)
     private fun exportSchema(input: SQLiteDatabase, outputStream: BackupFrameOutputStream): List<String> {
         val tables: MutableList<String> = LinkedList()
@@ -149,25 +235,60 @@ object FullBackupExporter {
         return tables
     }
 
+    /**
+     * Describes each table by its row count and highest rowid, which changes when rows are added or
+     * removed. Rowids can be reused after the newest row has been deleted though, so the message
+     * tables, which the attachment and receipt rows are filtered against, add their newest date.
+     */
+    private fun getTableStates(input: SQLiteDatabase): Map<String, String> {
+        val states = HashMap<String, String>()
+        for (table in getTables(input)) {
+            if (!shouldExportTable(table)) continue
+            val newestDate = when (table) {
+                SmsDatabase.TABLE_NAME, MmsDatabase.TABLE_NAME -> "IFNULL(MAX(date), 0)"
+                else -> "0"
+            }
+            input.rawQuery("SELECT COUNT(*), IFNULL(MAX(rowid), 0), $newestDate FROM $table", null).use { cursor ->
+                if (cursor != null && cursor.moveToFirst()) {
+                    states[table] = "${cursor.getLong(0)}:${cursor.getLong(1)}:${cursor.getLong(2)}"
+                }
+            }
+        }
+        return states
+    }
+
+    private fun getTables(input: SQLiteDatabase): List<String> {
+        val tables: MutableList<String> = LinkedList()
+        input.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND sql IS NOT NULL", null).use { cursor ->
+            while (cursor != null && cursor.moveToNext()) {
+                tables.add(cursor.getString(0))
+            }
+        }
+        return tables
+    }
+
     @Throws(IOException::class)
     private fun exportTable(table: String,
+                            query: String,
                             input: SQLiteDatabase,
                             outputStream: BackupFrameOutputStream,
-                            predicate: Predicate<Cursor>?,
-                            postProcess: Consumer<Cursor>?,
-                            count: Int): Int {
-        var count = count
-        val template = "INSERT INTO $table VALUES "
-        input.rawQuery("SELECT * FROM $table", null).use { cursor ->
-            while (cursor != null && cursor.moveToNext()) {
-                EventBus.getDefault().post(BackupEvent.createProgress(++count))
-                if (predicate != null && !predicate.test(cursor)) continue
+                            progress: ProgressReporter,
+                            postProcess: ((Cursor) -> Unit)?) {
+        input.rawQuery(query, null).use { cursor ->
+            if (cursor == null) return
+            val columnCount = cursor.columnCount
+            val statement = StringBuilder("INSERT INTO $table VALUES (")
+            for (i in 0 until columnCount) {
+                statement.append(if (i < columnCount - 1) "?," else "?")
+            }
+            statement.append(')')
+            val template = statement.toString()
+
+            while (cursor.moveToNext()) {
+                progress.increment()
 
-                val statement = StringBuilder(template)
                 val statementBuilder = SqlStatement.newBuilder()
-                statement.append('(')
-                for (i in 0 until cursor.columnCount) {
-                    statement.append('?')
+                for (i in 0 until columnCount) {
                     when (cursor.getType(i)) {
                         Cursor.FIELD_TYPE_STRING -> {
                             statementBuilder.addParameters(SqlStatement.SqlParameter.newBuilder()
@@ -193,125 +314,229 @@ object FullBackupExporter {
                             throw AssertionError("unknown type?" + cursor.getType(i))
                         }
                     }
-                    if (i < cursor.columnCount - 1) {
-                        statement.append(',')
-                    }
                 }
-                statement.append(')')
-                outputStream.writeSql(statementBuilder.setStatement(statement.toString()).build())
-                postProcess?.accept(cursor)
+                outputStream.writeSql(statementBuilder.setStatement(template).build())
+                postProcess?.invoke(cursor)
             }
         }
-        return count
     }
 
-    private fun exportAttachment(attachmentSecret: AttachmentSecret, cursor: Cursor, outputStream: BackupFrameOutputStream) {
+    @Throws(IOException::class)
+    private fun exportAttachment(attachmentSecret: AttachmentSecret, cursor: Cursor, outputStream: BackupFrameOutputStream, executor: ExecutorService) {
+        val rowId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.ROW_ID))
+        val uniqueId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.UNIQUE_ID))
+        var size = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.SIZE))
+        val data = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA))
+        val random = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_RANDOM))
+        val inputStream: InputStream
         try {
-            val rowId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.ROW_ID))
-            val uniqueId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.UNIQUE_ID))
-            var size = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.SIZE))
-            val data = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA))
-            val random = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_RANDOM))
             if (!TextUtils.isEmpty(data) && size <= 0) {
                 size = calculateVeryOldStreamLength(attachmentSecret, random, data)
             }
-            if (!TextUtils.isEmpty(data) && size > 0) {
-                val inputStream: InputStream = if (random != null && random.size == 32) {
-                    ModernDecryptingPartInputStream.createFor(attachmentSecret, random, File(data), 0)
-                } else {
-                    ClassicDecryptingPartInputStream.createFor(attachmentSecret, File(data))
-                }
-                outputStream.writeAttachment(AttachmentId(rowId, uniqueId), inputStream, size)
-            }
+            if (TextUtils.isEmpty(data) || size <= 0) return
+            // Opening the stream up front means a missing or unreadable file is skipped before any frame is reserved.
+            inputStream = openAttachmentStream(attachmentSecret, random, data)
         } catch (e: IOException) {
             Log.w(TAG, e)
+            return
         }
+        outputStream.writeAttachment(AttachmentId(rowId, uniqueId), inputStream, size, executor)
     }
 
     @Throws(IOException::class)
-    private fun calculateVeryOldStreamLength(attachmentSecret: AttachmentSecret, random: ByteArray?, data: String): Long {
-        var result: Long = 0
-        val inputStream: InputStream = if (random != null && random.size == 32) {
+    private fun openAttachmentStream(attachmentSecret: AttachmentSecret, random: ByteArray?, data: String): InputStream {
+        return if (random != null && random.size == 32) {
             ModernDecryptingPartInputStream.createFor(attachmentSecret, random, File(data), 0)
         } else {
             ClassicDecryptingPartInputStream.createFor(attachmentSecret, File(data))
         }
-        var read: Int
-        val buffer = ByteArray(8192)
-        while (inputStream.read(buffer, 0, buffer.size).also { read = it } != -1) {
-            result += read.toLong()
-        }
-        return result
     }
 
-    private fun isForNonExpiringMessage(db: SQLiteDatabase, mmsId: Long): Boolean {
-        val columns = arrayOf(MmsDatabase.EXPIRES_IN)
-        val where = MmsDatabase.ID + " = ?"
-        val args = arrayOf(mmsId.toString())
-        db.query(MmsDatabase.TABLE_NAME, columns, where, args, null, null, null).use { mmsCursor ->
-            if (mmsCursor != null && mmsCursor.moveToFirst()) {
-                return mmsCursor.getLong(0) == 0L
+    @Throws(IOException::class)
+    private fun calculateVeryOldStreamLength(attachmentSecret: AttachmentSecret, random: ByteArray?, data: String): Long {
+        var result: Long = 0
+        openAttachmentStream(attachmentSecret, random, data).use { inputStream ->
+            var read: Int
+            val buffer = ByteArray(8192)
+            while (inputStream.read(buffer, 0, buffer.size).also { read = it } != -1) {
+                result += read.toLong()
             }
         }
-        return false
+        return result
     }
 
-    private class BackupFrameOutputStream : Closeable, Flushable {
+    /**
+     * Counts exported entries, posting a progress event only every 100 entries.
+     */
+    private class ProgressReporter(var count: Int) {
 
-        private val outputStream: OutputStream
-        private var cipher: Cipher
-        private var mac: Mac
-        private val cipherKey: ByteArray
-        private val macKey: ByteArray
-        private val iv: ByteArray
+        fun increment() {
+            if (count++ % 100 == 0) EventBus.getDefault().post(BackupEvent.createProgress(count))
+        }
+    }
+
+    /**
+     * Encrypts frames with a cipher and MAC owned by a single thread, so that frames can be encoded
+     * on worker threads without re-creating either for every frame.
+     */
+    private class FrameEncoder(private val cipherKey: SecretKeySpec, macKey: SecretKeySpec, private val baseIv: ByteArray) {
+        private val cipher: Cipher = Cipher.getInstance("AES/CTR/NoPadding")
+        private val mac: Mac = Mac.getInstance("HmacSHA256")
+        private val iv = ByteArray(16)
+        private val buffer = ByteArray(8192)
+        private var frameBuffer = ByteArray(8192)
+
+        init {
+            mac.init(macKey)
+        }
 
-        private var counter: Int = 0
+        @Throws(IOException::class)
+        fun encodeFrame(counter: Int, frame: BackupFrame, out: OutputStream) {
+            try {
+                initCipher(counter)
+                val plaintext = frame.toByteArray()
+                if (frameBuffer.size < plaintext.size) {
+                    frameBuffer = ByteArray(Math.max(plaintext.size, frameBuffer.size * 2))
+                }
+                val length = cipher.doFinal(plaintext, 0, plaintext.size, frameBuffer, 0)
+                mac.update(frameBuffer, 0, length)
+                val frameMac = mac.doFinal()
+                out.write(Conversions.intToByteArray(length + 10))
+                out.write(frameBuffer, 0, length)
+                out.write(frameMac, 0, 10)
+            } catch (e: GeneralSecurityException) {
+                throw AssertionError(e)
+            }
+        }
 
-        constructor(outputStream: OutputStream, passphrase: String) : super() {
+        @Throws(IOException::class)
+        fun encodeStream(counter: Int, inputStream: InputStream, out: OutputStream) {
             try {
+                initCipher(counter)
+                mac.update(iv)
+                var read: Int
+                while (inputStream.read(buffer).also { read = it } != -1) {
+                    val ciphertext = cipher.update(buffer, 0, read)
+                    if (ciphertext != null) {
+                        out.write(ciphertext)
+                        mac.update(ciphertext)
+                    }
+                }
+                val remainder = cipher.doFinal()
+                out.write(remainder)
+                mac.update(remainder)
+                val attachmentDigest = mac.doFinal()
+                out.write(attachmentDigest, 0, 10)
+            } catch (e: GeneralSecurityException) {
+                throw AssertionError(e)
+            }
+        }
+
+        private fun initCipher(counter: Int) {
+            System.arraycopy(baseIv, 0, iv, 0, iv.size)
+            Conversions.intToByteArray(iv, 0, counter)
+            cipher.init(Cipher.ENCRYPT_MODE, cipherKey, IvParameterSpec(iv))
+        }
+    }
+
+    /**
+     * Writes encrypted backup frames in order. Frame counters are handed out sequentially when a frame is
+     * queued, which lets attachment frames be encoded on worker threads while earlier frames are still pending.
+     */
+    private class BackupFrameOutputStream private constructor(
+            private val baseOutputStream: ParcelFileDescriptor.AutoCloseOutputStream,
+            private val salt: ByteArray,
+            private val iv: ByteArray,
+            cipherKey: ByteArray,
+            macKey: ByteArray,
+            var counter: Int,
+            var bytesWritten: Long) : Closeable, Flushable {
+
+        private val cipherKeySpec = SecretKeySpec(cipherKey, "AES")
+        private val macKeySpec = SecretKeySpec(macKey, "HmacSHA256")
+        private val keyCheck = computeKeyCheck(cipherKey, macKey)
+        private val outputStream = CountingOutputStream(BufferedOutputStream(baseOutputStream, 64 * 1024))
+        private val pending: Deque<PendingFrames> = ArrayDeque()
+        private var pendingBytes: Long = 0
+
+        private val encoder = object : ThreadLocal<FrameEncoder>() {
+            override fun initialValue(): FrameEncoder = FrameEncoder(cipherKeySpec, macKeySpec, iv)
+        }
+
+        companion object {
+
+            @Throws(IOException::class)
+            fun create(baseOutputStream: ParcelFileDescriptor.AutoCloseOutputStream, passphrase: String): BackupFrameOutputStream {
+                baseOutputStream.channel.truncate(0)
+                baseOutputStream.channel.position(0)
                 val salt = Util.getSecretBytes(32)
-                val key = BackupUtil.computeBackupKey(passphrase, salt)
-                val derived = HKDFv3().deriveSecrets(key, "Backup Export".toByteArray(), 64)
-                val split = ByteUtil.split(derived, 32, 32)
-                cipherKey = split[0]
-                macKey = split[1]
-                cipher = Cipher.getInstance("AES/CTR/NoPadding")
-                mac = Mac.getInstance("HmacSHA256")
-                this.outputStream = outputStream
-                iv = Util.getSecretBytes(16)
-                counter = Conversions.byteArrayToInt(iv)
-                mac.init(SecretKeySpec(macKey, "HmacSHA256"))
+                val keys = deriveKeys(passphrase, salt)
+                val iv = Util.getSecretBytes(16)
+                val result = BackupFrameOutputStream(baseOutputStream, salt, iv, keys[0], keys[1], Conversions.byteArrayToInt(iv), 0)
                 val header = BackupFrame.newBuilder().setHeader(Header.newBuilder()
                         .setIv(ByteString.copyFrom(iv))
                         .setSalt(ByteString.copyFrom(salt)))
                         .build().toByteArray()
-                outputStream.write(Conversions.intToByteArray(header.size))
-                outputStream.write(header)
-            } catch (e: Exception) {
-                when (e) {
-                    is NoSuchAlgorithmException,
-                    is NoSuchPaddingException,
-                    is InvalidKeyException -> {
-                        throw AssertionError(e)
-                    }
-                    else -> throw e
+                result.outputStream.write(Conversions.intToByteArray(header.size))
+                result.outputStream.write(header)
+                return result
+            }
+
+            /**
+             * @return A stream positioned at the end of the checkpoint's last complete table,
+             * or null if the checkpoint was made with a different passphrase.
+             */
+            @Throws(IOException::class)
+            fun resume(baseOutputStream: ParcelFileDescriptor.AutoCloseOutputStream, passphrase: String, checkpoint: BackupExportCheckpoint): BackupFrameOutputStream? {
+                val keys = deriveKeys(passphrase, checkpoint.salt)
+                if (computeKeyCheck(keys[0], keys[1]) != checkpoint.keyCheck) {
+                    Log.w(TAG, "Backup export checkpoint does not match the passphrase.")
+                    return null
+                }
+                if (baseOutputStream.channel.size() < checkpoint.byteOffset) {
+                    Log.w(TAG, "Backup file is shorter than the export checkpoint.")
+                    return null
+                }
+                baseOutputStream.channel.truncate(checkpoint.byteOffset)
+                baseOutputStream.channel.position(checkpoint.byteOffset)
+                return BackupFrameOutputStream(baseOutputStream, checkpoint.salt, checkpoint.iv, keys[0], keys[1], checkpoint.counter, checkpoint.byteOffset)
+            }
+
+            private fun deriveKeys(passphrase: String, salt: ByteArray): Array<ByteArray> {
+                val key = BackupUtil.computeBackupKey(passphrase, salt)
+                val derived = HKDFv3().deriveSecrets(key, "Backup Export".toByteArray(), 64)
+                return ByteUtil.split(derived, 32, 32)
+            }
+
+            private fun computeKeyCheck(cipherKey: ByteArray, macKey: ByteArray): String {
+                try {
+                    val digest = MessageDigest.getInstance("SHA-256")
+                    digest.update(cipherKey)
+                    return Hex.toStringCondensed(digest.digest(macKey))
+                } catch (e: NoSuchAlgorithmException) {
+                    throw AssertionError(e)
                 }
             }
         }
 
+        fun createCheckpoint(fileUri: Uri, startedAt: Long, databaseVersion: Int, tableStates: Map<String, String>): BackupExportCheckpoint {
+            return BackupExportCheckpoint(fileUri, startedAt, databaseVersion, salt, iv, keyCheck,
+                    counter, outputStream.count, 0, emptySet(), tableStates)
+        }
+
         @Throws(IOException::class)
         fun writeSql(statement: SqlStatement) {
-            write(outputStream, BackupFrame.newBuilder().setStatement(statement).build())
+            write(BackupFrame.newBuilder().setStatement(statement).build())
         }
 
         @Throws(IOException::class)
         fun writePreferenceEntry(preference: SharedPreference?) {
-            write(outputStream, BackupFrame.newBuilder().setPreference(preference).build())
+            write(BackupFrame.newBuilder().setPreference(preference).build())
         }
 
         @Throws(IOException::class)
         fun writeAvatar(avatarName: String, inputStream: InputStream, size: Long) {
-            write(outputStream, BackupFrame.newBuilder()
+            write(BackupFrame.newBuilder()
                     .setAvatar(Avatar.newBuilder()
                             .setName(avatarName)
                             .setLength(Util.toIntExact(size))
@@ -320,106 +545,148 @@ object FullBackupExporter {
             writeStream(inputStream)
         }
 
+        /**
+         * Queues an attachment frame. Small attachments are decrypted and re-encrypted on the given executor,
+         * larger ones are streamed directly once everything queued before them has been written.
+         */
         @Throws(IOException::class)
-        fun writeAttachment(attachmentId: AttachmentId, inputStream: InputStream, size: Long) {
-            write(outputStream, BackupFrame.newBuilder()
+        fun writeAttachment(attachmentId: AttachmentId, inputStream: InputStream, size: Long, executor: ExecutorService) {
+            val frame = BackupFrame.newBuilder()
                     .setAttachment(Attachment.newBuilder()
                             .setRowId(attachmentId.rowId)
                             .setAttachmentId(attachmentId.uniqueId)
                             .setLength(Util.toIntExact(size))
                             .build())
-                    .build())
-            writeStream(inputStream)
-        }
-
-        @Throws(IOException::class)
-        fun writeSticker(rowId: Long, inputStream: InputStream, size: Long) {
-            write(outputStream, BackupFrame.newBuilder()
-                    .setSticker(Sticker.newBuilder()
-                            .setRowId(rowId)
-                            .setLength(Util.toIntExact(size))
-                            .build())
-                    .build())
-            writeStream(inputStream)
+                    .build()
+            if (size > MAX_PIPELINED_ATTACHMENT_SIZE) {
+                write(frame)
+                inputStream.use { writeStream(it) }
+                return
+            }
+            val frameCounter = counter
+            counter += 2
+            val future = executor.submit(Callable {
+                val result = ByteArrayOutputStream(Util.toIntExact(size) + 128)
+                val encoder = encoder.get()!!
+                inputStream.use {
+                    encoder.encodeFrame(frameCounter, frame, result)
+                    encoder.encodeStream(frameCounter + 1, it, result)
+                }
+                result.toByteArray()
+            })
+            enqueue(PendingFrames(future, size))
         }
 
         @Throws(IOException::class)
         fun writeDatabaseVersion(version: Int) {
-            write(outputStream, BackupFrame.newBuilder()
+            write(BackupFrame.newBuilder()
                     .setVersion(DatabaseVersion.newBuilder().setVersion(version))
                     .build())
         }
 
         @Throws(IOException::class)
         fun writeEnd() {
-            write(outputStream, BackupFrame.newBuilder().setEnd(true).build())
+            write(BackupFrame.newBuilder().setEnd(true).build())
         }
 
         @Throws(IOException::class)
         private fun writeStream(inputStream: InputStream) {
+            drain()
+            encoder.get()!!.encodeStream(counter++, inputStream, outputStream)
+        }
+
+        @Throws(IOException::class)
+        private fun write(frame: BackupFrame) {
+            if (pending.isEmpty()) {
+                encoder.get()!!.encodeFrame(counter++, frame, outputStream)
+            } else {
+                val result = ByteArrayOutputStream()
+                encoder.get()!!.encodeFrame(counter++, frame, result)
+                val task = FutureTask { result.toByteArray() }
+                task.run()
+                enqueue(PendingFrames(task, result.size().toLong()))
+            }
+        }
+
+        @Throws(IOException::class)
+        private fun enqueue(frames: PendingFrames) {
+            pending.addLast(frames)
+            pendingBytes += frames.size
+            while (pendingBytes > MAX_PENDING_BYTES || pending.size > MAX_PENDING_FRAMES) {
+                writeNextPending()
+            }
+        }
+
+        /**
+         * Writes out all queued frames, waiting for any that are still being encoded.
+         */
+        @Throws(IOException::class)
+        fun drain() {
+            while (!pending.isEmpty()) {
+                writeNextPending()
+            }
+        }
+
+        @Throws(IOException::class)
+        private fun writeNextPending() {
+            val frames = pending.removeFirst()
+            pendingBytes -= frames.size
             try {
-                Conversions.intToByteArray(iv, 0, counter++)
-                cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(cipherKey, "AES"), IvParameterSpec(iv))
-                mac.update(iv)
-                val buffer = ByteArray(8192)
-                var read: Int
-                while (inputStream.read(buffer).also { read = it } != -1) {
-                    val ciphertext = cipher.update(buffer, 0, read)
-                    if (ciphertext != null) {
-                        outputStream.write(ciphertext)
-                        mac.update(ciphertext)
-                    }
-                }
-                val remainder = cipher.doFinal()
-                outputStream.write(remainder)
-                mac.update(remainder)
-                val attachmentDigest = mac.doFinal()
-                outputStream.write(attachmentDigest, 0, 10)
-            } catch (e: Exception) {
-                when (e) {
-                    is InvalidKeyException,
-                    is InvalidAlgorithmParameterException,
-                    is IllegalBlockSizeException,
-                    is BadPaddingException -> {
-                        throw AssertionError(e)
-                    }
-                    else -> throw e
-                }
+                outputStream.write(frames.future.get())
+            } catch (e: ExecutionException) {
+                // The frame counters are already taken, so a failed attachment can't be skipped without corrupting the backup.
+                val cause = e.cause
+                throw cause as? IOException ?: IOException(cause)
+            } catch (e: InterruptedException) {
+                throw IOException(e)
             }
         }
 
+        /**
+         * Flushes everything written so far through to the storage device.
+         */
         @Throws(IOException::class)
-        private fun write(out: OutputStream, frame: BackupFrame) {
+        fun sync() {
+            drain()
+            outputStream.flush()
             try {
-                Conversions.intToByteArray(iv, 0, counter++)
-                cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(cipherKey, "AES"), IvParameterSpec(iv))
-                val frameCiphertext = cipher.doFinal(frame.toByteArray())
-                val frameMac = mac.doFinal(frameCiphertext)
-                val length = Conversions.intToByteArray(frameCiphertext.size + 10)
-                out.write(length)
-                out.write(frameCiphertext)
-                out.write(frameMac, 0, 10)
-            } catch (e: Exception) {
-                when (e) {
-                    is InvalidKeyException,
-                    is InvalidAlgorithmParameterException,
-                    is IllegalBlockSizeException,
-                    is BadPaddingException -> {
-                        throw AssertionError(e)
-                    }
-                    else -> throw e
-                }
+                baseOutputStream.fd.sync()
+            } catch (e: SyncFailedException) {
+                Log.w(TAG, "Failed to sync the backup file.", e)
             }
+            bytesWritten = outputStream.count
         }
 
         @Throws(IOException::class)
         override fun flush() {
+            drain()
             outputStream.flush()
         }
 
         @Throws(IOException::class)
         override fun close() {
-            outputStream.close()
+            try {
+                flush()
+            } finally {
+                for (frames in pending) frames.future.cancel(true)
+                outputStream.close()
+            }
         }
+
+        private inner class CountingOutputStream(out: OutputStream) : FilterOutputStream(out) {
+            var count: Long = bytesWritten
+
+            override fun write(b: Int) {
+                out.write(b)
+                count++
+            }
+
+            override fun write(b: ByteArray, off: Int, len: Int) {
+                out.write(b, off, len)
+                count += len
+            }
+        }
+
+        private class PendingFrames(val future: Future<ByteArray>, val size: Long)
     }
-}
\ No newline at end of file
+}
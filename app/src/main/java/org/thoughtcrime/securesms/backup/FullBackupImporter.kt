@@ -6,6 +6,7 @@ import android.content.Context
 import android.net.Uri
 import androidx.annotation.WorkerThread
 import net.sqlcipher.database.SQLiteDatabase
+import net.sqlcipher.database.SQLiteStatement
 import org.greenrobot.eventbus.EventBus
 import org.thoughtcrime.securesms.backup.BackupProtos.*
 import org.thoughtcrime.securesms.crypto.AttachmentSecret
@@ -28,6 +29,11 @@ import java.security.InvalidKeyException
 import java.security.MessageDigest
 import java.security.NoSuchAlgorithmException
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 import javax.crypto.*
 import javax.crypto.spec.IvParameterSpec
 import javax.crypto.spec.SecretKeySpec
@@ -42,6 +48,10 @@ object FullBackupImporter {
 
     private val TAG = FullBackupImporter::class.java.simpleName
 
+    /** Attachments up to this size are buffered so that encrypting them to disk doesn't hold up the restore. */
+    private const val MAX_BUFFERED_ATTACHMENT_SIZE = 4 * 1024 * 1024
+    private const val MAX_PENDING_ATTACHMENT_BYTES = 32L * 1024 * 1024
+
     @JvmStatic
     @WorkerThread
     @Throws(IOException::class)
@@ -55,6 +65,8 @@ object FullBackupImporter {
                 ?: throw IOException("Cannot open an input stream for the file URI: $fileUri")
 
         var count = 0
+        val attachmentWriter = Executors.newFixedThreadPool(Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4)))
+        val bulkRestore = BulkRestore(db, attachmentWriter)
         try {
             BackupRecordInputStream(baseInputStream, passphrase).use { inputStream ->
                 db.beginTransaction()
@@ -64,16 +76,19 @@ object FullBackupImporter {
                     if (count++ % 100 == 0) EventBus.getDefault().post(BackupEvent.createProgress(count))
                     when {
                         frame.hasVersion() -> processVersion(db, frame.version)
-                        frame.hasStatement() -> processStatement(db, frame.statement)
+                        frame.hasStatement() -> bulkRestore.processStatement(frame.statement)
                         frame.hasPreference() -> processPreference(context, frame.preference)
-                        frame.hasAttachment() -> processAttachment(context, attachmentSecret, db, frame.attachment, inputStream)
+                        frame.hasAttachment() -> bulkRestore.processAttachment(context, attachmentSecret, frame.attachment, inputStream)
                         frame.hasAvatar() -> processAvatar(context, frame.avatar, inputStream)
                     }
                 }
+                bulkRestore.finish()
                 trimEntriesForExpiredMessages(context, db)
                 db.setTransactionSuccessful()
             }
         } finally {
+            bulkRestore.close()
+            attachmentWriter.shutdownNow()
             if (db.inTransaction()) {
                 db.endTransaction()
             }
@@ -89,46 +104,123 @@ object FullBackupImporter {
         db.version = version.version
     }
 
-    private fun processStatement(db: SQLiteDatabase, statement: SqlStatement) {
-        val isForSmsFtsSecretTable = statement.statement.contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_")
-        val isForMmsFtsSecretTable = statement.statement.contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_")
-        val isForSqliteSecretTable = statement.statement.toLowerCase(Locale.ENGLISH).startsWith("create table sqlite_")
-        if (isForSmsFtsSecretTable || isForMmsFtsSecretTable || isForSqliteSecretTable) {
-            Log.i(TAG, "Ignoring import for statement: " + statement.statement)
-            return
+    /**
+     * Loads the rows of a backup with as little per-row work as possible. INSERT statements are compiled once
+     * per table, secondary indexes and triggers (including the FTS ones) are only created after all rows are in,
+     * and attachment files are encrypted to disk on a separate executor while the backup stream moves on.
+     */
+    private class BulkRestore(private val db: SQLiteDatabase, private val attachmentWriter: ExecutorService) : Closeable {
+        private val compiledStatements = HashMap<String, SQLiteStatement>()
+        private val deferredStatements = LinkedList<String>()
+        private val ftsTables = LinkedList<String>()
+        private val pendingWrites = LinkedList<Pair<Future<*>, Long>>()
+        private var pendingBytes: Long = 0
+
+        fun processStatement(statement: SqlStatement) {
+            val sql = statement.statement
+            val isForSmsFtsSecretTable = sql.contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_")
+            val isForMmsFtsSecretTable = sql.contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_")
+            val lowerCaseSql = sql.trim().toLowerCase(Locale.ENGLISH)
+            val isForSqliteSecretTable = lowerCaseSql.startsWith("create table sqlite_")
+            if (isForSmsFtsSecretTable || isForMmsFtsSecretTable || isForSqliteSecretTable) {
+                Log.i(TAG, "Ignoring import for statement: $sql")
+                return
+            }
+            if (statement.parametersCount == 0) {
+                when {
+                    lowerCaseSql.startsWith("create index") || lowerCaseSql.startsWith("create unique index") ||
+                            lowerCaseSql.startsWith("create trigger") -> deferredStatements.add(sql)
+                    else -> {
+                        if (lowerCaseSql.startsWith("create virtual table") && lowerCaseSql.contains("using fts")) {
+                            ftsTables.add(sql.split(Regex("\\s+"))[3])
+                        }
+                        db.execSQL(sql)
+                    }
+                }
+                return
+            }
+            val compiledStatement = compiledStatements.getOrPut(sql) { db.compileStatement(sql) }
+            compiledStatement.clearBindings()
+            for ((index, parameter) in statement.parametersList.withIndex()) {
+                when {
+                    parameter.hasStringParamter() -> compiledStatement.bindString(index + 1, parameter.stringParamter)
+                    parameter.hasDoubleParameter() -> compiledStatement.bindDouble(index + 1, parameter.doubleParameter)
+                    parameter.hasIntegerParameter() -> compiledStatement.bindLong(index + 1, parameter.integerParameter)
+                    parameter.hasBlobParameter() -> compiledStatement.bindBlob(index + 1, parameter.blobParameter.toByteArray())
+                    parameter.hasNullparameter() -> compiledStatement.bindNull(index + 1)
+                }
+            }
+            compiledStatement.execute()
         }
-        val parameters: MutableList<Any?> = LinkedList()
-        for (parameter in statement.parametersList) {
-            when {
-                parameter.hasStringParamter() -> parameters.add(parameter.stringParamter)
-                parameter.hasDoubleParameter() -> parameters.add(parameter.doubleParameter)
-                parameter.hasIntegerParameter() -> parameters.add(parameter.integerParameter)
-                parameter.hasBlobParameter() -> parameters.add(parameter.blobParameter.toByteArray())
-                parameter.hasNullparameter() -> parameters.add(null)
+
+        @Throws(IOException::class)
+        fun processAttachment(context: Context, attachmentSecret: AttachmentSecret, attachment: Attachment,
+                              inputStream: BackupRecordInputStream) {
+            val partsDirectory = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE)
+            val dataFile = File.createTempFile("part", ".mms", partsDirectory)
+            val output = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false)
+            if (attachment.length > MAX_BUFFERED_ATTACHMENT_SIZE) {
+                inputStream.readAttachmentTo(output.second, attachment.length)
+            } else {
+                val plaintext = ByteArrayOutputStream(attachment.length)
+                inputStream.readAttachmentTo(plaintext, attachment.length)
+                val bytes = plaintext.toByteArray()
+                val write = attachmentWriter.submit(Callable { output.second.use { it.write(bytes) } })
+                pendingWrites.add(Pair(write, bytes.size.toLong()))
+                pendingBytes += bytes.size
+                while (pendingBytes > MAX_PENDING_ATTACHMENT_BYTES) {
+                    awaitNextWrite()
+                }
             }
+            val contentValues = ContentValues()
+            contentValues.put(AttachmentDatabase.DATA, dataFile.absolutePath)
+            contentValues.put(AttachmentDatabase.THUMBNAIL, null as String?)
+            contentValues.put(AttachmentDatabase.DATA_RANDOM, output.first)
+            db.update(AttachmentDatabase.TABLE_NAME, contentValues,
+                    "${AttachmentDatabase.ROW_ID} = ? AND ${AttachmentDatabase.UNIQUE_ID} = ?",
+                    arrayOf(attachment.rowId.toString(), attachment.attachmentId.toString()))
         }
-        if (parameters.size > 0) {
-            db.execSQL(statement.statement, parameters.toTypedArray())
-        } else {
-            db.execSQL(statement.statement)
+
+        @Throws(IOException::class)
+        private fun awaitNextWrite() {
+            val (write, size) = pendingWrites.removeFirst()
+            pendingBytes -= size
+            try {
+                write.get()
+            } catch (e: ExecutionException) {
+                val cause = e.cause
+                throw cause as? IOException ?: IOException(cause)
+            } catch (e: InterruptedException) {
+                throw IOException(e)
+            }
         }
-    }
 
-    @Throws(IOException::class)
-    private fun processAttachment(context: Context, attachmentSecret: AttachmentSecret,
-                                  db: SQLiteDatabase, attachment: Attachment,
-                                  inputStream: BackupRecordInputStream) {
-        val partsDirectory = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE)
-        val dataFile = File.createTempFile("part", ".mms", partsDirectory)
-        val output = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false)
-        inputStream.readAttachmentTo(output.second, attachment.length)
-        val contentValues = ContentValues()
-        contentValues.put(AttachmentDatabase.DATA, dataFile.absolutePath)
-        contentValues.put(AttachmentDatabase.THUMBNAIL, null as String?)
-        contentValues.put(AttachmentDatabase.DATA_RANDOM, output.first)
-        db.update(AttachmentDatabase.TABLE_NAME, contentValues,
-                "${AttachmentDatabase.ROW_ID} = ? AND ${AttachmentDatabase.UNIQUE_ID} = ?",
-                arrayOf(attachment.rowId.toString(), attachment.attachmentId.toString()))
+        /**
+         * Waits for the outstanding attachment writes, then creates the deferred indexes and triggers
+         * and rebuilds the full-text search tables in one pass each.
+         */
+        @Throws(IOException::class)
+        fun finish() {
+            while (!pendingWrites.isEmpty()) {
+                awaitNextWrite()
+            }
+            for (sql in deferredStatements) {
+                db.execSQL(sql)
+            }
+            for (table in ftsTables) {
+                db.execSQL("INSERT INTO $table($table) VALUES('rebuild')")
+            }
+        }
+
+        override fun close() {
+            for ((write, _) in pendingWrites) {
+                write.cancel(true)
+            }
+            for (compiledStatement in compiledStatements.values) {
+                compiledStatement.close()
+            }
+            compiledStatements.clear()
+        }
     }
 
     @Throws(IOException::class)
@@ -1,6 +1,5 @@
 package org.thoughtcrime.securesms.components.emoji;
 
-import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -9,8 +8,6 @@ import android.graphics.Paint;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
-import android.os.Build.VERSION;
-import android.os.Build.VERSION_CODES;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import android.text.Spannable;
@@ -22,6 +19,7 @@ import org.thoughtcrime.securesms.components.emoji.parsing.EmojiDrawInfo;
 import org.thoughtcrime.securesms.components.emoji.parsing.EmojiPageBitmap;
 import org.thoughtcrime.securesms.components.emoji.parsing.EmojiParser;
 import org.thoughtcrime.securesms.components.emoji.parsing.EmojiTree;
+import org.thoughtcrime.securesms.util.LRUCache;
 import org.session.libsignal.utilities.Log;
 
 import org.session.libsession.utilities.FutureTaskListener;
@@ -39,6 +37,11 @@ class EmojiProvider {
 
   private final EmojiTree emojiTree = new EmojiTree();
 
+  private static final int PARSE_CACHE_SIZE       = 256;
+  private static final int MAX_CACHED_TEXT_LENGTH = 2048;
+
+  private final LRUCache<String, EmojiParser.CandidateList> parseCache = new LRUCache<>(PARSE_CACHE_SIZE);
+
   private static final int EMOJI_RAW_HEIGHT = 64;
   private static final int EMOJI_RAW_WIDTH  = 64;
   private static final int EMOJI_VERT_PAD   = 0;
@@ -80,7 +83,23 @@ class EmojiProvider {
 
   @Nullable EmojiParser.CandidateList getCandidates(@Nullable CharSequence text) {
     if (text == null) return null;
-    return new EmojiParser(emojiTree).findCandidates(text);
+    if (text.length() > MAX_CACHED_TEXT_LENGTH) return new EmojiParser(emojiTree).findCandidates(text);
+
+    // Candidates only depend on the characters, so spans on the text don't need to be part of the key.
+    String key = text.toString();
+
+    synchronized (parseCache) {
+      EmojiParser.CandidateList cached = parseCache.get(key);
+      if (cached != null) return cached;
+    }
+
+    EmojiParser.CandidateList candidates = new EmojiParser(emojiTree).findCandidates(key);
+
+    synchronized (parseCache) {
+      parseCache.put(key, candidates);
+    }
+
+    return candidates;
   }
 
   @Nullable Spannable emojify(@Nullable CharSequence text, @NonNull TextView tv) {
@@ -94,7 +113,7 @@ class EmojiProvider {
     SpannableStringBuilder      builder = new SpannableStringBuilder(text);
 
     for (EmojiParser.Candidate candidate : matches) {
-      Drawable drawable = getEmojiDrawable(candidate.getDrawInfo());
+      Drawable drawable = getEmojiTileDrawable(candidate.getDrawInfo());
 
       if (drawable != null) {
         builder.setSpan(new EmojiSpan(drawable, tv), candidate.getStartIndex(), candidate.getEndIndex(),
@@ -115,21 +134,44 @@ class EmojiProvider {
       return null;
     }
 
-    final EmojiDrawable drawable = new EmojiDrawable(drawInfo, decodeScale);
-    drawInfo.getPage().get().addListener(new FutureTaskListener<Bitmap>() {
-      @Override public void onSuccess(final Bitmap result) {
-        Util.runOnMain(() -> drawable.setBitmap(result));
-      }
+    final EmojiDrawable drawable = new EmojiDrawable(drawInfo, decodeScale, false);
+    drawInfo.getPage().get().addListener(new DrawableBitmapListener(drawable));
+    return drawable;
+  }
 
-      @Override public void onFailure(ExecutionException error) {
-        Log.w(TAG, error);
-      }
-    });
+  /**
+   * Like {@link #getEmojiDrawable(EmojiDrawInfo)}, but draws from a bitmap of just this emoji. Used for
+   * emoji within text, where keeping the whole page around for a few emoji would be wasteful.
+   */
+  private @Nullable Drawable getEmojiTileDrawable(@Nullable EmojiDrawInfo drawInfo) {
+    if (drawInfo == null)  {
+      return null;
+    }
+
+    final EmojiDrawable drawable = new EmojiDrawable(drawInfo, decodeScale, true);
+    drawInfo.getPage().getTile(drawInfo.getIndex(), drawable.getPageBounds()).addListener(new DrawableBitmapListener(drawable));
     return drawable;
   }
 
+  private static class DrawableBitmapListener implements FutureTaskListener<Bitmap> {
+    private final EmojiDrawable drawable;
+
+    DrawableBitmapListener(@NonNull EmojiDrawable drawable) {
+      this.drawable = drawable;
+    }
+
+    @Override public void onSuccess(final Bitmap result) {
+      Util.runOnMain(() -> drawable.setBitmap(result));
+    }
+
+    @Override public void onFailure(ExecutionException error) {
+      Log.w(TAG, error);
+    }
+  }
+
   class EmojiDrawable extends Drawable {
     private final EmojiDrawInfo info;
+    private final boolean       isTile;
     private       Bitmap        bmp;
     private       float         intrinsicWidth;
     private       float         intrinsicHeight;
@@ -144,34 +186,38 @@ class EmojiProvider {
       return (int)intrinsicHeight;
     }
 
-    EmojiDrawable(EmojiDrawInfo info, float decodeScale) {
+    EmojiDrawable(EmojiDrawInfo info, float decodeScale, boolean isTile) {
       this.info            = info;
+      this.isTile          = isTile;
       this.intrinsicWidth  = EMOJI_RAW_WIDTH  * decodeScale;
       this.intrinsicHeight = EMOJI_RAW_HEIGHT * decodeScale;
     }
 
+    /**
+     * @return The area of this emoji within its decoded page.
+     */
+    Rect getPageBounds() {
+      final int row = info.getIndex() / EMOJI_PER_ROW;
+      final int row_index = info.getIndex() % EMOJI_PER_ROW;
+
+      return new Rect((int)(row_index * intrinsicWidth),
+                      (int)(row * intrinsicHeight + row * verticalPad)+1,
+                      (int)(((row_index + 1) * intrinsicWidth)-1),
+                      (int)((row + 1) * intrinsicHeight + row * verticalPad)-1);
+    }
+
     @Override
     public void draw(@NonNull Canvas canvas) {
       if (bmp == null) {
         return;
       }
 
-      final int row = info.getIndex() / EMOJI_PER_ROW;
-      final int row_index = info.getIndex() % EMOJI_PER_ROW;
-
-      canvas.drawBitmap(bmp,
-                        new Rect((int)(row_index * intrinsicWidth),
-                                 (int)(row * intrinsicHeight + row * verticalPad)+1,
-                                 (int)(((row_index + 1) * intrinsicWidth)-1),
-                                 (int)((row + 1) * intrinsicHeight + row * verticalPad)-1),
-                        getBounds(),
-                        paint);
+      canvas.drawBitmap(bmp, isTile ? null : getPageBounds(), getBounds(), paint);
     }
 
-    @TargetApi(VERSION_CODES.HONEYCOMB_MR1)
     public void setBitmap(Bitmap bitmap) {
       Util.assertMainThread();
-      if (VERSION.SDK_INT < VERSION_CODES.HONEYCOMB_MR1 || bmp == null || !bmp.sameAs(bitmap)) {
+      if (bitmap != null && bmp != bitmap) {
         bmp = bitmap;
         invalidateSelf();
       }
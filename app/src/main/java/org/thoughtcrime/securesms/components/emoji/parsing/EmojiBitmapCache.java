@@ -0,0 +1,63 @@
+package org.thoughtcrime.securesms.components.emoji.parsing;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.thoughtcrime.securesms.util.Util;
+
+/**
+ * Holds decoded emoji sprite pages and single emoji tiles cut from them, shared by all
+ * {@link EmojiPageBitmap}s. The cache is bounded by the byte size of the bitmaps it holds and
+ * evicts the least recently used ones, so scrolling through emoji doesn't depend on the GC.
+ */
+public class EmojiBitmapCache {
+
+  private static final int MAX_BUDGET_BYTES      = 24 * 1024 * 1024;
+  private static final int LOW_MEMORY_DIVISOR    = 32;
+  private static final int NORMAL_MEMORY_DIVISOR = 16;
+
+  private static volatile EmojiBitmapCache instance;
+
+  private final LruCache<String, Bitmap> cache;
+
+  public static EmojiBitmapCache getInstance(@NonNull Context context) {
+    if (instance == null) {
+      synchronized (EmojiBitmapCache.class) {
+        if (instance == null) {
+          int divisor = Util.isLowMemory(context) ? LOW_MEMORY_DIVISOR : NORMAL_MEMORY_DIVISOR;
+          instance = new EmojiBitmapCache((int) Math.min(Runtime.getRuntime().maxMemory() / divisor, MAX_BUDGET_BYTES));
+        }
+      }
+    }
+    return instance;
+  }
+
+  private EmojiBitmapCache(int maxBytes) {
+    this.cache = new LruCache<String, Bitmap>(maxBytes) {
+      @Override
+      protected int sizeOf(String key, Bitmap value) {
+        return value.getAllocationByteCount();
+      }
+    };
+  }
+
+  public @Nullable Bitmap get(@NonNull String key) {
+    return cache.get(key);
+  }
+
+  public void put(@NonNull String key, @NonNull Bitmap bitmap) {
+    cache.put(key, bitmap);
+  }
+
+  public int getSize() {
+    return cache.size();
+  }
+
+  public int getMaxSize() {
+    return cache.maxSize();
+  }
+}
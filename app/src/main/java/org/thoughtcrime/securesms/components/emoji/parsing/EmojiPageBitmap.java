@@ -5,44 +5,53 @@ import android.content.Context;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Rect;
 import android.os.AsyncTask;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import org.session.libsignal.utilities.Log;
 
 import org.thoughtcrime.securesms.components.emoji.EmojiPageModel;
 import org.thoughtcrime.securesms.util.Stopwatch;
 
+import org.session.libsession.utilities.FutureTaskListener;
 import org.session.libsession.utilities.ListenableFutureTask;
 import org.session.libsession.utilities.Util;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.SoftReference;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 public class EmojiPageBitmap {
 
   private static final String TAG = EmojiPageBitmap.class.getSimpleName();
 
-  private final Context        context;
-  private final EmojiPageModel model;
-  private final float          decodeScale;
+  /** Used as the source density, so that the target density expresses the decode scale. */
+  private static final int SOURCE_DENSITY = 1000;
+
+  private final Context          context;
+  private final EmojiPageModel   model;
+  private final float            decodeScale;
+  private final EmojiBitmapCache cache;
 
-  private SoftReference<Bitmap>        bitmapReference;
   private ListenableFutureTask<Bitmap> task;
 
   public EmojiPageBitmap(@NonNull Context context, @NonNull EmojiPageModel model, float decodeScale) {
     this.context     = context.getApplicationContext();
     this.model       = model;
     this.decodeScale = decodeScale;
+    this.cache       = EmojiBitmapCache.getInstance(context);
   }
 
   @SuppressLint("StaticFieldLeak")
   public ListenableFutureTask<Bitmap> get() {
     Util.assertMainThread();
 
-    if (bitmapReference != null && bitmapReference.get() != null) {
-      return new ListenableFutureTask<>(bitmapReference.get());
+    Bitmap cached = cache.get(model.getSprite());
+
+    if (cached != null) {
+      return new ListenableFutureTask<>(cached);
     } else if (task != null) {
       return task;
     } else {
@@ -70,13 +79,56 @@ public class EmojiPageBitmap {
     return task;
   }
 
-  private Bitmap loadPage() throws IOException {
-    if (bitmapReference != null && bitmapReference.get() != null) return bitmapReference.get();
+  /**
+   * Returns a single emoji cut out of the page, so that drawing it doesn't require the whole page to stay in memory.
+   *
+   * @param bounds The area of the emoji within the decoded page.
+   */
+  public ListenableFutureTask<Bitmap> getTile(int index, @NonNull Rect bounds) {
+    Util.assertMainThread();
+
+    String key    = model.getSprite() + "#" + index;
+    Bitmap cached = cache.get(key);
+
+    if (cached != null) {
+      return new ListenableFutureTask<>(cached);
+    }
+
+    Bitmap[]                     page     = new Bitmap[1];
+    ListenableFutureTask<Bitmap> tileTask = new ListenableFutureTask<>(() -> cutTile(key, page[0], bounds));
+
+    get().addListener(new FutureTaskListener<Bitmap>() {
+      @Override public void onSuccess(Bitmap result) {
+        page[0] = result;
+        tileTask.run();
+      }
+
+      @Override public void onFailure(ExecutionException error) {
+        tileTask.run();
+      }
+    });
+
+    return tileTask;
+  }
 
+  private @Nullable Bitmap cutTile(@NonNull String key, @Nullable Bitmap page, @NonNull Rect bounds) {
+    Bitmap tile = cache.get(key);
+    if (tile != null || page == null) return tile;
+
+    Rect clipped = new Rect(bounds);
+    if (!clipped.intersect(0, 0, page.getWidth(), page.getHeight())) return null;
+
+    tile = Bitmap.createBitmap(page, clipped.left, clipped.top, clipped.width(), clipped.height());
+    cache.put(key, tile);
+    return tile;
+  }
+
+  private Bitmap loadPage() throws IOException {
+    Bitmap cached = cache.get(model.getSprite());
+    if (cached != null) return cached;
 
     float                 scale        = decodeScale;
     AssetManager          assetManager = context.getAssets();
-    InputStream           assetStream  = assetManager.open(model.getSprite());
     BitmapFactory.Options options      = new BitmapFactory.Options();
 
     if (org.thoughtcrime.securesms.util.Util.isLowMemory(context)) {
@@ -85,19 +137,28 @@ public class EmojiPageBitmap {
       scale = decodeScale * 2;
     }
 
+    // Let the decoder scale to the target size, rather than decoding at full size and scaling a copy.
+    options.inScaled        = true;
+    options.inDensity       = SOURCE_DENSITY;
+    options.inTargetDensity = Math.round(SOURCE_DENSITY * scale);
+
     Stopwatch stopwatch = new Stopwatch(model.getSprite());
-    Bitmap    bitmap    = BitmapFactory.decodeStream(assetStream, null, options);
-    stopwatch.split("decode");
+    Bitmap    bitmap;
+
+    try (InputStream assetStream = assetManager.open(model.getSprite())) {
+      bitmap = BitmapFactory.decodeStream(assetStream, null, options);
+    }
 
-    Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, (int)(bitmap.getWidth() * scale), (int)(bitmap.getHeight() * scale), true);
-    stopwatch.split("scale");
+    if (bitmap == null) throw new IOException("Failed to decode " + model.getSprite());
+
+    stopwatch.split("decode");
     stopwatch.stop(TAG);
 
-    bitmapReference = new SoftReference<>(scaledBitmap);
-    Log.i(TAG, "onPageLoaded(" + model.getSprite() + ")  originalByteCount: " + bitmap.getByteCount()
-                                                    + "  scaledByteCount: "   + scaledBitmap.getByteCount()
-                                                    + "  scaledSize: "        + scaledBitmap.getWidth() + "x" + scaledBitmap.getHeight());
-    return scaledBitmap;
+    cache.put(model.getSprite(), bitmap);
+    Log.i(TAG, "onPageLoaded(" + model.getSprite() + ")  byteCount: " + bitmap.getAllocationByteCount()
+                                                    + "  size: "        + bitmap.getWidth() + "x" + bitmap.getHeight()
+                                                    + "  cacheSize: "   + cache.getSize() + "/" + cache.getMaxSize());
+    return bitmap;
   }
 
   @Override
@@ -24,8 +24,9 @@ package org.thoughtcrime.securesms.components.emoji.parsing;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -33,24 +34,22 @@ import java.util.List;
  */
 public class EmojiParser {
 
-  private final EmojiTree emojiTree;
+  private final EmojiTree       emojiTree;
+  private final EmojiTree.Match match = new EmojiTree.Match();
 
   public EmojiParser(EmojiTree emojiTree) {
     this.emojiTree = emojiTree;
   }
 
   public @NonNull CandidateList findCandidates(@Nullable CharSequence text) {
-    List<Candidate> results = new LinkedList<>();
+    if (text == null) return new CandidateList(Collections.emptyList(), false);
 
-    if (text == null) return new CandidateList(results, false);
-
-    boolean allEmojis = text.length() > 0;
+    List<Candidate> results   = new ArrayList<>();
+    boolean         allEmojis = text.length() > 0;
 
     for (int i = 0; i < text.length(); i++) {
-      int emojiEnd = getEmojiEndPos(text, i);
-
-      if (emojiEnd != -1) {
-        EmojiDrawInfo drawInfo = emojiTree.getEmoji(text, i, emojiEnd);
+      if (emojiTree.findLongestMatch(text, i, match)) {
+        int emojiEnd = match.getEndPosition();
 
         if (emojiEnd + 2 <= text.length()) {
           if (Fitzpatrick.fitzpatrickFromUnicode(text, emojiEnd) != null) {
@@ -58,7 +57,7 @@ public class EmojiParser {
           }
         }
 
-        results.add(new Candidate(i, emojiEnd, drawInfo));
+        results.add(new Candidate(i, emojiEnd, match.getDrawInfo()));
 
         i = emojiEnd - 1;
       } else {
@@ -69,22 +68,6 @@ public class EmojiParser {
     return new CandidateList(results, allEmojis);
   }
 
-  private int getEmojiEndPos(CharSequence text, int startPos) {
-    int best = -1;
-
-    for (int j = startPos + 1; j <= text.length(); j++) {
-      EmojiTree.Matches status = emojiTree.isEmoji(text, startPos, j);
-
-      if (status.exactMatch()) {
-        best = j;
-      } else if (status.impossibleMatch()) {
-        return best;
-      }
-    }
-
-    return best;
-  }
-
   public static class Candidate {
 
     private final int           startIndex;
@@ -115,7 +98,7 @@ public class EmojiParser {
     public final boolean                     allEmojis;
 
     public CandidateList(List<EmojiParser.Candidate> candidates, boolean allEmojis) {
-      this.list = candidates;
+      this.list = Collections.unmodifiableList(candidates);
       this.allEmojis = allEmojis;
     }
 
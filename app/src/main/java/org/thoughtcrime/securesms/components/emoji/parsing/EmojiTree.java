@@ -22,7 +22,10 @@ package org.thoughtcrime.securesms.components.emoji.parsing;
 
 import androidx.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -34,7 +37,11 @@ public class EmojiTree {
 
   private static final char TERMINATOR = '\ufe0f';
 
+  private volatile FlatTree flatTree;
+
   public void add(String emojiEncoding, EmojiDrawInfo emoji) {
+    flatTree = null;
+
     EmojiTreeNode tree = root;
 
     for (char c: emojiEncoding.toCharArray()) {
@@ -92,6 +99,140 @@ public class EmojiTree {
     else    return null;
   }
 
+  /**
+   * Finds the longest emoji starting at startPosition, advancing one node per character. This gives the
+   * same result as probing {@link #isEmoji(CharSequence, int, int)} with every end position, in one walk.
+   *
+   * @return true if an emoji was found, in which case its end position and draw info are set on the match.
+   */
+  public boolean findLongestMatch(CharSequence sequence, int startPosition, Match match) {
+    FlatTree tree = getFlatTree();
+    int      node = 0;
+
+    match.endPosition = -1;
+    match.drawInfo    = null;
+
+    for (int i = startPosition; i < sequence.length(); i++) {
+      char character = sequence.charAt(i);
+
+      node = tree.getChild(node, character);
+
+      if (node == -1) break;
+
+      if (tree.emojis[node] != null) {
+        match.endPosition = i + 1;
+        match.drawInfo    = tree.emojis[node];
+      } else if (character != TERMINATOR) {
+        int terminator = tree.getChild(node, TERMINATOR);
+
+        if (terminator != -1 && tree.emojis[terminator] != null) {
+          match.endPosition = i + 1;
+          match.drawInfo    = tree.emojis[terminator];
+        }
+      }
+    }
+
+    return match.endPosition != -1;
+  }
+
+  private FlatTree getFlatTree() {
+    FlatTree tree = flatTree;
+
+    if (tree == null) {
+      synchronized (this) {
+        tree = flatTree;
+
+        if (tree == null) {
+          tree     = new FlatTree(root);
+          flatTree = tree;
+        }
+      }
+    }
+
+    return tree;
+  }
+
+  public static class Match {
+    private int           endPosition;
+    private EmojiDrawInfo drawInfo;
+
+    public int getEndPosition() {
+      return endPosition;
+    }
+
+    public @Nullable EmojiDrawInfo getDrawInfo() {
+      return drawInfo;
+    }
+  }
+
+  /**
+   * The tree laid out in primitive arrays, in breadth-first order. The children of a node are the
+   * sorted range [childStart[node], childStart[node] + childCount[node]) of childChars and childNodes.
+   */
+  private static class FlatTree {
+
+    private final int[]           childStart;
+    private final int[]           childCount;
+    private final char[]          childChars;
+    private final int[]           childNodes;
+    private final EmojiDrawInfo[] emojis;
+
+    FlatTree(EmojiTreeNode root) {
+      List<EmojiTreeNode> nodes = new ArrayList<>();
+      nodes.add(root);
+
+      int edges = 0;
+      for (int i = 0; i < nodes.size(); i++) {
+        nodes.addAll(nodes.get(i).children.values());
+        edges += nodes.get(i).children.size();
+      }
+
+      Map<EmojiTreeNode, Integer> indices = new HashMap<>(nodes.size());
+      for (int i = 0; i < nodes.size(); i++) {
+        indices.put(nodes.get(i), i);
+      }
+
+      childStart = new int[nodes.size()];
+      childCount = new int[nodes.size()];
+      childChars = new char[edges];
+      childNodes = new int[edges];
+      emojis     = new EmojiDrawInfo[nodes.size()];
+
+      int offset = 0;
+      for (int i = 0; i < nodes.size(); i++) {
+        EmojiTreeNode node = nodes.get(i);
+        Character[]   keys = node.children.keySet().toArray(new Character[0]);
+        Arrays.sort(keys);
+
+        childStart[i] = offset;
+        childCount[i] = keys.length;
+        emojis[i]     = node.getEmoji();
+
+        for (Character key : keys) {
+          childChars[offset] = key;
+          childNodes[offset] = indices.get(node.getChild(key));
+          offset++;
+        }
+      }
+    }
+
+    int getChild(int node, char character) {
+      int low  = childStart[node];
+      int high = low + childCount[node] - 1;
+
+      while (low <= high) {
+        int  mid   = (low + high) >>> 1;
+        char value = childChars[mid];
+
+        if      (value < character) low  = mid + 1;
+        else if (value > character) high = mid - 1;
+        else                        return childNodes[mid];
+      }
+
+      return -1;
+    }
+  }
+
 
   private static class EmojiTreeNode {
 
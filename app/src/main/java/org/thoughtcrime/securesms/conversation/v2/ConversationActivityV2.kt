@@ -100,6 +100,7 @@ import org.thoughtcrime.securesms.database.DraftDatabase.Drafts
 import org.thoughtcrime.securesms.database.model.MessageRecord
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord
 import org.thoughtcrime.securesms.giph.ui.GiphyActivity
+import org.thoughtcrime.securesms.groups.OpenGroupManager
 import org.thoughtcrime.securesms.linkpreview.LinkPreviewRepository
 import org.thoughtcrime.securesms.linkpreview.LinkPreviewUtil
 import org.thoughtcrime.securesms.linkpreview.LinkPreviewViewModel
@@ -130,6 +131,10 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
     private var threadID: Long = -1
     private var actionMode: ActionMode? = null
     private var unreadCount = 0
+    // Paging
+    private var conversationLimit = ConversationLoader.pageSize
+    private var isExtendingConversation = false
+    private var pendingScrollPosition = -1
     // Attachments
     private val audioRecorder = AudioRecorder(this)
     private val stopAudioHandler = Handler(Looper.getMainLooper())
@@ -168,7 +173,7 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
     }
 
     private val adapter by lazy {
-        val cursor = DatabaseFactory.getMmsSmsDatabase(this).getConversation(threadID)
+        val cursor = DatabaseFactory.getMmsSmsDatabase(this).getConversation(threadID, 0, conversationLimit.toLong())
         val adapter = ConversationAdapter(
             this,
             cursor,
@@ -262,6 +267,10 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
         super.onResume()
         ApplicationContext.getInstance(this).messageNotifier.setVisibleThread(threadID)
         markAllAsRead()
+        if (thread.isOpenGroupRecipient) {
+            val openGroup = DatabaseFactory.getLokiThreadDatabase(this).getOpenGroupChat(threadID)
+            if (openGroup != null) { OpenGroupManager.pollNow(openGroup.server) }
+        }
     }
 
     override fun onPause() {
@@ -285,25 +294,32 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
         baseDialog.show(supportFragmentManager, tag)
     }
 
+    private val conversationLoaderCallbacks = object : LoaderManager.LoaderCallbacks<Cursor> {
+
+        override fun onCreateLoader(id: Int, bundle: Bundle?): Loader<Cursor> {
+            return ConversationLoader(threadID, conversationLimit, this@ConversationActivityV2)
+        }
+
+        override fun onLoadFinished(loader: Loader<Cursor>, cursor: Cursor?) {
+            adapter.changeCursor(cursor)
+            isExtendingConversation = false
+            if (pendingScrollPosition >= 0) {
+                moveToMessagePosition(pendingScrollPosition, null)
+            }
+        }
+
+        override fun onLoaderReset(cursor: Loader<Cursor>) {
+            adapter.changeCursor(null)
+        }
+    }
+
     private fun setUpRecyclerView() {
         conversationRecyclerView.adapter = adapter
         val layoutManager = LinearLayoutManager(this, LinearLayoutManager.VERTICAL, true)
         conversationRecyclerView.layoutManager = layoutManager
+        adapter.registerAdapterDataObserver(ScrollToTopObserver(conversationRecyclerView))
         // Workaround for the fact that CursorRecyclerViewAdapter doesn't auto-update automatically (even though it says it will)
-        LoaderManager.getInstance(this).restartLoader(0, null, object : LoaderManager.LoaderCallbacks<Cursor> {
-
-            override fun onCreateLoader(id: Int, bundle: Bundle?): Loader<Cursor> {
-                return ConversationLoader(threadID, this@ConversationActivityV2)
-            }
-
-            override fun onLoadFinished(loader: Loader<Cursor>, cursor: Cursor?) {
-                adapter.changeCursor(cursor)
-            }
-
-            override fun onLoaderReset(cursor: Loader<Cursor>) {
-                adapter.changeCursor(null)
-            }
-        })
+        LoaderManager.getInstance(this).restartLoader(0, null, conversationLoaderCallbacks)
         conversationRecyclerView.addOnScrollListener(object : RecyclerView.OnScrollListener() {
 
             override fun onScrolled(recyclerView: RecyclerView, dx: Int, dy: Int) {
@@ -458,9 +474,10 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
 
     private fun scrollToFirstUnreadMessageIfNeeded() {
         val lastSeenTimestamp = DatabaseFactory.getThreadDatabase(this).getLastSeenAndHasSent(threadID).first()
-        val lastSeenItemPosition = adapter.findLastSeenItemPosition(lastSeenTimestamp) ?: return
-        if (lastSeenItemPosition <= 3) { return }
-        conversationRecyclerView.scrollToPosition(lastSeenItemPosition)
+        if (lastSeenTimestamp <= 0L) { return }
+        SimpleTask.run(lifecycle, {
+            DatabaseFactory.getMmsSmsDatabase(this).getLastSeenMessagePosition(threadID, lastSeenTimestamp)
+        }) { p: Int -> if (p > 3) { moveToMessagePosition(p, null) } }
     }
 
     override fun onPrepareOptionsMenu(menu: Menu): Boolean {
@@ -589,7 +606,7 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
             view.glide = glide
             view.onCandidateSelected = { handleMentionSelected(it) }
             additionalContentContainer.addView(view)
-            val candidates = MentionsManager.getMentionCandidates(query, threadID, thread.isOpenGroupRecipient)
+            val candidates = MentionsManager.getMentionCandidates(query, threadID)
             this.mentionCandidatesView = view
             view.show(candidates, threadID)
             view.alpha = 0.0f
@@ -600,7 +617,7 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
             }
             animation.start()
         } else {
-            val candidates = MentionsManager.getMentionCandidates(query, threadID, thread.isOpenGroupRecipient)
+            val candidates = MentionsManager.getMentionCandidates(query, threadID)
             this.mentionCandidatesView!!.setMentionCandidates(candidates)
         }
         isShowingMentionCandidatesView = true
@@ -708,6 +725,20 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
         scrollToBottomButton.alpha = alpha
         unreadCount = min(unreadCount, layoutManager.findFirstVisibleItemPosition())
         updateUnreadCountIndicator()
+        extendConversationIfNeeded(layoutManager.findLastVisibleItemPosition())
+    }
+
+    /**
+     * Loads another page of older messages once [position] comes within half a page of the end of the loaded
+     * window. The window only ever grows at the end, so the positions of the messages already shown don't change.
+     */
+    private fun extendConversationIfNeeded(position: Int) {
+        val loadedCount = adapter.cursor?.count ?: return
+        if (isExtendingConversation || loadedCount < conversationLimit) { return } // Either loading or fully loaded
+        if (position < loadedCount - ConversationLoader.pageSize / 2) { return }
+        isExtendingConversation = true
+        conversationLimit = max(conversationLimit, position + 1) + ConversationLoader.pageSize
+        LoaderManager.getInstance(this).restartLoader(0, null, conversationLoaderCallbacks)
     }
 
     private fun updateUnreadCountIndicator() {
@@ -879,8 +910,10 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
     }
 
     override fun scrollToMessageIfPossible(timestamp: Long) {
-        val lastSeenItemPosition = adapter.getItemPositionForTimestamp(timestamp) ?: return
-        conversationRecyclerView.scrollToPosition(lastSeenItemPosition)
+        if (timestamp <= 0L) { return }
+        SimpleTask.run(lifecycle, {
+            DatabaseFactory.getMmsSmsDatabase(this).getMessagePositionForTimestamp(threadID, timestamp)
+        }) { p: Int -> moveToMessagePosition(p, null) }
     }
 
     override fun playVoiceMessageAtIndexIfPossible(indexInAdapter: Int) {
@@ -1478,7 +1511,12 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
     }
 
     private fun moveToMessagePosition(position: Int, onMessageNotFound: Runnable?) {
-        if (position >= 0) {
+        if (position >= adapter.itemCount && (adapter.cursor?.count ?: 0) >= conversationLimit) {
+            // The message is outside of the loaded window; scroll to it once the window has been extended
+            pendingScrollPosition = position
+            extendConversationIfNeeded(position)
+        } else if (position >= 0) {
+            pendingScrollPosition = -1
             conversationRecyclerView.scrollToPosition(position)
         } else {
             onMessageNotFound?.run()
@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.conversation.v2
 
 import android.content.Context
 import android.database.Cursor
+import android.util.LruCache
 import android.view.MotionEvent
 import android.view.ViewGroup
 import androidx.core.view.isVisible
@@ -11,7 +12,10 @@ import org.thoughtcrime.securesms.conversation.v2.messages.ControlMessageView
 import org.thoughtcrime.securesms.conversation.v2.messages.VisibleMessageContentViewDelegate
 import org.thoughtcrime.securesms.conversation.v2.messages.VisibleMessageView
 import org.thoughtcrime.securesms.database.CursorRecyclerViewAdapter
+import org.thoughtcrime.securesms.database.CursorSnapshot
 import org.thoughtcrime.securesms.database.DatabaseFactory
+import org.thoughtcrime.securesms.database.MmsSmsColumns
+import org.thoughtcrime.securesms.database.MmsSmsDatabase
 import org.thoughtcrime.securesms.database.model.MessageRecord
 import org.thoughtcrime.securesms.mms.GlideRequests
 
@@ -20,6 +24,9 @@ class ConversationAdapter(context: Context, cursor: Cursor, private val onItemPr
     private val glide: GlideRequests)
     : CursorRecyclerViewAdapter<ViewHolder>(context, cursor) {
     private val messageDB = DatabaseFactory.getMmsSmsDatabase(context)
+    // Records parsed from the current cursor by position, so that binding a message and its neighbours doesn't
+    // parse the same rows over and over again
+    private val messageCache = LruCache<Int, MessageRecord>(maxCachedMessages)
     var selectedItems = mutableSetOf<MessageRecord>()
     private var searchQuery: String? = null
     var visibleMessageContentViewDelegate: VisibleMessageContentViewDelegate? = null
@@ -37,6 +44,32 @@ class ConversationAdapter(context: Context, cursor: Cursor, private val onItemPr
         }
     }
 
+    companion object {
+        private const val maxCachedMessages = 128
+
+        val diffCallback = object : CursorSnapshot.ItemCallback() {
+
+            override fun getItemId(cursor: Cursor): Long {
+                // SMS and MMS IDs overlap, so the transport goes into the lowest bit
+                val id = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID))
+                val isMms = MmsSmsDatabase.MMS_TRANSPORT == cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT))
+                return id * 2 + (if (isMms) 1 else 0)
+            }
+
+            override fun areContentsTheSame(oldSnapshot: CursorSnapshot, oldPosition: Int, newSnapshot: CursorSnapshot, newPosition: Int): Boolean {
+                // Messages are laid out based on the ones around them (e.g. grouping and date breaks), so a row
+                // also has to be rebound when its neighbours change
+                return super.areContentsTheSame(oldSnapshot, oldPosition, newSnapshot, newPosition)
+                    && oldSnapshot.getId(oldPosition - 1) == newSnapshot.getId(newPosition - 1)
+                    && oldSnapshot.getId(oldPosition + 1) == newSnapshot.getId(newPosition + 1)
+            }
+        }
+    }
+
+    init {
+        setHasStableIds(true)
+    }
+
     class VisibleMessageViewHolder(val view: VisibleMessageView) : ViewHolder(view)
     class ControlMessageViewHolder(val view: ControlMessageView) : ViewHolder(view)
 
@@ -92,22 +125,41 @@ class ConversationAdapter(context: Context, cursor: Cursor, private val onItemPr
         super.onItemViewRecycled(viewHolder)
     }
 
+    override fun getItemId(cursor: Cursor): Long {
+        return diffCallback.getItemId(cursor)
+    }
+
+    override fun swapCursor(newCursor: Cursor?): Cursor? {
+        messageCache.evictAll()
+        return super.swapCursor(newCursor)
+    }
+
     private fun getMessage(cursor: Cursor): MessageRecord? {
-        return messageDB.readerFor(cursor).current
+        val position = cursor.position
+        val cachedMessage = messageCache.get(position)
+        if (cachedMessage != null) { return cachedMessage }
+        val message = messageDB.readerFor(cursor).current ?: return null
+        messageCache.put(position, message)
+        return message
+    }
+
+    private fun getMessage(position: Int, cursor: Cursor): MessageRecord? {
+        val cachedMessage = messageCache.get(position)
+        if (cachedMessage != null) { return cachedMessage }
+        if (!cursor.moveToPosition(position)) { return null }
+        return getMessage(cursor)
     }
 
     private fun getMessageBefore(position: Int, cursor: Cursor): MessageRecord? {
         // The message that's visually before the current one is actually after the current
         // one for the cursor because the layout is reversed
-        if (!cursor.moveToPosition(position + 1)) { return null }
-        return messageDB.readerFor(cursor).current
+        return getMessage(position + 1, cursor)
     }
 
     private fun getMessageAfter(position: Int, cursor: Cursor): MessageRecord? {
         // The message that's visually after the current one is actually before the current
         // one for the cursor because the layout is reversed
-        if (!cursor.moveToPosition(position - 1)) { return null }
-        return messageDB.readerFor(cursor).current
+        return getMessage(position - 1, cursor)
     }
 
     fun toggleSelection(message: MessageRecord, position: Int) {
@@ -115,28 +167,6 @@ class ConversationAdapter(context: Context, cursor: Cursor, private val onItemPr
         notifyItemChanged(position)
     }
 
-    fun findLastSeenItemPosition(lastSeenTimestamp: Long): Int? {
-        val cursor = this.cursor
-        if (lastSeenTimestamp <= 0L || cursor == null || !isActiveCursor) return null
-        for (i in 0 until itemCount) {
-            cursor.moveToPosition(i)
-            val message = messageDB.readerFor(cursor).current
-            if (message.isOutgoing || message.dateReceived <= lastSeenTimestamp) { return i }
-        }
-        return null
-    }
-
-    fun getItemPositionForTimestamp(timestamp: Long): Int? {
-        val cursor = this.cursor
-        if (timestamp <= 0L || cursor == null || !isActiveCursor) return null
-        for (i in 0 until itemCount) {
-            cursor.moveToPosition(i)
-            val message = messageDB.readerFor(cursor).current
-            if (message.dateSent == timestamp) { return i }
-        }
-        return null
-    }
-
     fun onSearchQueryUpdated(query: String?) {
         this.searchQuery = query
         notifyDataSetChanged()
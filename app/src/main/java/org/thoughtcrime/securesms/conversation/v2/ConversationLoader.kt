@@ -2,12 +2,25 @@ package org.thoughtcrime.securesms.conversation.v2
 
 import android.content.Context
 import android.database.Cursor
+import org.thoughtcrime.securesms.database.CursorSnapshot
 import org.thoughtcrime.securesms.database.DatabaseFactory
 import org.thoughtcrime.securesms.util.AbstractCursorLoader
 
-class ConversationLoader(private val threadID: Long, context: Context) : AbstractCursorLoader(context) {
+/**
+ * Loads the [limit] most recent messages of a thread. The window is extended by restarting the loader with a larger
+ * limit as the user scrolls back, so opening a thread costs the same regardless of how many messages it holds.
+ */
+class ConversationLoader(private val threadID: Long, private val limit: Int, context: Context) : AbstractCursorLoader(context) {
+
+    companion object {
+        const val pageSize = 100
+    }
 
     override fun getCursor(): Cursor {
-        return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadID)
+        return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadID, 0, limit.toLong())
+    }
+
+    override fun getDiffCallback(): CursorSnapshot.ItemCallback {
+        return ConversationAdapter.diffCallback
     }
-}
\ No newline at end of file
+}
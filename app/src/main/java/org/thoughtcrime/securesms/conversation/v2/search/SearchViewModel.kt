@@ -23,6 +23,7 @@ class SearchViewModel(application: Application) : AndroidViewModel(application)
     private var searchOpen = false
     private var activeQuery: String? = null
     private var activeThreadId: Long = 0
+    private var loadingNextPage = false
     val searchResults: LiveData<SearchResult>
         get() = result
 
@@ -41,16 +42,21 @@ class SearchViewModel(application: Application) : AndroidViewModel(application)
 
     fun onMoveUp() {
         debouncer.clear()
-        val messages = result.value!!.getResults() as CursorList<MessageResult?>
-        val position = Math.min(result.value!!.position + 1, messages.size - 1)
-        result.setValue(SearchResult(messages, position), false)
+        val current = result.value!!
+        val messages = current.getResults()
+        if (current.position + 1 >= messages.size && current.hasMore) {
+            loadNextPage(current)
+            return
+        }
+        val position = Math.min(current.position + 1, messages.size - 1)
+        result.setValue(SearchResult(current.pages, position, current.hasMore), false)
     }
 
     fun onMoveDown() {
         debouncer.clear()
-        val messages = result.value!!.getResults() as CursorList<MessageResult?>
-        val position = Math.max(result.value!!.position - 1, 0)
-        result.setValue(SearchResult(messages, position), false)
+        val current = result.value!!
+        val position = Math.max(current.position - 1, 0)
+        result.setValue(SearchResult(current.pages, position, current.hasMore), false)
     }
 
     fun onSearchOpened() {
@@ -61,7 +67,9 @@ class SearchViewModel(application: Application) : AndroidViewModel(application)
     fun onSearchClosed() {
         searchOpen = false
         activeQuery = null
+        loadingNextPage = false
         debouncer.clear()
+        searchRepository.cancelPendingQueries()
         result.close()
     }
 
@@ -73,12 +81,13 @@ class SearchViewModel(application: Application) : AndroidViewModel(application)
     private fun updateQuery(query: String, threadId: Long) {
         activeQuery = query
         activeThreadId = threadId
+        loadingNextPage = false
         debouncer.publish {
             firstSearch = false
             searchRepository.query(query, threadId) { messages: CursorList<MessageResult?> ->
                 runOnMain {
                     if (searchOpen && query == activeQuery) {
-                        result.setValue(SearchResult(messages, 0))
+                        result.setValue(SearchResult(listOf(messages), 0, messages.size == SearchRepository.PAGE_SIZE))
                     } else {
                         messages.close()
                     }
@@ -87,14 +96,51 @@ class SearchViewModel(application: Application) : AndroidViewModel(application)
         }
     }
 
-    class SearchResult(private val results: CursorList<MessageResult?>, val position: Int) : Closeable {
+    private fun loadNextPage(current: SearchResult) {
+        val query = activeQuery ?: return
+        val last = current.getResults().lastOrNull() ?: return
+        if (loadingNextPage) { return }
+        loadingNextPage = true
+        searchRepository.queryNextPage(query, activeThreadId, last) { page: CursorList<MessageResult?> ->
+            runOnMain {
+                val latest = result.value
+                if (searchOpen && query == activeQuery && latest != null && latest.pages === current.pages) {
+                    loadingNextPage = false
+                    val messages = current.pages + page
+                    val position = if (page.isEmpty()) latest.position else latest.position + 1
+                    result.setValue(SearchResult(messages, position, page.size == SearchRepository.PAGE_SIZE), false)
+                } else {
+                    page.close()
+                }
+            }
+        }
+    }
+
+    /**
+     * @param pages The pages of results loaded so far, newest messages first.
+     * @param hasMore Whether there may be more results after the last page.
+     */
+    class SearchResult(val pages: List<CursorList<MessageResult?>>, val position: Int, val hasMore: Boolean) : Closeable {
+        private val results = object : AbstractList<MessageResult?>() {
+            override val size: Int
+                get() = pages.sumBy { it.size }
+
+            override fun get(index: Int): MessageResult? {
+                var pageIndex = index
+                for (page in pages) {
+                    if (pageIndex < page.size) { return page[pageIndex] }
+                    pageIndex -= page.size
+                }
+                throw IndexOutOfBoundsException("Index: $index, size: $size")
+            }
+        }
 
         fun getResults(): List<MessageResult?> {
             return results
         }
 
         override fun close() {
-            results.close()
+            pages.forEach { it.close() }
         }
     }
 
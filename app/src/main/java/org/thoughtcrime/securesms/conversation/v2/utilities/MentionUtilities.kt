@@ -9,7 +9,6 @@ import android.text.style.StyleSpan
 import android.util.Range
 import androidx.core.content.res.ResourcesCompat
 import network.loki.messenger.R
-import nl.komponents.kovenant.combine.Tuple2
 import org.session.libsession.messaging.contacts.Contact
 import org.thoughtcrime.securesms.database.DatabaseFactory
 import org.session.libsession.utilities.TextSecurePreferences
@@ -17,6 +16,7 @@ import org.thoughtcrime.securesms.util.UiModeUtilities
 import java.util.regex.Pattern
 
 object MentionUtilities {
+    private val pattern = Pattern.compile("@[0-9a-fA-F]*")
 
     @JvmStatic
     fun highlightMentions(text: CharSequence, threadID: Long, context: Context): String {
@@ -25,48 +25,46 @@ object MentionUtilities {
 
     @JvmStatic
     fun highlightMentions(text: CharSequence, isOutgoingMessage: Boolean, threadID: Long, context: Context): SpannableString {
-        @Suppress("NAME_SHADOWING") var text = text
-        val threadDB = DatabaseFactory.getThreadDatabase(context)
-        val isOpenGroup = threadDB.getRecipientForThreadId(threadID)?.isOpenGroupRecipient ?: false
-        val pattern = Pattern.compile("@[0-9a-fA-F]*")
-        var matcher = pattern.matcher(text)
-        val mentions = mutableListOf<Tuple2<Range<Int>, String>>()
-        var startIndex = 0
+        val matcher = pattern.matcher(text)
+        if (!matcher.find()) { return SpannableString(text) }
+        // The thread's address is cached by ThreadDatabase, which drops it when the thread is deleted
+        val isOpenGroup = DatabaseFactory.getThreadDatabase(context).getRecipientForThreadId(threadID)?.isOpenGroupRecipient ?: false
+        val contactContext = if (isOpenGroup) Contact.ContactContext.OPEN_GROUP else Contact.ContactContext.REGULAR
+        val contactDB = DatabaseFactory.getSessionContactDatabase(context)
         val userPublicKey = TextSecurePreferences.getLocalNumber(context)!!
-        if (matcher.find(startIndex)) {
-            while (true) {
-                val publicKey = text.subSequence(matcher.start() + 1, matcher.end()).toString() // +1 to get rid of the @
-                val userDisplayName: String? = if (publicKey.equals(userPublicKey, ignoreCase = true)) {
-                    TextSecurePreferences.getProfileName(context)
-                } else {
-                    val contact = DatabaseFactory.getSessionContactDatabase(context).getContactWithSessionID(publicKey)
-                    @Suppress("NAME_SHADOWING") val context = if (isOpenGroup) Contact.ContactContext.OPEN_GROUP else Contact.ContactContext.REGULAR
-                    contact?.displayName(context)
-                }
-                if (userDisplayName != null) {
-                    text = text.subSequence(0, matcher.start()).toString() + "@" + userDisplayName + text.subSequence(matcher.end(), text.length)
-                    val endIndex = matcher.start() + 1 + userDisplayName.length
-                    startIndex = endIndex
-                    mentions.add(Tuple2(Range.create(matcher.start(), endIndex), publicKey))
-                } else {
-                    startIndex = matcher.end()
-                }
-                matcher = pattern.matcher(text)
-                if (!matcher.find(startIndex)) { break }
+        // Replace the mentions in a single pass, recording where each one ends up in the result
+        val builder = StringBuilder(text.length)
+        val mentions = mutableListOf<Range<Int>>()
+        var lastEnd = 0
+        do {
+            val publicKey = text.subSequence(matcher.start() + 1, matcher.end()).toString() // +1 to get rid of the @
+            if (publicKey.isEmpty()) { continue }
+            val userDisplayName: String? = if (publicKey.equals(userPublicKey, ignoreCase = true)) {
+                TextSecurePreferences.getProfileName(context)
+            } else {
+                contactDB.getContactDisplayName(publicKey, contactContext)
+            }
+            if (userDisplayName != null) {
+                builder.append(text, lastEnd, matcher.start())
+                val startIndex = builder.length
+                builder.append('@').append(userDisplayName)
+                mentions.add(Range.create(startIndex, builder.length))
+                lastEnd = matcher.end()
             }
+        } while (matcher.find())
+        builder.append(text, lastEnd, text.length)
+        val result = SpannableString(builder)
+        if (mentions.isEmpty()) { return result }
+        val colorID = if (isOutgoingMessage) {
+            if (UiModeUtilities.isDayUiMode(context)) R.color.white else R.color.black
+        } else {
+            R.color.accent
         }
-        val result = SpannableString(text)
-        val isLightMode = UiModeUtilities.isDayUiMode(context)
+        val color = ResourcesCompat.getColor(context.resources, colorID, context.theme)
         for (mention in mentions) {
-            val colorID = if (isOutgoingMessage) {
-                if (isLightMode) R.color.white else R.color.black
-            } else {
-                R.color.accent
-            }
-            val color = ResourcesCompat.getColor(context.resources, colorID, context.theme)
-            result.setSpan(ForegroundColorSpan(color), mention.first.lower, mention.first.upper, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE)
-            result.setSpan(StyleSpan(Typeface.BOLD), mention.first.lower, mention.first.upper, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE)
+            result.setSpan(ForegroundColorSpan(color), mention.lower, mention.upper, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE)
+            result.setSpan(StyleSpan(Typeface.BOLD), mention.lower, mention.upper, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE)
         }
         return result
     }
-}
\ No newline at end of file
+}
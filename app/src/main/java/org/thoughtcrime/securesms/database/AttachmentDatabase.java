@@ -66,6 +66,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -286,6 +287,20 @@ public class AttachmentDatabase extends Database {
     notifyAttachmentListeners();
   }
 
+  void deleteAttachmentsForMessages(@NonNull Collection<Long> mmsIds) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    String         where    = MMS_ID + " IN (" + TextUtils.join(",", mmsIds) + ")";
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, CONTENT_TYPE}, where, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        deleteAttachmentOnDisk(cursor.getString(0), cursor.getString(1), cursor.getString(2));
+      }
+    }
+
+    database.delete(TABLE_NAME, where, null);
+    notifyAttachmentListeners();
+  }
+
   public void deleteAttachment(@NonNull AttachmentId id) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
 
@@ -22,6 +22,7 @@ import android.database.DataSetObserver;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.recyclerview.widget.RecyclerView.ViewHolder;
 import android.view.View;
@@ -39,8 +40,9 @@ public abstract class CursorRecyclerViewAdapter<VH extends RecyclerView.ViewHold
   @VisibleForTesting static final long HEADER_ID   = Long.MIN_VALUE;
   @VisibleForTesting static final long FOOTER_ID   = Long.MIN_VALUE + 1;
 
-  private           Cursor  cursor;
-  private           boolean valid;
+  private           Cursor         cursor;
+  private @Nullable CursorSnapshot snapshot;
+  private           boolean        valid;
   private @Nullable View    header;
   private @Nullable View    footer;
 
@@ -110,10 +112,34 @@ public abstract class CursorRecyclerViewAdapter<VH extends RecyclerView.ViewHold
     }
 
     valid = cursor != null;
-    notifyDataSetChanged();
+
+    DiffUtil.DiffResult diff = null;
+    if (newCursor instanceof DiffCursor) {
+      DiffCursor diffCursor = (DiffCursor) newCursor;
+      diff     = diffCursor.getDiffFrom(snapshot);
+      snapshot = diffCursor.getSnapshot();
+    } else {
+      snapshot = null;
+    }
+
+    if (diff != null && !hasHeaderView() && getFastAccessSize() == 0) {
+      diff.dispatchUpdatesTo(this);
+    } else {
+      notifyDataSetChanged();
+    }
+
     return oldCursor;
   }
 
+  /**
+   * @return The adapter position of the row with the given ID, or -1 if it isn't known without
+   *         going through the cursor.
+   */
+  protected int getPositionForItemId(long id) {
+    if (snapshot == null || hasHeaderView() || getFastAccessSize() != 0) return -1;
+    return snapshot.getPosition(id);
+  }
+
   @Override
   public int getItemCount() {
     if (!isActiveCursor()) return 0;
@@ -0,0 +1,122 @@
+package org.thoughtcrime.securesms.database;
+
+import android.database.Cursor;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+
+import java.util.Arrays;
+
+/**
+ * The identity and a hash of the content of every row of a cursor, taken in the background so that
+ * the changes between two cursors can be worked out without touching the one on screen.
+ */
+public class CursorSnapshot {
+
+  public static final long NO_ID = Long.MIN_VALUE;
+
+  private final long[] ids;
+  private final long[] contentHashes;
+
+  private CursorSnapshot(long[] ids, long[] contentHashes) {
+    this.ids           = ids;
+    this.contentHashes = contentHashes;
+  }
+
+  public static @NonNull CursorSnapshot create(@NonNull Cursor cursor, @NonNull ItemCallback callback) {
+    int    count         = cursor.getCount();
+    long[] ids           = new long[count];
+    long[] contentHashes = new long[count];
+
+    for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+      ids[i]           = callback.getItemId(cursor);
+      contentHashes[i] = callback.getContentHash(cursor);
+    }
+
+    return new CursorSnapshot(ids, contentHashes);
+  }
+
+  public int size() {
+    return ids.length;
+  }
+
+  /**
+   * @return The ID of the row at the given position, or {@link #NO_ID} if there is no such row.
+   */
+  public long getId(int position) {
+    return position >= 0 && position < ids.length ? ids[position] : NO_ID;
+  }
+
+  public long getContentHash(int position) {
+    return contentHashes[position];
+  }
+
+  public int getPosition(long id) {
+    for (int i = 0; i < ids.length; i++) {
+      if (ids[i] == id) return i;
+    }
+    return -1;
+  }
+
+  public @NonNull DiffUtil.DiffResult diff(@NonNull CursorSnapshot newSnapshot, @NonNull ItemCallback callback) {
+    return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+      @Override
+      public int getOldListSize() {
+        return size();
+      }
+
+      @Override
+      public int getNewListSize() {
+        return newSnapshot.size();
+      }
+
+      @Override
+      public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+        return getId(oldItemPosition) == newSnapshot.getId(newItemPosition);
+      }
+
+      @Override
+      public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+        return callback.areContentsTheSame(CursorSnapshot.this, oldItemPosition, newSnapshot, newItemPosition);
+      }
+    });
+  }
+
+  /**
+   * Describes how the rows of a cursor are identified and compared. Implementations are called from
+   * a background thread and shouldn't hold on to anything but the cursor they're given.
+   */
+  public static abstract class ItemCallback {
+
+    public long getItemId(@NonNull Cursor cursor) {
+      return cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
+    }
+
+    /**
+     * Hashes every column of the current row, so that any change to it counts as a change of content.
+     */
+    public long getContentHash(@NonNull Cursor cursor) {
+      long hash = 17;
+
+      for (int i = 0; i < cursor.getColumnCount(); i++) {
+        long value;
+
+        switch (cursor.getType(i)) {
+          case Cursor.FIELD_TYPE_INTEGER: value = cursor.getLong(i);                                  break;
+          case Cursor.FIELD_TYPE_FLOAT:   value = Double.doubleToLongBits(cursor.getDouble(i));       break;
+          case Cursor.FIELD_TYPE_STRING:  value = cursor.getString(i).hashCode();                     break;
+          case Cursor.FIELD_TYPE_BLOB:    value = Arrays.hashCode(cursor.getBlob(i));                 break;
+          default:                        value = 0;
+        }
+
+        hash = 1_000_003 * hash + value;
+      }
+
+      return hash;
+    }
+
+    public boolean areContentsTheSame(@NonNull CursorSnapshot oldSnapshot, int oldPosition, @NonNull CursorSnapshot newSnapshot, int newPosition) {
+      return oldSnapshot.getContentHash(oldPosition) == newSnapshot.getContentHash(newPosition);
+    }
+  }
+}
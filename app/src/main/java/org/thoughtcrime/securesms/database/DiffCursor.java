@@ -0,0 +1,47 @@
+package org.thoughtcrime.securesms.database;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
+
+/**
+ * A cursor that carries its {@link CursorSnapshot} along with the changes from the snapshot of the
+ * cursor loaded before it, so that {@link CursorRecyclerViewAdapter} can dispatch just those changes.
+ */
+public class DiffCursor extends CursorWrapper {
+
+  private final          CursorSnapshot      snapshot;
+  private final @Nullable CursorSnapshot      previousSnapshot;
+  private final @Nullable DiffUtil.DiffResult diff;
+
+  private DiffCursor(@NonNull Cursor cursor, @NonNull CursorSnapshot snapshot, @Nullable CursorSnapshot previousSnapshot, @Nullable DiffUtil.DiffResult diff) {
+    super(cursor);
+    this.snapshot         = snapshot;
+    this.previousSnapshot = previousSnapshot;
+    this.diff             = diff;
+  }
+
+  /**
+   * Snapshots the given cursor and diffs it against the previous snapshot. Should be called off the main thread.
+   */
+  public static @NonNull DiffCursor create(@NonNull Cursor cursor, @Nullable CursorSnapshot previousSnapshot, @NonNull CursorSnapshot.ItemCallback callback) {
+    CursorSnapshot      snapshot = CursorSnapshot.create(cursor, callback);
+    DiffUtil.DiffResult diff     = previousSnapshot != null ? previousSnapshot.diff(snapshot, callback) : null;
+
+    return new DiffCursor(cursor, snapshot, previousSnapshot, diff);
+  }
+
+  public @NonNull CursorSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * @return The changes from the given snapshot to this cursor, or null if they weren't worked out against it.
+   */
+  public @Nullable DiffUtil.DiffResult getDiffFrom(@Nullable CursorSnapshot currentSnapshot) {
+    return currentSnapshot != null && currentSnapshot == previousSnapshot ? diff : null;
+  }
+}
@@ -4,6 +4,8 @@ package org.thoughtcrime.securesms.database;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.text.TextUtils;
+
 import androidx.annotation.NonNull;
 
 import net.sqlcipher.database.SQLiteDatabase;
@@ -12,6 +14,7 @@ import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 
 import org.session.libsession.utilities.Address;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -97,6 +100,11 @@ public class GroupReceiptDatabase extends Database {
     db.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {String.valueOf(mmsId)});
   }
 
+  void deleteRowsForMessages(@NonNull Collection<Long> mmsIds) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.delete(TABLE_NAME, MMS_ID + " IN (" + TextUtils.join(",", mmsIds) + ")", null);
+  }
+
   void deleteAllRows() {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, null, null);
@@ -93,6 +93,52 @@ class LokiMessageDatabase(context: Context, helper: SQLCipherOpenHelper) : Datab
         }
     }
 
+    /**
+     * Resolves the given server IDs of an open group thread in a single query.
+     *
+     * @return The ID of each message found along with whether it's an SMS.
+     */
+    fun getMessageIDs(serverIDs: Collection<Long>, threadID: Long): List<Pair<Long, Boolean>> {
+        if (serverIDs.isEmpty()) { return listOf() }
+        val database = databaseHelper.readableDatabase
+        val query = "SELECT m.$messageID, m.$messageType FROM $messageThreadMappingTable AS t " +
+            "INNER JOIN $messageIDTable AS m ON m.$messageID = t.$messageID AND m.${Companion.serverID} = t.${Companion.serverID} " +
+            "WHERE t.${Companion.threadID} = ? AND t.${Companion.serverID} IN (${serverIDs.joinToString(",")})"
+        val result = mutableListOf<Pair<Long, Boolean>>()
+        database.rawQuery(query, arrayOf(threadID.toString())).use { cursor ->
+            while (cursor.moveToNext()) {
+                result.add(cursor.getLong(0) to (cursor.getInt(1) == SMS_TYPE))
+            }
+        }
+        return result
+    }
+
+    /**
+     * Removes the server ID, thread mapping and server hash entries of the given messages of an open group thread.
+     */
+    fun deleteMessages(smsMessageIDs: Collection<Long>, mmsMessageIDs: Collection<Long>, serverIDs: Collection<Long>, threadID: Long) {
+        val database = databaseHelper.writableDatabase
+        database.beginTransaction()
+        try {
+            if (smsMessageIDs.isNotEmpty()) {
+                database.delete(messageIDTable, "$messageID IN (${smsMessageIDs.joinToString(",")}) AND $messageType = $SMS_TYPE", null)
+            }
+            if (mmsMessageIDs.isNotEmpty()) {
+                database.delete(messageIDTable, "$messageID IN (${mmsMessageIDs.joinToString(",")}) AND $messageType = $MMS_TYPE", null)
+            }
+            if (serverIDs.isNotEmpty()) {
+                database.delete(messageThreadMappingTable, "${Companion.threadID} = ? AND ${Companion.serverID} IN (${serverIDs.joinToString(",")})", arrayOf(threadID.toString()))
+            }
+            val messageIDs = smsMessageIDs + mmsMessageIDs
+            if (messageIDs.isNotEmpty()) {
+                database.delete(messageHashTable, "$messageID IN (${messageIDs.joinToString(",")})", null)
+            }
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
+        }
+    }
+
     override fun setServerID(messageID: Long, serverID: Long, isSms: Boolean) {
         val database = databaseHelper.writableDatabase
         val contentValues = ContentValues(3)
@@ -5,6 +5,8 @@ import android.content.Context;
 import android.database.Cursor;
 import android.text.TextUtils;
 
+import androidx.annotation.NonNull;
+
 import net.sqlcipher.database.SQLiteDatabase;
 
 import org.session.libsession.utilities.Document;
@@ -19,8 +21,11 @@ import org.session.libsignal.utilities.JsonUtil;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 public abstract class MessagingDatabase extends Database implements MmsSmsColumns {
 
@@ -32,6 +37,8 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
 
   protected abstract String getTableName();
 
+  protected abstract String getDateReceivedColumnName();
+
   public abstract void markExpireStarted(long messageId);
   public abstract void markExpireStarted(long messageId, long startTime);
 
@@ -42,6 +49,91 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
 
   public abstract boolean deleteMessage(long messageId);
 
+  /**
+   * Deletes messages that all belong to the given thread in one transaction, updating the thread once.
+   *
+   * @return true if the thread was deleted as a result.
+   */
+  public abstract boolean deleteMessages(long threadId, @NonNull Collection<Long> messageIds);
+
+  protected void setExpireStarted(long messageId, long startedAtTimestamp) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.execSQL("UPDATE " + getTableName() + " SET " + EXPIRE_STARTED + " = ?, " +
+                     EXPIRES_AT + " = CASE WHEN " + EXPIRES_IN + " > 0 THEN ? + " + EXPIRES_IN + " ELSE 0 END " +
+                     "WHERE " + ID + " = ?",
+                     new Object[] { startedAtTimestamp, startedAtTimestamp, messageId });
+  }
+
+  public void setExpiresAt(long messageId, long expiresAtTimestamp) {
+    ContentValues contentValues = new ContentValues();
+    contentValues.put(EXPIRES_AT, expiresAtTimestamp);
+
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.update(getTableName(), contentValues, ID_WHERE, new String[] { String.valueOf(messageId) });
+  }
+
+  /**
+   * IDs are reused once the newest message has been deleted, so the date received tells whether an ID
+   * still refers to the same message.
+   *
+   * @return The date received of the unread messages that haven't been dismissed from the notifications,
+   *         up to and including the given ID, keyed by message ID.
+   */
+  public @NonNull Map<Long, Long> getUnreadMessageDates(long maxMessageId) {
+    Map<Long, Long> result   = new HashMap<>();
+    SQLiteDatabase  database = databaseHelper.getReadableDatabase();
+    String[]        columns  = new String[] { ID, getDateReceivedColumnName() };
+    String          where    = READ + " = 0 AND " + NOTIFIED + " = 0 AND " + ID + " <= ?";
+
+    try (Cursor cursor = database.query(getTableName(), columns, where, new String[] { String.valueOf(maxMessageId) }, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        result.put(cursor.getLong(0), cursor.getLong(1));
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * @return The IDs of the messages that expire at or before the given time, grouped by thread ID.
+   */
+  public @NonNull Map<Long, List<Long>> getMessagesExpiringBefore(long timestamp) {
+    Map<Long, List<Long>> result   = new HashMap<>();
+    SQLiteDatabase        database = databaseHelper.getReadableDatabase();
+    String                where    = EXPIRES_AT + " > 0 AND " + EXPIRES_AT + " <= ?";
+
+    try (Cursor cursor = database.query(getTableName(), new String[] { ID, THREAD_ID }, where, new String[] { String.valueOf(timestamp) }, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        long threadId = cursor.getLong(1);
+        List<Long> messageIds = result.get(threadId);
+
+        if (messageIds == null) {
+          messageIds = new ArrayList<>();
+          result.put(threadId, messageIds);
+        }
+
+        messageIds.add(cursor.getLong(0));
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * @return The earliest time at which a message expires, or 0 if no message is expiring.
+   */
+  public long getNextExpirationTime() {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+
+    try (Cursor cursor = database.rawQuery("SELECT MIN(" + EXPIRES_AT + ") FROM " + getTableName() + " WHERE " + EXPIRES_AT + " > 0", null)) {
+      if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+        return cursor.getLong(0);
+      }
+    }
+
+    return 0;
+  }
+
   public void addMismatchedIdentity(long messageId, Address address, IdentityKey identityKey) {
     try {
       addToDocument(messageId, MISMATCHED_IDENTITIES,
@@ -72,6 +72,8 @@ import org.thoughtcrime.securesms.mms.SlideDeck;
 import java.io.Closeable;
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -136,6 +138,14 @@ public class MmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
   };
 
+  public static String[] getCreateExpiresAtCommands() {
+    return new String[] {
+      "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + EXPIRES_AT + " INTEGER DEFAULT 0;",
+      "UPDATE " + TABLE_NAME + " SET " + EXPIRES_AT + " = " + EXPIRE_STARTED + " + " + EXPIRES_IN + " WHERE " + EXPIRE_STARTED + " > 0 AND " + EXPIRES_IN + " > 0;",
+      "CREATE INDEX IF NOT EXISTS mms_expires_at_index ON " + TABLE_NAME + " (" + EXPIRES_AT + ") WHERE " + EXPIRES_AT + " > 0;"
+    };
+  }
+
   private static final String[] MMS_PROJECTION = new String[] {
       MmsDatabase.TABLE_NAME + "." + ID + " AS " + ID,
       THREAD_ID, DATE_SENT + " AS " + NORMALIZED_DATE_SENT,
@@ -186,6 +196,10 @@ public class MmsDatabase extends MessagingDatabase {
     return TABLE_NAME;
   }
 
+  protected String getDateReceivedColumnName() {
+    return DATE_RECEIVED;
+  }
+
   public int getMessageCountForThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     Cursor cursor     = null;
@@ -341,9 +355,9 @@ public class MmsDatabase extends MessagingDatabase {
     return cursor;
   }
 
-  public Reader getExpireStartedMessages() {
-    String where = EXPIRE_STARTED + " > 0";
-    return readerFor(rawQuery(where, null));
+  public Reader getUnreadMessagesAfter(long messageId) {
+    String where = READ + " = 0 AND " + NOTIFIED + " = 0 AND " + TABLE_NAME + "." + ID + " > ?";
+    return readerFor(rawQuery(where, new String[] {String.valueOf(messageId)}));
   }
 
   private void updateMailboxBitmask(long id, long maskOff, long maskOn, Optional<Long> threadId) {
@@ -415,11 +429,7 @@ public class MmsDatabase extends MessagingDatabase {
 
   @Override
   public void markExpireStarted(long messageId, long startedTimestamp) {
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(EXPIRE_STARTED, startedTimestamp);
-
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(messageId)});
+    setExpireStarted(messageId, startedTimestamp);
 
     long threadId = getThreadIdForMessage(messageId);
     notifyConversationListeners(threadId);
@@ -923,6 +933,18 @@ public class MmsDatabase extends MessagingDatabase {
     reader.close();
   }
 
+  /**
+   * Marks the quotes in the given thread that refer to any of the given sent timestamps as missing.
+   */
+  void setQuotesMissing(long threadId, @NonNull Collection<Long> quotedTimestamps) {
+    if (quotedTimestamps.isEmpty()) return;
+
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.execSQL("UPDATE " + TABLE_NAME + " SET " + QUOTE_MISSING + " = 1 WHERE " + THREAD_ID + " = ? AND " +
+                     QUOTE_ID + " IN (" + TextUtils.join(",", quotedTimestamps) + ")",
+                     new Object[] { threadId });
+  }
+
   @Override
   public boolean deleteMessage(long messageId) {
     long threadId = getThreadIdForMessage(messageId);
@@ -947,6 +969,62 @@ public class MmsDatabase extends MessagingDatabase {
     return threadDeleted;
   }
 
+  @Override
+  public boolean deleteMessages(long threadId, @NonNull Collection<Long> messageIds) {
+    if (messageIds.isEmpty()) return false;
+
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    boolean        threadDeleted;
+
+    database.beginTransaction();
+    try {
+      deleteMessageRows(threadId, messageIds);
+      threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    deleteAttachmentsForMessages(messageIds);
+    notifyConversationListeners(threadId);
+    return threadDeleted;
+  }
+
+  /**
+   * Deletes the given messages without updating their thread, deleting their attachments or notifying listeners.
+   */
+  /*package*/ void deleteMessageRows(long threadId, @NonNull Collection<Long> messageIds) {
+    if (messageIds.isEmpty()) return;
+
+    SQLiteDatabase database   = databaseHelper.getWritableDatabase();
+    String         where      = ID + " IN (" + TextUtils.join(",", messageIds) + ")";
+    List<Long>     timestamps = new ArrayList<>(messageIds.size());
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] { DATE_SENT }, where, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        timestamps.add(cursor.getLong(0));
+      }
+    }
+
+    setQuotesMissing(threadId, timestamps);
+    DatabaseFactory.getGroupReceiptDatabase(context).deleteRowsForMessages(messageIds);
+    database.delete(TABLE_NAME, where, null);
+  }
+
+  /**
+   * Deletes the attachments of messages removed with {@link #deleteMessageRows} in the background.
+   */
+  /*package*/ void deleteAttachmentsForMessages(@NonNull Collection<Long> messageIds) {
+    if (messageIds.isEmpty()) return;
+
+    List<Long>         deletedIds         = new ArrayList<>(messageIds);
+    AttachmentDatabase attachmentDatabase = DatabaseFactory.getAttachmentDatabase(context);
+    ThreadUtils.queue(() -> attachmentDatabase.deleteAttachmentsForMessages(deletedIds));
+
+    notifyStickerListeners();
+    notifyStickerPackListeners();
+  }
+
   public void deleteThread(long threadId) {
     Set<Long> singleThreadSet = new HashSet<>();
     singleThreadSet.add(threadId);
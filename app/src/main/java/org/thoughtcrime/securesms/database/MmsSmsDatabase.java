@@ -31,7 +31,9 @@ import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 public class MmsSmsDatabase extends Database {
@@ -142,6 +144,30 @@ public class MmsSmsDatabase extends Database {
     }
   }
 
+  /**
+   * @return The distinct senders of the given number of most recent messages in the thread, most recent first.
+   */
+  public @NonNull Set<String> getRecentSenders(long threadId, int limit) {
+    String query = "SELECT " + MmsSmsColumns.ADDRESS + " FROM (" +
+                     "SELECT " + MmsSmsColumns.ADDRESS + ", " + SmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT +
+                     " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ?" +
+                     " UNION ALL " +
+                     "SELECT " + MmsSmsColumns.ADDRESS + ", " + MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT +
+                     " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ?" +
+                   ") ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC LIMIT " + limit;
+    String[]    args    = new String[] { String.valueOf(threadId), String.valueOf(threadId) };
+    Set<String> senders = new LinkedHashSet<>();
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, args)) {
+      while (cursor != null && cursor.moveToNext()) {
+        String address = cursor.getString(0);
+        if (address != null) senders.add(address);
+      }
+    }
+
+    return senders;
+  }
+
   public Cursor getUnread() {
     String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
     String selection       = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0";
@@ -167,6 +193,34 @@ public class MmsSmsDatabase extends Database {
     return count;
   }
 
+  /**
+   * Deletes messages from both tables of a thread in one transaction, updating and notifying the thread once.
+   *
+   * @return Whether the thread was deleted because no messages were left in it.
+   */
+  public boolean deleteMessages(long threadId, @NonNull Collection<Long> smsMessageIds, @NonNull Collection<Long> mmsMessageIds) {
+    if (smsMessageIds.isEmpty() && mmsMessageIds.isEmpty()) return false;
+
+    SmsDatabase    smsDatabase = DatabaseFactory.getSmsDatabase(context);
+    MmsDatabase    mmsDatabase = DatabaseFactory.getMmsDatabase(context);
+    SQLiteDatabase database    = databaseHelper.getWritableDatabase();
+    boolean        threadDeleted;
+
+    database.beginTransaction();
+    try {
+      smsDatabase.deleteMessageRows(threadId, smsMessageIds);
+      mmsDatabase.deleteMessageRows(threadId, mmsMessageIds);
+      threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    mmsDatabase.deleteAttachmentsForMessages(mmsMessageIds);
+    notifyConversationListeners(threadId);
+    return threadDeleted;
+  }
+
   public void incrementDeliveryReceiptCount(SyncMessageId syncMessageId, long timestamp) {
     DatabaseFactory.getSmsDatabase(context).incrementReceiptCount(syncMessageId, true, false);
     DatabaseFactory.getMmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, true, false);
@@ -217,6 +271,42 @@ public class MmsSmsDatabase extends Database {
     return -1;
   }
 
+  public int getMessagePositionForTimestamp(long threadId, long sentTimestamp) {
+    String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
+    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+
+    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_SENT }, selection, order, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        if (cursor.getLong(0) == sentTimestamp) {
+          return cursor.getPosition();
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return The position of the newest message that's either outgoing or was received at or before
+   * {@code lastSeenTimestamp}, in the same order as {@link #getConversation(long, long, long)}.
+   */
+  public int getLastSeenMessagePosition(long threadId, long lastSeenTimestamp) {
+    String   order      = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
+    String   selection  = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String[] projection = { MmsSmsColumns.NORMALIZED_DATE_RECEIVED, SmsDatabase.TYPE, MmsDatabase.MESSAGE_BOX, TRANSPORT };
+
+    try (Cursor cursor = queryTables(projection, selection, order, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        long    type       = MMS_TRANSPORT.equals(cursor.getString(3)) ? cursor.getLong(2) : cursor.getLong(1);
+        boolean isOutgoing = MmsSmsColumns.Types.isOutgoingMessageType(type);
+
+        if (isOutgoing || cursor.getLong(0) <= lastSeenTimestamp) {
+          return cursor.getPosition();
+        }
+      }
+    }
+    return -1;
+  }
+
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
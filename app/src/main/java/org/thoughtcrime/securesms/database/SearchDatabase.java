@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.annimon.stream.Stream;
 
@@ -11,6 +12,7 @@ import net.sqlcipher.database.SQLiteDatabase;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.session.libsession.utilities.Util;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -27,6 +29,9 @@ public class SearchDatabase extends Database {
   public static final String SNIPPET              = "snippet";
   public static final String CONVERSATION_ADDRESS = "conversation_address";
   public static final String MESSAGE_ADDRESS      = "message_address";
+  public static final String MESSAGE_ID           = "message_id";
+  public static final String IS_MMS               = "is_mms";
+  public static final String RANK                 = "search_rank";
 
   public static final String[] CREATE_TABLE = {
       "CREATE VIRTUAL TABLE " + SMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", " + THREAD_ID + " UNINDEXED, content=" + SmsDatabase.TABLE_NAME + ", content_rowid=" + SmsDatabase.ID + ");",
@@ -57,77 +62,127 @@ public class SearchDatabase extends Database {
           "END;"
   };
 
-  private static final String MESSAGES_QUERY =
-      "SELECT " +
-        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
-        MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
-        "snippet(" + SMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-        SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        SMS_FTS_TABLE_NAME + "."  + THREAD_ID + " " +
-      "FROM " + SmsDatabase.TABLE_NAME + " " +
-      "INNER JOIN " + SMS_FTS_TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " " +
-      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? " +
-      "UNION ALL " +
-      "SELECT " +
-        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
-        MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
-        "snippet(" + MMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-        MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        MMS_FTS_TABLE_NAME + "." + THREAD_ID + " " +
-      "FROM " + MmsDatabase.TABLE_NAME + " " +
-      "INNER JOIN " + MMS_FTS_TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " " +
-      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? " +
-      "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
-      "LIMIT 500";
-
-  private static final String MESSAGES_FOR_THREAD_QUERY =
-      "SELECT " +
-          ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
-          MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
-          "snippet(" + SMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-          SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-          SMS_FTS_TABLE_NAME + "." + THREAD_ID + " " +
-        "FROM " + SmsDatabase.TABLE_NAME + " " +
-        "INNER JOIN " + SMS_FTS_TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " " +
-        "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-        "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? AND " + SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = ? " +
-        "UNION ALL " +
-        "SELECT " +
-          ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
-          MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
-          "snippet(" + MMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-          MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-          MMS_FTS_TABLE_NAME + "." + THREAD_ID + " " +
-        "FROM " + MmsDatabase.TABLE_NAME + " " +
-        "INNER JOIN " + MMS_FTS_TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " " +
-        "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-        "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? AND " + MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = ? " +
-        "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
-        "LIMIT 500";
+  /** Newest first. Ties are broken by message type and ID so that pages don't overlap. */
+  private static final String DATE_ORDER =
+      MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + IS_MMS + " DESC, " + MESSAGE_ID + " DESC";
+
+  private static final String DATE_KEYSET =
+      "(" + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " < CAST(? AS INTEGER) OR (" + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " = CAST(? AS INTEGER) AND " +
+      "(" + IS_MMS + " < CAST(? AS INTEGER) OR (" + IS_MMS + " = CAST(? AS INTEGER) AND " + MESSAGE_ID + " < CAST(? AS INTEGER)))))";
+
+  /** Best match first, bm25() is lower for better matches. */
+  private static final String RANK_ORDER = RANK + " ASC, " + DATE_ORDER;
+
+  private static final String RANK_KEYSET =
+      "(" + RANK + " > CAST(? AS REAL) OR (" + RANK + " = CAST(? AS REAL) AND " + DATE_KEYSET + "))";
 
   public SearchDatabase(@NonNull Context context, @NonNull SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
-  public Cursor queryMessages(@NonNull String query) {
+  /**
+   * @param threadId Only searches this thread if not -1.
+   * @param ranked   Orders by relevance rather than by date.
+   * @param after    The key of the last result of the previous page, or null for the first page.
+   * @param within   Only searches these messages if not null, see {@link #getMessageIds(Cursor)}.
+   */
+  public Cursor queryMessages(@NonNull String query, long threadId, boolean ranked, @Nullable PageKey after, @Nullable MessageIds within, int limit) {
     SQLiteDatabase db          = databaseHelper.getReadableDatabase();
     String         prefixQuery = adjustQuery(query);
+    List<String>   args        = new ArrayList<>();
+
+    String sms = buildMessagesQuery(SMS_FTS_TABLE_NAME, SmsDatabase.TABLE_NAME, SmsDatabase.ID, SmsDatabase.DATE_RECEIVED, false, threadId, ranked, within != null ? within.sms : null);
+    String mms = buildMessagesQuery(MMS_FTS_TABLE_NAME, MmsDatabase.TABLE_NAME, MmsDatabase.ID, MmsDatabase.DATE_RECEIVED, true, threadId, ranked, within != null ? within.mms : null);
+
+    for (int i = 0; i < 2; i++) {
+      args.add(prefixQuery);
+      if (threadId != -1) args.add(String.valueOf(threadId));
+    }
 
-    Cursor cursor = db.rawQuery(MESSAGES_QUERY, new String[] { prefixQuery, prefixQuery });
+    StringBuilder sql = new StringBuilder("SELECT * FROM (").append(sms).append(" UNION ALL ").append(mms).append(")");
+
+    if (after != null) {
+      sql.append(" WHERE ").append(ranked ? RANK_KEYSET : DATE_KEYSET);
+
+      if (ranked) {
+        args.add(String.valueOf(after.rank));
+        args.add(String.valueOf(after.rank));
+      }
+
+      args.add(String.valueOf(after.dateReceived));
+      args.add(String.valueOf(after.dateReceived));
+      args.add(after.mms ? "1" : "0");
+      args.add(after.mms ? "1" : "0");
+      args.add(String.valueOf(after.messageId));
+    }
+
+    sql.append(" ORDER BY ").append(ranked ? RANK_ORDER : DATE_ORDER).append(" LIMIT ").append(limit);
+
+    Cursor cursor = db.rawQuery(sql.toString(), args.toArray(new String[0]));
     setNotifyConverationListListeners(cursor);
     return cursor;
   }
 
-  public Cursor queryMessages(@NonNull String query, long threadId) {
-    SQLiteDatabase db          = databaseHelper.getReadableDatabase();
-    String         prefixQuery = adjustQuery(query);
+  /**
+   * @return The IDs of the messages in a cursor returned by {@link #queryMessages}, leaving the
+   *         cursor before its first row.
+   */
+  public static @NonNull MessageIds getMessageIds(@NonNull Cursor cursor) {
+    List<Long> sms = new ArrayList<>();
+    List<Long> mms = new ArrayList<>();
 
-    Cursor cursor = db.rawQuery(MESSAGES_FOR_THREAD_QUERY, new String[] { prefixQuery, String.valueOf(threadId), prefixQuery, String.valueOf(threadId) });
-    setNotifyConverationListListeners(cursor);
-    return cursor;
+    int idColumn  = cursor.getColumnIndexOrThrow(MESSAGE_ID);
+    int mmsColumn = cursor.getColumnIndexOrThrow(IS_MMS);
 
+    cursor.moveToPosition(-1);
+
+    while (cursor.moveToNext()) {
+      if (cursor.getInt(mmsColumn) == 1) mms.add(cursor.getLong(idColumn));
+      else                               sms.add(cursor.getLong(idColumn));
+    }
+
+    cursor.moveToPosition(-1);
+
+    return new MessageIds(toArray(sms), toArray(mms));
+  }
+
+  private static long[] toArray(@NonNull List<Long> list) {
+    long[] array = new long[list.size()];
+
+    for (int i = 0; i < array.length; i++) {
+      array[i] = list.get(i);
+    }
+
+    return array;
+  }
+
+  private static String buildMessagesQuery(@NonNull String ftsTable, @NonNull String table, @NonNull String idColumn, @NonNull String dateColumn,
+                                           boolean mms, long threadId, boolean ranked, @Nullable long[] within)
+  {
+    StringBuilder sql = new StringBuilder(
+        "SELECT " +
+          ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
+          MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
+          "snippet(" + ftsTable + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
+          table + "." + dateColumn + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+          ftsTable + "." + THREAD_ID + ", " +
+          table + "." + idColumn + " AS " + MESSAGE_ID + ", " +
+          (mms ? 1 : 0) + " AS " + IS_MMS + ", " +
+          (ranked ? "bm25(" + ftsTable + ")" : "0") + " AS " + RANK + " " +
+        "FROM " + table + " " +
+        "INNER JOIN " + ftsTable + " ON " + ftsTable + "." + ID + " = " + table + "." + idColumn + " " +
+        "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + ftsTable + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
+        "WHERE " + ftsTable + " MATCH ?");
+
+    if (threadId != -1) {
+      sql.append(" AND ").append(table).append(".").append(MmsSmsColumns.THREAD_ID).append(" = ?");
+    }
+
+    if (within != null) {
+      sql.append(" AND ").append(ftsTable).append(".").append(ID).append(" IN (").append(Util.join(within, ",")).append(")");
+    }
+
+    return sql.toString();
   }
 
   private String adjustQuery(@NonNull String query) {
@@ -138,5 +193,36 @@ public class SearchDatabase extends Database {
 
     return prefixQuery;
   }
+
+  /**
+   * Where a page of results ends, see {@link #queryMessages}.
+   */
+  public static final class PageKey {
+    private final double  rank;
+    private final long    dateReceived;
+    private final boolean mms;
+    private final long    messageId;
+
+    public PageKey(double rank, long dateReceived, boolean mms, long messageId) {
+      this.rank         = rank;
+      this.dateReceived = dateReceived;
+      this.mms          = mms;
+      this.messageId    = messageId;
+    }
+  }
+
+  public static final class MessageIds {
+    private final long[] sms;
+    private final long[] mms;
+
+    private MessageIds(@NonNull long[] sms, @NonNull long[] mms) {
+      this.sms = sms;
+      this.mms = mms;
+    }
+
+    public int size() {
+      return sms.length + mms.length;
+    }
+  }
 }
 
@@ -2,10 +2,12 @@ package org.thoughtcrime.securesms.database
 
 import android.content.ContentValues
 import android.content.Context
+import android.util.LruCache
 import net.sqlcipher.Cursor
 import org.session.libsession.messaging.contacts.Contact
 import org.session.libsignal.utilities.Base64
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
+import java.util.concurrent.atomic.AtomicLong
 
 class SessionContactDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(context, helper) {
 
@@ -29,8 +31,17 @@ class SessionContactDatabase(context: Context, helper: SQLCipherOpenHelper) : Da
                 "$profilePictureEncryptionKey BLOB DEFAULT NULL, " +
                 "$threadID INTEGER DEFAULT -1, " +
                 "$isTrusted INTEGER DEFAULT 0);"
+
+        /**
+         * Display names by Session ID, shared by all callers so that rendering mentions doesn't need a query per
+         * message. Session IDs without a contact are cached too. Entries are dropped whenever the contact is updated.
+         */
+        private val displayNameCache = LruCache<String, DisplayNames>(1024)
+        private val displayNameCacheGeneration = AtomicLong()
     }
 
+    private class DisplayNames(val regular: String?, val openGroup: String?)
+
     fun getContactWithSessionID(sessionID: String): Contact? {
         val database = databaseHelper.readableDatabase
         return database.get(sessionContactTable, "${Companion.sessionID} = ?", arrayOf( sessionID )) { cursor ->
@@ -38,6 +49,34 @@ class SessionContactDatabase(context: Context, helper: SQLCipherOpenHelper) : Da
         }
     }
 
+    /**
+     * Returns the same name as [Contact.displayName] for the contact with the given Session ID, from memory if possible.
+     */
+    fun getContactDisplayName(sessionID: String, contactContext: Contact.ContactContext): String? {
+        var names = displayNameCache.get(sessionID)
+        if (names == null) {
+            val generation = displayNameCacheGeneration.get()
+            val contact = getContactWithSessionID(sessionID)
+            names = DisplayNames(contact?.displayName(Contact.ContactContext.REGULAR), contact?.displayName(Contact.ContactContext.OPEN_GROUP))
+            // Don't cache what was read if a contact was updated in the meantime
+            synchronized(displayNameCache) {
+                if (generation == displayNameCacheGeneration.get()) { displayNameCache.put(sessionID, names) }
+            }
+        }
+        return if (contactContext == Contact.ContactContext.OPEN_GROUP) names.openGroup else names.regular
+    }
+
+    fun getContactsWithSessionIDs(sessionIDs: Collection<String>): List<Contact> {
+        val database = databaseHelper.readableDatabase
+        // Stay below SQLite's limit on the number of arguments per query
+        return sessionIDs.chunked(500).flatMap { chunk ->
+            val query = "$sessionID IN (${chunk.joinToString(",") { "?" }})"
+            database.getAll(sessionContactTable, query, chunk.toTypedArray()) { cursor ->
+                contactFromCursor(cursor)
+            }
+        }
+    }
+
     fun getAllContacts(): Set<Contact> {
         val database = databaseHelper.readableDatabase
         return database.getAll(sessionContactTable, null, null) { cursor ->
@@ -70,6 +109,10 @@ class SessionContactDatabase(context: Context, helper: SQLCipherOpenHelper) : Da
         contentValues.put(threadID, contact.threadID)
         contentValues.put(isTrusted, if (contact.isTrusted) 1 else 0)
         database.insertOrUpdate(sessionContactTable, contentValues, "$sessionID = ?", arrayOf( contact.sessionID ))
+        synchronized(displayNameCache) {
+            displayNameCacheGeneration.incrementAndGet()
+            displayNameCache.remove(contact.sessionID)
+        }
         notifyConversationListListeners()
     }
 
@@ -23,6 +23,8 @@ import android.database.Cursor;
 import android.text.TextUtils;
 import android.util.Pair;
 
+import androidx.annotation.NonNull;
+
 import com.annimon.stream.Stream;
 
 import net.sqlcipher.database.SQLiteDatabase;
@@ -46,6 +48,8 @@ import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
 
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -89,6 +93,14 @@ public class SmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
   };
 
+  public static String[] getCreateExpiresAtCommands() {
+    return new String[] {
+      "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + EXPIRES_AT + " INTEGER DEFAULT 0;",
+      "UPDATE " + TABLE_NAME + " SET " + EXPIRES_AT + " = " + EXPIRE_STARTED + " + " + EXPIRES_IN + " WHERE " + EXPIRE_STARTED + " > 0 AND " + EXPIRES_IN + " > 0;",
+      "CREATE INDEX IF NOT EXISTS sms_expires_at_index ON " + TABLE_NAME + " (" + EXPIRES_AT + ") WHERE " + EXPIRES_AT + " > 0;"
+    };
+  }
+
   private static final String[] MESSAGE_PROJECTION = new String[] {
       ID, THREAD_ID, ADDRESS, ADDRESS_DEVICE_ID, PERSON,
       DATE_RECEIVED + " AS " + NORMALIZED_DATE_RECEIVED,
@@ -110,6 +122,10 @@ public class SmsDatabase extends MessagingDatabase {
     return TABLE_NAME;
   }
 
+  protected String getDateReceivedColumnName() {
+    return DATE_RECEIVED;
+  }
+
   private void updateTypeBitmask(long id, long maskOff, long maskOn) {
     Log.i("MessageDatabase", "Updating ID: " + id + " to base type: " + maskOn);
 
@@ -202,11 +218,7 @@ public class SmsDatabase extends MessagingDatabase {
 
   @Override
   public void markExpireStarted(long id, long startedAtTimestamp) {
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(EXPIRE_STARTED, startedAtTimestamp);
-
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(id)});
+    setExpireStarted(id, startedAtTimestamp);
 
     long threadId = getThreadIdForMessage(id);
 
@@ -504,10 +516,10 @@ public class SmsDatabase extends MessagingDatabase {
     return messageId;
   }
 
-  public Cursor getExpirationStartedMessages() {
-    String         where = EXPIRE_STARTED + " > 0";
+  public Reader getUnreadMessagesAfter(long messageId) {
+    String         where = READ + " = 0 AND " + NOTIFIED + " = 0 AND " + ID + " > ?";
     SQLiteDatabase db    = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, where, null, null, null, null);
+    return readerFor(db.query(TABLE_NAME, MESSAGE_PROJECTION, where, new String[] {String.valueOf(messageId)}, null, null, null));
   }
 
   public SmsMessageRecord getMessage(long messageId) throws NoSuchMessageException {
@@ -546,6 +558,46 @@ public class SmsDatabase extends MessagingDatabase {
     return threadDeleted;
   }
 
+  @Override
+  public boolean deleteMessages(long threadId, @NonNull Collection<Long> messageIds) {
+    if (messageIds.isEmpty()) return false;
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    boolean        threadDeleted;
+
+    db.beginTransaction();
+    try {
+      deleteMessageRows(threadId, messageIds);
+      threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    notifyConversationListeners(threadId);
+    return threadDeleted;
+  }
+
+  /**
+   * Deletes the given messages without updating their thread or notifying listeners.
+   */
+  /*package*/ void deleteMessageRows(long threadId, @NonNull Collection<Long> messageIds) {
+    if (messageIds.isEmpty()) return;
+
+    SQLiteDatabase db         = databaseHelper.getWritableDatabase();
+    String         where      = ID + " IN (" + TextUtils.join(",", messageIds) + ")";
+    List<Long>     timestamps = new ArrayList<>(messageIds.size());
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] { DATE_SENT }, where, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        timestamps.add(cursor.getLong(0));
+      }
+    }
+
+    DatabaseFactory.getMmsDatabase(context).setQuotesMissing(threadId, timestamps);
+    db.delete(TABLE_NAME, where, null);
+  }
+
   private boolean isDuplicate(IncomingTextMessage message, long threadId) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     Cursor         cursor   = database.query(TABLE_NAME, null, DATE_SENT + " = ? AND " + ADDRESS + " = ? AND " + THREAD_ID + " = ?",
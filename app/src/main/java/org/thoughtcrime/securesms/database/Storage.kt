@@ -73,6 +73,18 @@ class Storage(context: Context, helper: SQLCipherOpenHelper) : Database(context,
         return registrationID
     }
 
+    override fun <T> runInTransaction(block: () -> T): T {
+        val database = databaseHelper.writableDatabase
+        database.beginTransaction()
+        try {
+            val result = block()
+            database.setTransactionSuccessful()
+            return result
+        } finally {
+            database.endTransaction()
+        }
+    }
+
     override fun persistAttachments(messageID: Long, attachments: List<Attachment>): List<Long> {
         val database = DatabaseFactory.getAttachmentDatabase(context)
         val databaseAttachments = attachments.mapNotNull { it.toSignalAttachment() }
@@ -583,6 +595,11 @@ class Storage(context: Context, helper: SQLCipherOpenHelper) : Database(context,
         return threadDB.getLastUpdated(threadID)
     }
 
+    override fun getMessageCount(threadID: Long): Int {
+        val mmsSmsDB = DatabaseFactory.getMmsSmsDatabase(context)
+        return mmsSmsDB.getConversationCount(threadID)
+    }
+
     override fun trimThread(threadID: Long, threadLimit: Int) {
         val threadDB = DatabaseFactory.getThreadDatabase(context)
         threadDB.trimThread(threadID, threadLimit)
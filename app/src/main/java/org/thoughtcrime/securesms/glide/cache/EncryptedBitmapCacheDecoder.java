@@ -37,6 +37,7 @@ public class EncryptedBitmapCacheDecoder extends EncryptedCoder implements Resou
       return streamBitmapDecoder.handles(inputStream, options);
     } catch (IOException e) {
       Log.w(TAG, e);
+      onDecodeError();
       return false;
     }
   }
@@ -47,8 +48,18 @@ public class EncryptedBitmapCacheDecoder extends EncryptedCoder implements Resou
       throws IOException
   {
     Log.i(TAG, "Encrypted Bitmap cache decoder running: " + source.toString());
+    long startTime = System.nanoTime();
+
     try (InputStream inputStream = createEncryptedInputStream(secret, source)) {
-      return streamBitmapDecoder.decode(inputStream, width, height, options);
+      Resource<Bitmap> resource = streamBitmapDecoder.decode(inputStream, width, height, options);
+
+      if (resource != null) onDecoded(System.nanoTime() - startTime);
+      else                  onDecodeError();
+
+      return resource;
+    } catch (IOException e) {
+      onDecodeError();
+      throw e;
     }
   }
 }
@@ -4,6 +4,7 @@ package org.thoughtcrime.securesms.glide.cache;
 import androidx.annotation.NonNull;
 
 import org.session.libsession.utilities.Util;
+import org.session.libsignal.utilities.Log;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -13,86 +14,300 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * Reads and writes cache files of the form:
+ *
+ * magic || random || AES-CTR(key, magic || data), where key = HMAC-SHA256(masterKey, random)
+ *
+ * Setting up a {@link Mac} and a {@link Cipher} costs more than decrypting a thumbnail, so each
+ * thread keeps one of each around, and the header is read and checked in one go.
+ */
 class EncryptedCoder {
 
+  private static final String TAG = EncryptedCoder.class.getSimpleName();
+
   private static byte[] MAGIC_BYTES = {(byte)0x91, (byte)0x5e, (byte)0x6d, (byte)0xb4,
                                        (byte)0x09, (byte)0xa6, (byte)0x68, (byte)0xbe,
                                        (byte)0xe5, (byte)0xb1, (byte)0x1b, (byte)0xd7,
                                        (byte)0x29, (byte)0xe5, (byte)0x04, (byte)0xcc};
 
+  private static final int RANDOM_LENGTH          = 32;
+  private static final int RANDOM_OFFSET          = MAGIC_BYTES.length;
+  private static final int ENCRYPTED_MAGIC_OFFSET = RANDOM_OFFSET + RANDOM_LENGTH;
+  private static final int HEADER_LENGTH          = ENCRYPTED_MAGIC_OFFSET + MAGIC_BYTES.length;
+
+  private static final int METRICS_LOG_INTERVAL = 250;
+
+  private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+  private static final AtomicLong decodes     = new AtomicLong();
+  private static final AtomicLong errors      = new AtomicLong();
+  private static final AtomicLong writes      = new AtomicLong();
+  private static final AtomicLong decodeNanos = new AtomicLong();
+  private static final AtomicLong writeNanos  = new AtomicLong();
+
   OutputStream createEncryptedOutputStream(@NonNull byte[] masterKey, @NonNull File file)
       throws IOException
   {
+    long          startTime = System.nanoTime();
+    CipherContext context   = CipherContext.obtain();
+    boolean       success   = false;
+
     try {
-      byte[] random = Util.getSecretBytes(32);
-      Mac    mac    = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(masterKey, "HmacSHA256"));
+      byte[] header = new byte[HEADER_LENGTH];
+      byte[] random = new byte[RANDOM_LENGTH];
 
-      FileOutputStream fileOutputStream = new FileOutputStream(file);
-      byte[]           iv               = new byte[16];
-      byte[]           key              = mac.doFinal(random);
+      SECURE_RANDOM.nextBytes(random);
 
-      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+      Cipher cipher = context.init(Cipher.ENCRYPT_MODE, masterKey, random);
 
-      fileOutputStream.write(MAGIC_BYTES);
-      fileOutputStream.write(random);
+      System.arraycopy(MAGIC_BYTES, 0, header, 0, MAGIC_BYTES.length);
+      System.arraycopy(random, 0, header, RANDOM_OFFSET, RANDOM_LENGTH);
+      cipher.update(MAGIC_BYTES, 0, MAGIC_BYTES.length, header, ENCRYPTED_MAGIC_OFFSET);
+
+      FileOutputStream fileOutputStream = new FileOutputStream(file);
 
-      CipherOutputStream outputStream = new CipherOutputStream(fileOutputStream, cipher);
-      outputStream.write(MAGIC_BYTES);
+      try {
+        fileOutputStream.write(header);
+      } catch (IOException e) {
+        Util.close(fileOutputStream);
+        throw e;
+      }
 
-      return outputStream;
-    } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
+      success = true;
+      return new ContextCipherOutputStream(fileOutputStream, cipher, context);
+    } catch (ShortBufferException e) {
       throw new AssertionError(e);
+    } finally {
+      if (!success) context.release();
+      writeNanos.addAndGet(System.nanoTime() - startTime);
+      writes.incrementAndGet();
     }
   }
 
   InputStream createEncryptedInputStream(@NonNull byte[] masterKey, @NonNull File file) throws IOException {
-    try {
-      Mac    mac    = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(masterKey, "HmacSHA256"));
+    CipherContext   context         = CipherContext.obtain();
+    FileInputStream fileInputStream = null;
+    boolean         success         = false;
 
-      FileInputStream fileInputStream     = new FileInputStream(file);
-      byte[]          theirMagic          = new byte[MAGIC_BYTES.length];
-      byte[]          theirRandom         = new byte[32];
-      byte[]          theirEncryptedMagic = new byte[MAGIC_BYTES.length];
+    try {
+      byte[] header = new byte[HEADER_LENGTH];
 
-      Util.readFully(fileInputStream, theirMagic);
-      Util.readFully(fileInputStream, theirRandom);
+      fileInputStream = new FileInputStream(file);
+      Util.readFully(fileInputStream, header);
 
-      if (!MessageDigest.isEqual(theirMagic, MAGIC_BYTES)) {
+      if (!isEqual(header, 0, MAGIC_BYTES)) {
         throw new IOException("Not an encrypted cache file!");
       }
 
-      byte[] iv  = new byte[16];
-      byte[] key = mac.doFinal(theirRandom);
+      byte[] theirRandom = Arrays.copyOfRange(header, RANDOM_OFFSET, RANDOM_OFFSET + RANDOM_LENGTH);
+      Cipher cipher      = context.init(Cipher.DECRYPT_MODE, masterKey, theirRandom);
 
-      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-      cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+      cipher.update(header, ENCRYPTED_MAGIC_OFFSET, MAGIC_BYTES.length, header, ENCRYPTED_MAGIC_OFFSET);
 
-      CipherInputStream inputStream = new CipherInputStream(fileInputStream, cipher);
-      Util.readFully(inputStream, theirEncryptedMagic);
-
-      if (!MessageDigest.isEqual(theirEncryptedMagic, MAGIC_BYTES)) {
+      if (!isEqual(header, ENCRYPTED_MAGIC_OFFSET, MAGIC_BYTES)) {
         throw new IOException("Key change on encrypted cache file!");
       }
 
-      return inputStream;
-    } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
+      success = true;
+      return new ContextCipherInputStream(fileInputStream, cipher, context);
+    } catch (ShortBufferException e) {
       throw new AssertionError(e);
+    } finally {
+      if (!success) {
+        context.release();
+        if (fileInputStream != null) Util.close(fileInputStream);
+      }
+    }
+  }
+
+  /**
+   * @return Counts of the cache files that were decoded, that couldn't be read because they were
+   *         corrupt or encrypted with another key (errors) and that were written, with the average
+   *         time it took to decode and to open them for writing.
+   */
+  static @NonNull Metrics getMetrics() {
+    return new Metrics(decodes.get(), errors.get(), writes.get(), decodeNanos.get(), writeNanos.get());
+  }
+
+  /**
+   * Called by decoders once per cache file they decoded.
+   */
+  static void onDecoded(long nanos) {
+    decodes.incrementAndGet();
+    decodeNanos.addAndGet(nanos);
+    logMetricsIfNeeded();
+  }
+
+  /**
+   * Called by decoders once per cache file they couldn't read.
+   */
+  static void onDecodeError() {
+    errors.incrementAndGet();
+    logMetricsIfNeeded();
+  }
+
+  private static void logMetricsIfNeeded() {
+    if ((decodes.get() + errors.get()) % METRICS_LOG_INTERVAL == 0) {
+      Log.d(TAG, getMetrics().toString());
+    }
+  }
+
+  /**
+   * Compares in constant time, like {@link java.security.MessageDigest#isEqual}.
+   */
+  private static boolean isEqual(@NonNull byte[] data, int offset, @NonNull byte[] expected) {
+    int result = 0;
+
+    for (int i = 0; i < expected.length; i++) {
+      result |= data[offset + i] ^ expected[i];
+    }
+
+    return result == 0;
+  }
+
+  static final class Metrics {
+    final long decodes;
+    final long errors;
+    final long writes;
+    final long decodeNanos;
+    final long writeNanos;
+
+    private Metrics(long decodes, long errors, long writes, long decodeNanos, long writeNanos) {
+      this.decodes     = decodes;
+      this.errors      = errors;
+      this.writes      = writes;
+      this.decodeNanos = decodeNanos;
+      this.writeNanos  = writeNanos;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return String.format(Locale.US, "Decodes: %d, errors: %d, writes: %d, average: %.3f ms decode, %.3f ms write open",
+                           decodes, errors, writes,
+                           decodes == 0 ? 0 : decodeNanos / 1e6 / decodes,
+                           writes  == 0 ? 0 : writeNanos / 1e6 / writes);
+    }
+  }
+
+  /**
+   * A {@link Mac} and a {@link Cipher} that are kept per thread. Only one stream at a time can use
+   * the thread's context, any other stream opened on the same thread meanwhile gets its own.
+   */
+  private static final class CipherContext {
+
+    private static final ThreadLocal<CipherContext> CONTEXTS = new ThreadLocal<>();
+
+    private static final IvParameterSpec ZERO_IV = new IvParameterSpec(new byte[16]);
+
+    private final Mac    mac;
+    private final Cipher cipher;
+
+    private byte[]  masterKey;
+    private boolean inUse;
+
+    private CipherContext() {
+      try {
+        this.mac    = Mac.getInstance("HmacSHA256");
+        this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    static @NonNull CipherContext obtain() {
+      CipherContext context = CONTEXTS.get();
+
+      if (context == null) {
+        context = new CipherContext();
+        CONTEXTS.set(context);
+      } else if (context.inUse) {
+        context = new CipherContext();
+      }
+
+      context.inUse = true;
+      return context;
+    }
+
+    @NonNull Cipher init(int mode, @NonNull byte[] masterKey, @NonNull byte[] random) {
+      try {
+        if (!Arrays.equals(this.masterKey, masterKey)) {
+          mac.init(new SecretKeySpec(masterKey, "HmacSHA256"));
+          this.masterKey = masterKey.clone();
+        }
+
+        cipher.init(mode, new SecretKeySpec(mac.doFinal(random), "AES"), ZERO_IV);
+        return cipher;
+      } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    void release() {
+      inUse = false;
     }
   }
 
+  private static final class ContextCipherInputStream extends CipherInputStream {
 
+    private final CipherContext context;
+
+    private boolean closed;
+
+    ContextCipherInputStream(@NonNull InputStream inputStream, @NonNull Cipher cipher, @NonNull CipherContext context) {
+      super(inputStream, cipher);
+      this.context = context;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) return;
+      closed = true;
+
+      try {
+        super.close();
+      } finally {
+        context.release();
+      }
+    }
+  }
+
+  private static final class ContextCipherOutputStream extends CipherOutputStream {
+
+    private final CipherContext context;
+
+    private boolean closed;
+
+    ContextCipherOutputStream(@NonNull OutputStream outputStream, @NonNull Cipher cipher, @NonNull CipherContext context) {
+      super(outputStream, cipher);
+      this.context = context;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) return;
+      closed = true;
+
+      try {
+        super.close();
+      } finally {
+        context.release();
+      }
+    }
+  }
 }
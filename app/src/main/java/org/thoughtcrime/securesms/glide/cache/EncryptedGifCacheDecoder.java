@@ -35,6 +35,7 @@ public class EncryptedGifCacheDecoder extends EncryptedCoder implements Resource
       return gifDecoder.handles(inputStream, options);
     } catch (IOException e) {
       Log.w(TAG, e);
+      onDecodeError();
       return false;
     }
   }
@@ -43,8 +44,18 @@ public class EncryptedGifCacheDecoder extends EncryptedCoder implements Resource
   @Override
   public Resource<GifDrawable> decode(@NonNull File source, int width, int height, @NonNull Options options) throws IOException {
     Log.i(TAG, "Encrypted GIF cache decoder running...");
+    long startTime = System.nanoTime();
+
     try (InputStream inputStream = createEncryptedInputStream(secret, source)) {
-      return gifDecoder.decode(inputStream, width, height, options);
+      Resource<GifDrawable> resource = gifDecoder.decode(inputStream, width, height, options);
+
+      if (resource != null) onDecoded(System.nanoTime() - startTime);
+      else                  onDecodeError();
+
+      return resource;
+    } catch (IOException e) {
+      onDecodeError();
+      throw e;
     }
   }
 
@@ -54,6 +54,18 @@ object OpenGroupManager {
         pollers.clear()
     }
 
+    /**
+     * Makes the pollers of the given server, or of all servers if none is given, poll right away and switch back to
+     * their shortest interval. Call this when the user is likely to be looking at open group content.
+     */
+    fun pollNow(server: String? = null) {
+        if (server != null) {
+            pollers[server]?.pollNow()
+        } else {
+            pollers.values.forEach { it.pollNow() }
+        }
+    }
+
     @WorkerThread
     fun add(server: String, room: String, publicKey: String, context: Context) {
         val openGroupID = "$server.$room"
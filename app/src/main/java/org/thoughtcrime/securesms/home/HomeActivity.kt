@@ -36,6 +36,7 @@ import org.session.libsession.utilities.*
 import org.session.libsession.utilities.Util
 import org.session.libsignal.utilities.ThreadUtils
 import org.session.libsignal.utilities.toHexString
+import org.thoughtcrime.securesms.AppStartup
 import org.thoughtcrime.securesms.ApplicationContext
 import org.thoughtcrime.securesms.MuteDialog
 import org.thoughtcrime.securesms.PassphraseRequiredActionBarActivity
@@ -69,6 +70,8 @@ class HomeActivity : PassphraseRequiredActionBarActivity(), ConversationClickLis
         super.onCreate(savedInstanceState, isReady)
         // Set content view
         setContentView(R.layout.activity_home)
+        // Let the rest of startup continue once the first frame has been drawn
+        window.decorView.post { AppStartup.getInstance().onCriticalRenderEventEnd() }
         // Set custom toolbar
         setSupportActionBar(toolbar)
         // Set up Glide
@@ -101,6 +104,7 @@ class HomeActivity : PassphraseRequiredActionBarActivity(), ConversationClickLis
         homeAdapter.conversationClickListener = this
         recyclerView.adapter = homeAdapter
         recyclerView.layoutManager = LinearLayoutManager(this)
+        homeAdapter.registerAdapterDataObserver(ScrollToTopObserver(recyclerView))
         // Set up empty state view
         createNewPrivateChatButton.setOnClickListener { createNewPrivateChat() }
         IP2Country.configureIfNeeded(this@HomeActivity)
@@ -164,6 +168,7 @@ class HomeActivity : PassphraseRequiredActionBarActivity(), ConversationClickLis
         super.onResume()
         ApplicationContext.getInstance(this).messageNotifier.setHomeScreenVisible(true)
         if (TextSecurePreferences.getLocalNumber(this) == null) { return; } // This can be the case after a secondary device is auto-cleared
+        OpenGroupManager.pollNow()
         IdentityKeyUtil.checkUpdate(this)
         profileButton.recycle() // clear cached image before update tje profilePictureView
         profileButton.update()
@@ -5,6 +5,7 @@ import android.database.Cursor
 import androidx.recyclerview.widget.RecyclerView
 import android.view.ViewGroup
 import org.thoughtcrime.securesms.database.CursorRecyclerViewAdapter
+import org.thoughtcrime.securesms.database.CursorSnapshot
 import org.thoughtcrime.securesms.database.DatabaseFactory
 import org.thoughtcrime.securesms.database.model.ThreadRecord
 import org.thoughtcrime.securesms.mms.GlideRequests
@@ -13,9 +14,19 @@ class HomeAdapter(context: Context, cursor: Cursor?) : CursorRecyclerViewAdapter
     private val threadDatabase = DatabaseFactory.getThreadDatabase(context)
     lateinit var glide: GlideRequests
     var typingThreadIDs = setOf<Long>()
-        set(value) { field = value; notifyDataSetChanged() }
+        set(value) {
+            val changedThreadIDs = (field - value) + (value - field)
+            field = value
+            val positions = changedThreadIDs.map { getPositionForItemId(it) }
+            if (positions.any { it < 0 }) { notifyDataSetChanged(); return }
+            positions.forEach { notifyItemChanged(it) }
+        }
     var conversationClickListener: ConversationClickListener? = null
 
+    companion object {
+        val diffCallback = object : CursorSnapshot.ItemCallback() { }
+    }
+
     class ViewHolder(val view: ConversationView) : RecyclerView.ViewHolder(view)
 
     override fun onCreateItemViewHolder(parent: ViewGroup, viewType: Int): ViewHolder {
@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.home
 
 import android.content.Context
 import android.database.Cursor
+import org.thoughtcrime.securesms.database.CursorSnapshot
 import org.thoughtcrime.securesms.database.DatabaseFactory
 import org.thoughtcrime.securesms.util.AbstractCursorLoader
 
@@ -10,4 +11,8 @@ class HomeLoader(context: Context) : AbstractCursorLoader(context) {
     override fun getCursor(): Cursor {
         return DatabaseFactory.getThreadDatabase(context).conversationList
     }
+
+    override fun getDiffCallback(): CursorSnapshot.ItemCallback {
+        return HomeAdapter.diffCallback
+    }
 }
\ No newline at end of file
@@ -18,30 +18,39 @@ import org.session.libsession.utilities.Debouncer;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 /**
  * Manages the queue of jobs. This is the only class that should write to {@link JobStorage} to
  * ensure consistency.
+ *
+ * Every runner goes through this class between jobs, so the lock is only held to read and update
+ * the job queue. Serializing and instantiating jobs and talking to the {@link Scheduler} happen
+ * outside of it.
  */
 class JobController {
 
   private static final String TAG = JobController.class.getSimpleName();
 
-  private final Application            application;
-  private final JobStorage             jobStorage;
-  private final JobInstantiator        jobInstantiator;
-  private final ConstraintInstantiator constraintInstantiator;
-  private final Data.Serializer        dataSerializer;
-  private final DependencyInjector     dependencyInjector;
-  private final Scheduler              scheduler;
-  private final Debouncer              debouncer;
-  private final Callback               callback;
-  private final Set<String>            runningJobs;
+  private final Application             application;
+  private final JobStorage              jobStorage;
+  private final JobInstantiator         jobInstantiator;
+  private final ConstraintInstantiator  constraintInstantiator;
+  private final Data.Serializer         dataSerializer;
+  private final DependencyInjector      dependencyInjector;
+  private final Scheduler               scheduler;
+  private final Debouncer               debouncer;
+  private final Callback                callback;
+  private final Set<String>             runningJobs;
+  private final Map<String, Constraint> constraints;
+  private final Set<String>             metConstraints;
+  private final Set<String>             unmetConstraints;
 
   JobController(@NonNull Application application,
                 @NonNull JobStorage jobStorage,
@@ -63,6 +72,9 @@ class JobController {
     this.debouncer              = debouncer;
     this.callback               = callback;
     this.runningJobs            = new HashSet<>();
+    this.constraints            = new HashMap<>();
+    this.metConstraints         = new HashSet<>();
+    this.unmetConstraints       = new HashSet<>();
   }
 
   @WorkerThread
@@ -72,12 +84,17 @@ class JobController {
     notifyAll();
   }
 
+  /**
+   * Wake-ups come from constraint observers and schedulers, which is when a constraint may have
+   * become met, so constraints found unmet before are checked again.
+   */
   synchronized void wakeUp() {
+    unmetConstraints.clear();
     notifyAll();
   }
 
   @WorkerThread
-  synchronized void submitNewJobChain(@NonNull List<List<Job>> chain) {
+  void submitNewJobChain(@NonNull List<List<Job>> chain) {
     chain = Stream.of(chain).filterNot(List::isEmpty).toList();
 
     if (chain.isEmpty()) {
@@ -85,37 +102,45 @@ class JobController {
       return;
     }
 
-    if (chainExceedsMaximumInstances(chain)) {
-      Job solo = chain.get(0).get(0);
-      Log.w(TAG, JobLogger.format(solo, "Already at the max instance count of " + solo.getParameters().getMaxInstances() + ". Skipping."));
-      return;
+    List<FullSpec> fullSpecs = buildFullSpecs(chain);
+
+    synchronized (this) {
+      if (chainExceedsMaximumInstances(chain)) {
+        Job solo = chain.get(0).get(0);
+        Log.w(TAG, JobLogger.format(solo, "Already at the max instance count of " + solo.getParameters().getMaxInstances() + ". Skipping."));
+        return;
+      }
+
+      jobStorage.insertJobs(fullSpecs);
+      triggerOnSubmit(chain);
+      notifyAll();
     }
 
-    insertJobChain(chain);
     scheduleJobs(chain.get(0));
-    triggerOnSubmit(chain);
-    notifyAll();
   }
 
   @WorkerThread
-  synchronized void onRetry(@NonNull Job job) {
+  void onRetry(@NonNull Job job) {
     int  nextRunAttempt     = job.getRunAttempt() + 1;
     long nextRunAttemptTime = calculateNextRunAttemptTime(System.currentTimeMillis(), nextRunAttempt, job.getParameters().getMaxBackoff());
 
-    jobStorage.updateJobAfterRetry(job.getId(), false, nextRunAttempt, nextRunAttemptTime);
+    List<Constraint> constraints;
 
-    List<Constraint> constraints = Stream.of(jobStorage.getConstraintSpecs(job.getId()))
-                                         .map(ConstraintSpec::getFactoryKey)
-                                         .map(constraintInstantiator::instantiate)
-                                         .toList();
+    synchronized (this) {
+      jobStorage.updateJobAfterRetry(job.getId(), false, nextRunAttempt, nextRunAttemptTime);
 
+      constraints = Stream.of(jobStorage.getConstraintSpecs(job.getId()))
+                          .map(ConstraintSpec::getFactoryKey)
+                          .map(this::getConstraint)
+                          .toList();
+
+      notifyAll();
+    }
 
     long delay = Math.max(0, nextRunAttemptTime - System.currentTimeMillis());
 
     Log.i(TAG, JobLogger.format(job, "Scheduling a retry in " + delay + " ms."));
     scheduler.schedule(delay, constraints);
-
-    notifyAll();
   }
 
   synchronized void onJobFinished(@NonNull Job job) {
@@ -159,28 +184,36 @@ class JobController {
    *
    * This method will block until a job is available.
    * When the job returned from this method has been run, you must call {@link #onJobFinished(Job)}.
+   *
+   * The job is marked as running before it's instantiated, so other runners can pull jobs while its
+   * data is deserialized and its dependencies are injected.
    */
   @WorkerThread
-  synchronized @NonNull Job pullNextEligibleJobForExecution() {
-    try {
-      Job job;
-
-      while ((job = getNextEligibleJobForExecution()) == null) {
-        if (runningJobs.isEmpty()) {
-          debouncer.publish(callback::onEmpty);
+  @NonNull Job pullNextEligibleJobForExecution() {
+    JobSpec              jobSpec;
+    List<ConstraintSpec> constraintSpecs;
+
+    synchronized (this) {
+      try {
+        while ((jobSpec = getNextEligibleJobForExecution()) == null) {
+          if (runningJobs.isEmpty()) {
+            debouncer.publish(callback::onEmpty);
+          }
+
+          wait();
         }
-
-        wait();
+      } catch (InterruptedException e) {
+        Log.e(TAG, "Interrupted.");
+        throw new AssertionError(e);
       }
 
-      jobStorage.updateJobRunningState(job.getId(), true);
-      runningJobs.add(job.getId());
+      jobStorage.updateJobRunningState(jobSpec.getId(), true);
+      runningJobs.add(jobSpec.getId());
 
-      return job;
-    } catch (InterruptedException e) {
-      Log.e(TAG, "Interrupted.");
-      throw new AssertionError(e);
+      constraintSpecs = jobStorage.getConstraintSpecs(jobSpec.getId());
     }
+
+    return createJob(jobSpec, constraintSpecs);
   }
 
   /**
@@ -242,7 +275,7 @@ class JobController {
   }
 
   @WorkerThread
-  private void insertJobChain(@NonNull List<List<Job>> chain) {
+  private @NonNull List<FullSpec> buildFullSpecs(@NonNull List<List<Job>> chain) {
     List<FullSpec> fullSpecs = new LinkedList<>();
     List<Job>      dependsOn = Collections.emptyList();
 
@@ -253,7 +286,7 @@ class JobController {
       dependsOn = jobList;
     }
 
-    jobStorage.insertJobs(fullSpecs);
+    return fullSpecs;
   }
 
   @WorkerThread
@@ -293,32 +326,78 @@ class JobController {
       List<Constraint> constraints = Stream.of(job.getParameters().getConstraintKeys())
                                            .map(key -> new ConstraintSpec(job.getId(), key))
                                            .map(ConstraintSpec::getFactoryKey)
-                                           .map(constraintInstantiator::instantiate)
+                                           .map(this::getConstraint)
                                            .toList();
 
       scheduler.schedule(0, constraints);
     }
   }
 
+  /**
+   * Jobs that share a constraint are skipped as a group once it's found unmet, until the next
+   * {@link #wakeUp()}. Jobs finishing don't change whether a constraint is met, so pulls that follow
+   * them don't check the constraints of blocked jobs again.
+   */
   @WorkerThread
-  private @Nullable Job getNextEligibleJobForExecution() {
+  private @Nullable JobSpec getNextEligibleJobForExecution() {
     List<JobSpec> jobSpecs = jobStorage.getPendingJobsWithNoDependenciesInCreatedOrder(System.currentTimeMillis());
 
+    metConstraints.clear();
+
     for (JobSpec jobSpec : jobSpecs) {
       List<ConstraintSpec> constraintSpecs = jobStorage.getConstraintSpecs(jobSpec.getId());
-      List<Constraint>     constraints     = Stream.of(constraintSpecs)
-                                                   .map(ConstraintSpec::getFactoryKey)
-                                                   .map(constraintInstantiator::instantiate)
-                                                   .toList();
 
-      if (Stream.of(constraints).allMatch(Constraint::isMet)) {
-        return createJob(jobSpec, constraintSpecs);
+      if (areConstraintsMet(constraintSpecs)) {
+        return jobSpec;
       }
     }
 
     return null;
   }
 
+  /**
+   * Each constraint is checked at most once per pull.
+   */
+  private boolean areConstraintsMet(@NonNull List<ConstraintSpec> constraintSpecs) {
+    for (ConstraintSpec constraintSpec : constraintSpecs) {
+      if (unmetConstraints.contains(constraintSpec.getFactoryKey())) {
+        return false;
+      }
+    }
+
+    for (ConstraintSpec constraintSpec : constraintSpecs) {
+      String key = constraintSpec.getFactoryKey();
+
+      if (metConstraints.contains(key)) {
+        continue;
+      }
+
+      if (getConstraint(key).isMet()) {
+        metConstraints.add(key);
+      } else {
+        unmetConstraints.add(key);
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Constraints don't hold any state of their own, so one instance per key is shared by all jobs.
+   * Jobs are scheduled outside of the lock, so it's taken here as well.
+   */
+  private synchronized @NonNull Constraint getConstraint(@NonNull String factoryKey) {
+    Constraint constraint = constraints.get(factoryKey);
+
+    if (constraint == null) {
+      constraint = constraintInstantiator.instantiate(factoryKey);
+      constraints.put(factoryKey, constraint);
+    }
+
+    return constraint;
+  }
+
   private @NonNull Job createJob(@NonNull JobSpec jobSpec, @NonNull List<ConstraintSpec> constraintSpecs) {
     Job.Parameters parameters = buildJobParameters(jobSpec, constraintSpecs);
     Data           data       = dataSerializer.deserialize(jobSpec.getSerializedData());
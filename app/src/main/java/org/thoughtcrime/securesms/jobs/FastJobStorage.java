@@ -16,28 +16,85 @@ import org.session.libsession.utilities.Util;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps all jobs in memory on top of {@link JobDatabase}.
+ *
+ * Besides the jobs themselves, it maintains the jobs of each queue in created order and the set of
+ * jobs that could run as soon as their next run attempt time has passed: those that aren't running,
+ * have no dependencies and are first in their queue. Finding the pending jobs is then a walk over the
+ * front of that set rather than a scan of every job and its queue.
+ *
+ * Writes to the database can be handed to a write-behind executor, so that callers only wait for
+ * the in-memory update. They're queued while holding the lock, so the database sees them in the
+ * same order as the memory did. Deletes are the exception: they wait until they, and every write
+ * queued before them, have reached the database, as a finished job that's only deleted in memory
+ * would run again if the process died. Reads are always served from memory, the database is only
+ * read in {@link #init()}.
+ */
 public class FastJobStorage implements JobStorage {
 
   private final JobDatabase jobDatabase;
+  private final Executor    writeExecutor;
 
-  private final List<JobSpec>                     jobs;
+  private final Map<String, JobSpec>              jobs;
   private final Map<String, List<ConstraintSpec>> constraintsByJobId;
   private final Map<String, List<DependencySpec>> dependenciesByJobId;
 
+  private final Map<String, Long>             sequenceByJobId;
+  private final Comparator<JobSpec>           createdOrder;
+  private final Map<String, TreeSet<JobSpec>> jobsByQueueKey;
+  private final TreeSet<JobSpec>              eligibleJobs;
+  private final Map<String, JobSpec>          eligibleJobsById;
+
+  private long nextSequence;
+
+  /**
+   * Writes to the database before returning.
+   */
   public FastJobStorage(@NonNull JobDatabase jobDatabase) {
+    this(jobDatabase, Runnable::run);
+  }
+
+  /**
+   * @param writeExecutor Runs the writes to the database. Must run them one at a time in the order
+   *                      they were submitted, like a single thread executor.
+   */
+  public FastJobStorage(@NonNull JobDatabase jobDatabase, @NonNull Executor writeExecutor) {
     this.jobDatabase         = jobDatabase;
-    this.jobs                = new ArrayList<>();
+    this.writeExecutor       = writeExecutor;
+    this.jobs                = new LinkedHashMap<>();
     this.constraintsByJobId  = new HashMap<>();
     this.dependenciesByJobId = new HashMap<>();
+    this.sequenceByJobId     = new HashMap<>();
+    this.jobsByQueueKey      = new HashMap<>();
+    this.eligibleJobsById    = new HashMap<>();
+
+    // Jobs created at the same time keep the order in which they were added
+    this.createdOrder = (j1, j2) -> {
+      int result = Long.compare(j1.getCreateTime(), j2.getCreateTime());
+      if (result == 0) result = Long.compare(sequenceByJobId.get(j1.getId()), sequenceByJobId.get(j2.getId()));
+      return result;
+    };
+
+    this.eligibleJobs = new TreeSet<>((j1, j2) -> {
+      int result = Long.compare(j1.getNextRunAttemptTime(), j2.getNextRunAttemptTime());
+      if (result == 0) result = createdOrder.compare(j1, j2);
+      return result;
+    });
   }
 
   @Override
@@ -46,7 +103,9 @@ public class FastJobStorage implements JobStorage {
     List<ConstraintSpec> constraintSpecs = jobDatabase.getAllConstraintSpecs();
     List<DependencySpec> dependencySpecs = jobDatabase.getAllDependencySpecs();
 
-    jobs.addAll(jobSpecs);
+    for (JobSpec jobSpec : jobSpecs) {
+      addJob(jobSpec);
+    }
 
     for (ConstraintSpec constraintSpec: constraintSpecs) {
       List<ConstraintSpec> jobConstraints = Util.getOrDefault(constraintsByJobId, constraintSpec.getJobSpecId(), new LinkedList<>());
@@ -59,140 +118,129 @@ public class FastJobStorage implements JobStorage {
       jobDependencies.add(dependencySpec);
       dependenciesByJobId.put(dependencySpec.getJobId(), jobDependencies);
     }
+
+    updateAllEligibility();
   }
 
   @Override
   public synchronized void insertJobs(@NonNull List<FullSpec> fullSpecs) {
-    jobDatabase.insertJobs(fullSpecs);
+    List<FullSpec> toInsert = new ArrayList<>(fullSpecs);
+    writeExecutor.execute(() -> jobDatabase.insertJobs(toInsert));
 
     for (FullSpec fullSpec : fullSpecs) {
-      jobs.add(fullSpec.getJobSpec());
-      constraintsByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getConstraintSpecs());
-      dependenciesByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getDependencySpecs());
+      JobSpec jobSpec = fullSpec.getJobSpec();
+      JobSpec oldHead = getQueueHead(jobSpec.getQueueKey());
+
+      addJob(jobSpec);
+      constraintsByJobId.put(jobSpec.getId(), fullSpec.getConstraintSpecs());
+      dependenciesByJobId.put(jobSpec.getId(), fullSpec.getDependencySpecs());
+
+      if (oldHead != null) updateEligibility(oldHead);
+      updateEligibility(jobSpec);
     }
   }
 
   @Override
   public synchronized @Nullable JobSpec getJobSpec(@NonNull String id) {
-    for (JobSpec jobSpec : jobs) {
-      if (jobSpec.getId().equals(id)) {
-        return jobSpec;
-      }
-    }
-    return null;
+    return jobs.get(id);
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getAllJobSpecs() {
-    return new ArrayList<>(jobs);
+    return new ArrayList<>(jobs.values());
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getPendingJobsWithNoDependenciesInCreatedOrder(long currentTime) {
-    return Stream.of(jobs)
-                 .filter(j -> JobManagerFactories.hasFactoryForKey(j.getFactoryKey()))
-                 .filterNot(JobSpec::isRunning)
-                 .filter(this::firstInQueue)
-                 .filter(j -> !dependenciesByJobId.containsKey(j.getId()) || dependenciesByJobId.get(j.getId()).isEmpty())
-                 .filter(j -> j.getNextRunAttemptTime() <= currentTime)
-                 .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                 .toList();
-  }
+    List<JobSpec> pendingJobs = new ArrayList<>();
 
-  private boolean firstInQueue(@NonNull JobSpec job) {
-    if (job.getQueueKey() == null) {
-      return true;
+    for (JobSpec job : eligibleJobs) {
+      if (job.getNextRunAttemptTime() > currentTime) break;
+
+      if (JobManagerFactories.hasFactoryForKey(job.getFactoryKey())) {
+        pendingJobs.add(job);
+      }
     }
 
-    return Stream.of(jobs)
-                 .filter(j -> Util.equals(j.getQueueKey(), job.getQueueKey()))
-                 .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                 .toList()
-                 .get(0)
-                 .equals(job);
+    Collections.sort(pendingJobs, createdOrder);
+    return pendingJobs;
   }
 
   @Override
   public synchronized int getJobInstanceCount(@NonNull String factoryKey) {
-    return (int) Stream.of(jobs)
+    return (int) Stream.of(jobs.values())
                        .filter(j -> j.getFactoryKey().equals(factoryKey))
                        .count();
   }
 
   @Override
   public synchronized void updateJobRunningState(@NonNull String id, boolean isRunning) {
-    jobDatabase.updateJobRunningState(id, isRunning);
-
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      existing.getNextRunAttemptTime(),
-                                      existing.getRunAttempt(),
-                                      existing.getMaxAttempts(),
-                                      existing.getMaxBackoff(),
-                                      existing.getLifespan(),
-                                      existing.getMaxInstances(),
-                                      existing.getSerializedData(),
-                                      isRunning);
-        iter.set(updated);
-      }
+    writeExecutor.execute(() -> jobDatabase.updateJobRunningState(id, isRunning));
+
+    JobSpec existing = jobs.get(id);
+
+    if (existing != null) {
+      replaceJob(new JobSpec(existing.getId(),
+                             existing.getFactoryKey(),
+                             existing.getQueueKey(),
+                             existing.getCreateTime(),
+                             existing.getNextRunAttemptTime(),
+                             existing.getRunAttempt(),
+                             existing.getMaxAttempts(),
+                             existing.getMaxBackoff(),
+                             existing.getLifespan(),
+                             existing.getMaxInstances(),
+                             existing.getSerializedData(),
+                             isRunning));
     }
   }
 
   @Override
   public synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime) {
-    jobDatabase.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime);
-
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      nextRunAttemptTime,
-                                      runAttempt,
-                                      existing.getMaxAttempts(),
-                                      existing.getMaxBackoff(),
-                                      existing.getLifespan(),
-                                      existing.getMaxInstances(),
-                                      existing.getSerializedData(),
-                                      isRunning);
-        iter.set(updated);
-      }
+    writeExecutor.execute(() -> jobDatabase.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime));
+
+    JobSpec existing = jobs.get(id);
+
+    if (existing != null) {
+      replaceJob(new JobSpec(existing.getId(),
+                             existing.getFactoryKey(),
+                             existing.getQueueKey(),
+                             existing.getCreateTime(),
+                             nextRunAttemptTime,
+                             runAttempt,
+                             existing.getMaxAttempts(),
+                             existing.getMaxBackoff(),
+                             existing.getLifespan(),
+                             existing.getMaxInstances(),
+                             existing.getSerializedData(),
+                             isRunning));
     }
   }
 
   @Override
   public synchronized void updateAllJobsToBePending() {
-    jobDatabase.updateAllJobsToBePending();
-
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      JobSpec updated  = new JobSpec(existing.getId(),
-                                     existing.getFactoryKey(),
-                                     existing.getQueueKey(),
-                                     existing.getCreateTime(),
-                                     existing.getNextRunAttemptTime(),
-                                     existing.getRunAttempt(),
-                                     existing.getMaxAttempts(),
-                                     existing.getMaxBackoff(),
-                                     existing.getLifespan(),
-                                     existing.getMaxInstances(),
-                                     existing.getSerializedData(),
-                                     false);
-      iter.set(updated);
+    writeExecutor.execute(jobDatabase::updateAllJobsToBePending);
+
+    List<JobSpec> existingJobs = new ArrayList<>(jobs.values());
+
+    for (JobSpec existing : existingJobs) {
+      JobSpec updated = new JobSpec(existing.getId(),
+                                    existing.getFactoryKey(),
+                                    existing.getQueueKey(),
+                                    existing.getCreateTime(),
+                                    existing.getNextRunAttemptTime(),
+                                    existing.getRunAttempt(),
+                                    existing.getMaxAttempts(),
+                                    existing.getMaxBackoff(),
+                                    existing.getLifespan(),
+                                    existing.getMaxInstances(),
+                                    existing.getSerializedData(),
+                                    false);
+      jobs.put(updated.getId(), updated);
+      replaceInQueue(existing, updated);
     }
+
+    updateAllEligibility();
   }
 
   @Override
@@ -202,14 +250,17 @@ public class FastJobStorage implements JobStorage {
 
   @Override
   public synchronized void deleteJobs(@NonNull List<String> jobIds) {
-    jobDatabase.deleteJobs(jobIds);
+    List<String> toDelete = new ArrayList<>(jobIds);
+    writeAndWait(() -> jobDatabase.deleteJobs(toDelete));
+
+    Set<String> affectedQueueKeys = new HashSet<>();
+    Set<String> affectedJobIds    = new HashSet<>();
 
-    Set<String> deleteIds = new HashSet<>(jobIds);
+    for (String jobId : jobIds) {
+      JobSpec removed = removeJob(jobId);
 
-    Iterator<JobSpec> jobIter = jobs.iterator();
-    while (jobIter.hasNext()) {
-      if (deleteIds.contains(jobIter.next().getId())) {
-        jobIter.remove();
+      if (removed != null && removed.getQueueKey() != null) {
+        affectedQueueKeys.add(removed.getQueueKey());
       }
     }
 
@@ -223,15 +274,27 @@ public class FastJobStorage implements JobStorage {
         while (depedencyIter.hasNext()) {
           if (depedencyIter.next().getDependsOnJobId().equals(jobId)) {
             depedencyIter.remove();
+            affectedJobIds.add(entry.getKey());
           }
         }
       }
     }
+
+    for (String queueKey : affectedQueueKeys) {
+      JobSpec head = getQueueHead(queueKey);
+      if (head != null) updateEligibility(head);
+    }
+
+    for (String jobId : affectedJobIds) {
+      JobSpec job = jobs.get(jobId);
+      if (job != null) updateEligibility(job);
+    }
   }
 
   @Override
   public synchronized @NonNull List<ConstraintSpec> getConstraintSpecs(@NonNull String jobId) {
-    return Util.getOrDefault(constraintsByJobId, jobId, new LinkedList<>());
+    List<ConstraintSpec> constraintSpecs = constraintsByJobId.get(jobId);
+    return constraintSpecs != null ? constraintSpecs : Collections.emptyList();
   }
 
   @Override
@@ -252,10 +315,127 @@ public class FastJobStorage implements JobStorage {
   }
 
   @Override
-  public @NonNull List<DependencySpec> getAllDependencySpecs() {
+  public synchronized @NonNull List<DependencySpec> getAllDependencySpecs() {
     return Stream.of(dependenciesByJobId)
                  .map(Map.Entry::getValue)
                  .flatMap(Stream::of)
                  .toList();
   }
+
+  /**
+   * Queues the write behind any earlier ones and blocks until it has run.
+   */
+  private void writeAndWait(@NonNull Runnable write) {
+    FutureTask<Void> task        = new FutureTask<>(write, null);
+    boolean          interrupted = false;
+
+    writeExecutor.execute(task);
+
+    while (true) {
+      try {
+        task.get();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+        if (e.getCause() instanceof Error)            throw (Error) e.getCause();
+        throw new AssertionError(e);
+      }
+    }
+
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  private void addJob(@NonNull JobSpec job) {
+    removeJob(job.getId());
+
+    jobs.put(job.getId(), job);
+    sequenceByJobId.put(job.getId(), nextSequence++);
+
+    if (job.getQueueKey() != null) {
+      TreeSet<JobSpec> queue = jobsByQueueKey.get(job.getQueueKey());
+
+      if (queue == null) {
+        queue = new TreeSet<>(createdOrder);
+        jobsByQueueKey.put(job.getQueueKey(), queue);
+      }
+
+      queue.add(job);
+    }
+  }
+
+  private @Nullable JobSpec removeJob(@NonNull String jobId) {
+    JobSpec job = jobs.remove(jobId);
+    if (job == null) return null;
+
+    JobSpec eligible = eligibleJobsById.remove(jobId);
+    if (eligible != null) eligibleJobs.remove(eligible);
+
+    if (job.getQueueKey() != null) {
+      TreeSet<JobSpec> queue = jobsByQueueKey.get(job.getQueueKey());
+      queue.remove(job);
+      if (queue.isEmpty()) jobsByQueueKey.remove(job.getQueueKey());
+    }
+
+    sequenceByJobId.remove(jobId);
+    return job;
+  }
+
+  private void replaceJob(@NonNull JobSpec updated) {
+    JobSpec existing = jobs.put(updated.getId(), updated);
+    replaceInQueue(existing, updated);
+    updateEligibility(updated);
+  }
+
+  /**
+   * The queue order only depends on what doesn't change between updates, but the queue has to hold
+   * the current spec so that its head can be used as is.
+   */
+  private void replaceInQueue(@NonNull JobSpec existing, @NonNull JobSpec updated) {
+    if (updated.getQueueKey() == null) return;
+
+    TreeSet<JobSpec> queue = jobsByQueueKey.get(updated.getQueueKey());
+    queue.remove(existing);
+    queue.add(updated);
+  }
+
+  private @Nullable JobSpec getQueueHead(@Nullable String queueKey) {
+    if (queueKey == null) return null;
+
+    TreeSet<JobSpec> queue = jobsByQueueKey.get(queueKey);
+    return queue != null ? queue.first() : null;
+  }
+
+  private void updateEligibility(@NonNull JobSpec job) {
+    JobSpec previous = eligibleJobsById.remove(job.getId());
+    if (previous != null) eligibleJobs.remove(previous);
+
+    if (isEligible(job)) {
+      eligibleJobs.add(job);
+      eligibleJobsById.put(job.getId(), job);
+    }
+  }
+
+  private void updateAllEligibility() {
+    eligibleJobs.clear();
+    eligibleJobsById.clear();
+
+    for (JobSpec job : jobs.values()) {
+      updateEligibility(job);
+    }
+  }
+
+  private boolean isEligible(@NonNull JobSpec job) {
+    if (job.isRunning()) {
+      return false;
+    }
+
+    List<DependencySpec> dependencies = dependenciesByJobId.get(job.getId());
+    if (dependencies != null && !dependencies.isEmpty()) {
+      return false;
+    }
+
+    return job.getQueueKey() == null || getQueueHead(job.getQueueKey()).getId().equals(job.getId());
+  }
 }
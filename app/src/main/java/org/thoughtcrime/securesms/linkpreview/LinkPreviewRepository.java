@@ -4,11 +4,11 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.util.LruCache;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.google.android.gms.common.util.IOUtils;
-
 import org.session.libsession.messaging.sending_receiving.attachments.AttachmentTransferProgress;
 import org.session.libsession.utilities.MediaTypes;
 import org.thoughtcrime.securesms.ApplicationContext;
@@ -38,6 +38,7 @@ import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 
 public class LinkPreviewRepository implements InjectableType {
 
@@ -45,6 +46,22 @@ public class LinkPreviewRepository implements InjectableType {
 
   private static final CacheControl NO_CACHE = new CacheControl.Builder().noCache().build();
 
+  private static final int MAX_HEAD_LENGTH         = 512 * 1024;
+  private static final int MAX_IMAGE_SIZE          = 10 * 1024 * 1024;
+  private static final int MAX_THUMBNAIL_DIMENSION = 1024;
+  private static final int MAX_CACHE_SIZE          = 4 * 1024 * 1024;
+
+  /**
+   * Recent previews by URL, so that pasting the same link again doesn't fetch it again. They're
+   * only ever kept in memory, like the thumbnail blobs of the previews themselves.
+   */
+  private static final LruCache<String, CachedPreview> PREVIEW_CACHE = new LruCache<String, CachedPreview>(MAX_CACHE_SIZE) {
+    @Override
+    protected int sizeOf(String url, CachedPreview preview) {
+      return url.length() * 2 + preview.getSize();
+    }
+  };
+
   private final OkHttpClient client;
 
   public LinkPreviewRepository(@NonNull Context context) {
@@ -65,6 +82,14 @@ public class LinkPreviewRepository implements InjectableType {
       return compositeController;
     }
 
+    CachedPreview cachedPreview = PREVIEW_CACHE.get(url);
+
+    if (cachedPreview != null) {
+      Log.i(TAG, "Using cached link preview.");
+      callback.onComplete(Optional.of(cachedPreview.toLinkPreview(url)));
+      return compositeController;
+    }
+
     RequestController metadataController;
 
     metadataController = fetchMetadata(url, metadata -> {
@@ -74,15 +99,19 @@ public class LinkPreviewRepository implements InjectableType {
       }
 
       if (!metadata.getImageUrl().isPresent()) {
-        callback.onComplete(Optional.of(new LinkPreview(url, metadata.getTitle().get(), Optional.absent())));
+        CachedPreview preview = new CachedPreview(metadata.getTitle().get(), null);
+        PREVIEW_CACHE.put(url, preview);
+        callback.onComplete(Optional.of(preview.toLinkPreview(url)));
         return;
       }
 
-      RequestController imageController = fetchThumbnail(context, metadata.getImageUrl().get(), attachment -> {
-        if (!metadata.getTitle().isPresent() && !attachment.isPresent()) {
+      RequestController imageController = fetchThumbnail(metadata.getImageUrl().get(), thumbnail -> {
+        if (!metadata.getTitle().isPresent() && !thumbnail.isPresent()) {
           callback.onComplete(Optional.absent());
         } else {
-          callback.onComplete(Optional.of(new LinkPreview(url, metadata.getTitle().or(""), attachment)));
+          CachedPreview preview = new CachedPreview(metadata.getTitle().or(""), thumbnail.orNull());
+          PREVIEW_CACHE.put(url, preview);
+          callback.onComplete(Optional.of(preview.toLinkPreview(url)));
         }
       });
 
@@ -116,7 +145,12 @@ public class LinkPreviewRepository implements InjectableType {
           return;
         }
 
-        String            body     = response.body().string();
+        String body;
+
+        try (ResponseBody responseBody = response.body()) {
+          body = LinkPreviewUtil.readHead(responseBody.charStream(), MAX_HEAD_LENGTH);
+        }
+
         OpenGraph        openGraph   = LinkPreviewUtil.parseOpenGraphFields(body);
         Optional<String> title       = openGraph.getTitle();
         Optional<String> imageUrl    = openGraph.getImageUrl();
@@ -138,7 +172,7 @@ public class LinkPreviewRepository implements InjectableType {
     return new CallRequestController(call);
   }
 
-  private @NonNull RequestController fetchThumbnail(@NonNull Context context, @NonNull String imageUrl, @NonNull Callback<Optional<Attachment>> callback) {
+  private @NonNull RequestController fetchThumbnail(@NonNull String imageUrl, @NonNull Callback<Optional<Thumbnail>> callback) {
     Call                  call       = client.newCall(new Request.Builder().url(imageUrl).build());
     CallRequestController controller = new CallRequestController(call);
 
@@ -151,12 +185,19 @@ public class LinkPreviewRepository implements InjectableType {
           return;
         }
 
+        if (response.body().contentLength() > MAX_IMAGE_SIZE) {
+          Log.w(TAG, "Image is too large. Skipping.");
+          controller.cancel();
+          callback.onComplete(Optional.absent());
+          return;
+        }
+
         InputStream bodyStream = response.body().byteStream();
         controller.setStream(bodyStream);
 
-        byte[]               data      = IOUtils.readInputStreamFully(bodyStream);
-        Bitmap               bitmap    = BitmapFactory.decodeByteArray(data, 0, data.length);
-        Optional<Attachment> thumbnail = bitmapToAttachment(bitmap, Bitmap.CompressFormat.JPEG, MediaTypes.IMAGE_JPEG);
+        byte[]              data      = readFully(bodyStream, MAX_IMAGE_SIZE);
+        Bitmap              bitmap    = decodeSubsampled(data, MAX_THUMBNAIL_DIMENSION);
+        Optional<Thumbnail> thumbnail = toThumbnail(bitmap);
 
         if (bitmap != null) bitmap.recycle();
 
@@ -171,36 +212,109 @@ public class LinkPreviewRepository implements InjectableType {
     return controller;
   }
 
-  private static Optional<Attachment> bitmapToAttachment(@Nullable Bitmap bitmap,
-                                                         @NonNull Bitmap.CompressFormat format,
-                                                         @NonNull String contentType)
-  {
+  private static @NonNull byte[] readFully(@NonNull InputStream in, int maxSize) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[8192];
+    int                   read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+
+      if (out.size() > maxSize) {
+        throw new IOException("Image is larger than " + maxSize + " bytes.");
+      }
+    }
+
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes at the largest power of two fraction of the full size that still covers
+   * {@code maxDimension}, so that large images are never held in memory at full size.
+   */
+  private static @Nullable Bitmap decodeSubsampled(@NonNull byte[] data, int maxDimension) {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      return null;
+    }
+
+    int sampleSize = 1;
+    while (Math.max(options.outWidth, options.outHeight) / (sampleSize * 2) >= maxDimension) {
+      sampleSize *= 2;
+    }
+
+    options.inJustDecodeBounds = false;
+    options.inSampleSize       = sampleSize;
+
+    return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+  }
+
+  private static Optional<Thumbnail> toThumbnail(@Nullable Bitmap bitmap) {
     if (bitmap == null) {
       return Optional.absent();
     }
 
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
-    bitmap.compress(format, 80, baos);
+    bitmap.compress(Bitmap.CompressFormat.JPEG, 80, baos);
 
-    byte[] bytes = baos.toByteArray();
-    Uri    uri   = BlobProvider.getInstance().forData(bytes).createForSingleSessionInMemory();
+    return Optional.of(new Thumbnail(baos.toByteArray(), bitmap.getWidth(), bitmap.getHeight()));
+  }
+
+  private static final class Thumbnail {
+    private final byte[] data;
+    private final int    width;
+    private final int    height;
 
-    return Optional.of(new UriAttachment(uri,
-           uri,
-           contentType,
-           AttachmentTransferProgress.TRANSFER_PROGRESS_STARTED,
-           bytes.length,
-           bitmap.getWidth(),
-           bitmap.getHeight(),
-           null,
-           null,
-           false,
-           false,
-           null));
+    private Thumbnail(@NonNull byte[] data, int width, int height) {
+      this.data   = data;
+      this.width  = width;
+      this.height = height;
+    }
 
+    private @NonNull Attachment toAttachment() {
+      Uri uri = BlobProvider.getInstance().forData(data).createForSingleSessionInMemory();
+
+      return new UriAttachment(uri,
+                               uri,
+                               MediaTypes.IMAGE_JPEG,
+                               AttachmentTransferProgress.TRANSFER_PROGRESS_STARTED,
+                               data.length,
+                               width,
+                               height,
+                               null,
+                               null,
+                               false,
+                               false,
+                               null);
+    }
   }
 
+  /**
+   * A preview that was built recently. Each use gets its own copy of the thumbnail, as the
+   * attachment of a preview that was sent or dismissed may be cleaned up.
+   */
+  private static final class CachedPreview {
+    private final String              title;
+    private final @Nullable Thumbnail thumbnail;
+
+    private CachedPreview(@NonNull String title, @Nullable Thumbnail thumbnail) {
+      this.title     = title;
+      this.thumbnail = thumbnail;
+    }
+
+    private @NonNull LinkPreview toLinkPreview(@NonNull String url) {
+      Optional<Attachment> attachment = thumbnail != null ? Optional.of(thumbnail.toAttachment()) : Optional.absent();
+      return new LinkPreview(url, title, attachment);
+    }
+
+    private int getSize() {
+      return title.length() * 2 + (thumbnail != null ? thumbnail.data.length : 0);
+    }
+  }
 
   private static class Metadata {
     private final Optional<String> title;
@@ -17,6 +17,8 @@ import org.session.libsignal.utilities.guava.Optional;
 
 import org.session.libsession.utilities.Util;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -37,6 +39,10 @@ public final class LinkPreviewUtil {
   private static final Pattern TITLE_PATTERN              = Pattern.compile("<\\s*title[^>]*>(.*)<\\s*/title[^>]*>", Pattern.CASE_INSENSITIVE);
   private static final Pattern FAVICON_PATTERN            = Pattern.compile("<\\s*link[^>]*rel\\s*=\\s*\".*icon.*\"[^>]*>", Pattern.CASE_INSENSITIVE);
   private static final Pattern FAVICON_HREF_PATTERN       = Pattern.compile("href\\s*=\\s*\"([^\"]*)\"", Pattern.CASE_INSENSITIVE);
+  private static final Pattern HEAD_END_PATTERN           = Pattern.compile("<\\s*(/\\s*head|body)[\\s>]", Pattern.CASE_INSENSITIVE);
+
+  /** How far back to search for the end of the head after each read, to find tags split across reads. */
+  private static final int HEAD_END_OVERLAP = 32;
 
   /**
    * @return All whitelisted URLs in the source text.
@@ -108,6 +114,34 @@ public final class LinkPreviewUtil {
     return true;
   }
 
+  /**
+   * Reads a page up to the end of its head, which is where all the tags used for link previews
+   * are, so that the rest of the page doesn't have to be downloaded.
+   *
+   * @return The page up to the end of its head or the start of its body, or its first
+   *         {@code maxLength} characters if neither comes before that.
+   */
+  public static @NonNull String readHead(@NonNull Reader reader, int maxLength) throws IOException {
+    StringBuilder html    = new StringBuilder();
+    char[]        buffer  = new char[8192];
+    Matcher       matcher = HEAD_END_PATTERN.matcher(html);
+    int           read;
+
+    while (html.length() < maxLength && (read = reader.read(buffer, 0, Math.min(buffer.length, maxLength - html.length()))) != -1) {
+      int searchStart = Math.max(0, html.length() - HEAD_END_OVERLAP);
+
+      html.append(buffer, 0, read);
+      matcher.reset(html);
+
+      if (matcher.find(searchStart)) {
+        html.setLength(matcher.start());
+        break;
+      }
+    }
+
+    return html.toString();
+  }
+
   public static @NonNull OpenGraph parseOpenGraphFields(@Nullable String html) {
     return parseOpenGraphFields(html, text -> Html.fromHtml(text).toString());
   }
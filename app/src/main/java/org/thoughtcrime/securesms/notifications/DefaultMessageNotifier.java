@@ -33,43 +33,30 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.service.notification.StatusBarNotification;
-import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
 import org.session.libsession.messaging.sending_receiving.notifications.MessageNotifier;
-import org.session.libsession.utilities.Address;
-import org.session.libsession.utilities.Contact;
 import org.session.libsession.utilities.ServiceUtil;
 import org.session.libsession.utilities.TextSecurePreferences;
 import org.session.libsession.utilities.recipients.Recipient;
 import org.session.libsignal.utilities.Log;
 import org.session.libsignal.utilities.Util;
 import org.thoughtcrime.securesms.ApplicationContext;
-import org.thoughtcrime.securesms.contactshare.ContactUtil;
 import org.thoughtcrime.securesms.conversation.v2.ConversationActivityV2;
 import org.thoughtcrime.securesms.conversation.v2.utilities.MentionManagerUtilities;
 import org.thoughtcrime.securesms.conversation.v2.utilities.MentionUtilities;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MessagingDatabase.MarkedMessageInfo;
-import org.thoughtcrime.securesms.database.MmsSmsDatabase;
-import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
-import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
-import org.thoughtcrime.securesms.database.model.MessageRecord;
-import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
-import org.thoughtcrime.securesms.database.model.Quote;
-import org.thoughtcrime.securesms.mms.SlideDeck;
 import org.thoughtcrime.securesms.service.KeyCachingService;
 import org.thoughtcrime.securesms.util.SessionMetaProtocol;
-import org.thoughtcrime.securesms.util.SpanUtil;
 
 import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -77,7 +64,6 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import me.leolin.shortcutbadger.ShortcutBadger;
-import network.loki.messenger.R;
 
 /**
  * Handles posting system notifications for new messages.
@@ -100,11 +86,12 @@ public class DefaultMessageNotifier implements MessageNotifier {
   private static final long   MIN_AUDIBLE_PERIOD_MILLIS = TimeUnit.SECONDS.toMillis(2);
   private static final long   DESKTOP_ACTIVITY_PERIOD   = TimeUnit.MINUTES.toMillis(1);
 
-  private volatile static       long               visibleThread                = -1;
-  private volatile static       boolean            homeScreenVisible            = false;
-  private volatile static       long               lastDesktopActivityTimestamp = -1;
-  private volatile static       long               lastAudibleNotification      = -1;
-  private          static final CancelableExecutor executor                     = new CancelableExecutor();
+  private volatile static       long                   visibleThread                = -1;
+  private volatile static       boolean                homeScreenVisible            = false;
+  private volatile static       long                   lastDesktopActivityTimestamp = -1;
+  private volatile static       long                   lastAudibleNotification      = -1;
+  private          static final CancelableExecutor     executor                     = new CancelableExecutor();
+  private          static final NotificationStateCache notificationStateCache       = new NotificationStateCache();
 
   @Override
   public void setVisibleThread(long threadId) {
@@ -253,14 +240,14 @@ public class DefaultMessageNotifier implements MessageNotifier {
   @Override
   public void updateNotification(@NonNull Context context, boolean signal, int reminderCount)
   {
-    Cursor telcoCursor = null;
-    Cursor pushCursor  = null;
+    Cursor pushCursor = null;
 
     try {
-      telcoCursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
-      pushCursor  = DatabaseFactory.getPushDatabase(context).getPending();
+      NotificationState notificationState = notificationStateCache.update(context);
 
-      if (((telcoCursor == null || telcoCursor.isAfterLast()) &&
+      pushCursor = DatabaseFactory.getPushDatabase(context).getPending();
+
+      if ((notificationStateCache.isEmpty() &&
           (pushCursor == null || pushCursor.isAfterLast())) || !TextSecurePreferences.hasSeenWelcomeScreen(context))
       {
         cancelActiveNotifications(context);
@@ -269,8 +256,6 @@ public class DefaultMessageNotifier implements MessageNotifier {
         return;
       }
 
-      NotificationState notificationState = constructNotificationState(context, telcoCursor);
-
       if (signal && (System.currentTimeMillis() - lastAudibleNotification) < MIN_AUDIBLE_PERIOD_MILLIS) {
         signal = false;
       } else if (signal) {
@@ -294,8 +279,7 @@ public class DefaultMessageNotifier implements MessageNotifier {
         scheduleReminder(context, reminderCount);
       }
     } finally {
-      if (telcoCursor != null) telcoCursor.close();
-      if (pushCursor != null)  pushCursor.close();
+      if (pushCursor != null) pushCursor.close();
     }
   }
 
@@ -477,73 +461,6 @@ public class DefaultMessageNotifier implements MessageNotifier {
     ringtone.play();
   }
 
-  private NotificationState constructNotificationState(@NonNull  Context context,
-                                                       @NonNull  Cursor cursor)
-  {
-    NotificationState     notificationState = new NotificationState();
-    MmsSmsDatabase.Reader reader            = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
-
-    MessageRecord record;
-
-    while ((record = reader.getNext()) != null) {
-      long         id                    = record.getId();
-      boolean      mms                   = record.isMms() || record.isMmsNotification();
-      Recipient    recipient             = record.getIndividualRecipient();
-      Recipient    conversationRecipient = record.getRecipient();
-      long         threadId              = record.getThreadId();
-      CharSequence body                  = record.getDisplayBody(context);
-      Recipient    threadRecipients      = null;
-      SlideDeck    slideDeck             = null;
-      long         timestamp             = record.getTimestamp();
-
-
-      if (threadId != -1) {
-        threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientForThreadId(threadId);
-      }
-
-      if (KeyCachingService.isLocked(context)) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_locked_message));
-      } else if (record.isMms() && !((MmsMessageRecord) record).getSharedContacts().isEmpty()) {
-        Contact contact = ((MmsMessageRecord) record).getSharedContacts().get(0);
-        body = ContactUtil.getStringSummary(context, contact);
-      } else if (record.isMms() && TextUtils.isEmpty(body) && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-        body = SpanUtil.italic(slideDeck.getBody());
-      } else if (record.isMms() && !record.isMmsNotification() && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-        String message      = slideDeck.getBody() + ": " + record.getBody();
-        int    italicLength = message.length() - body.length();
-        body = SpanUtil.italic(message, italicLength);
-      } else if (record.isOpenGroupInvitation()) {
-        body = SpanUtil.italic(context.getString(R.string.ThreadRecord_open_group_invitation));
-      }
-
-      if (threadRecipients == null || !threadRecipients.isMuted()) {
-        if (threadRecipients != null && threadRecipients.notifyType == RecipientDatabase.NOTIFY_TYPE_MENTIONS) {
-          // check if mentioned here
-          boolean isQuoteMentioned = false;
-          if (record instanceof MmsMessageRecord) {
-            Quote quote = ((MmsMessageRecord) record).getQuote();
-            Address quoteAddress = quote != null ? quote.getAuthor() : null;
-            String serializedAddress = quoteAddress != null ? quoteAddress.serialize() : null;
-            isQuoteMentioned = serializedAddress != null && Objects.equals(TextSecurePreferences.getLocalNumber(context), serializedAddress);
-          }
-          if (body.toString().contains("@"+TextSecurePreferences.getLocalNumber(context))
-                  || isQuoteMentioned) {
-            notificationState.addNotification(new NotificationItem(id, mms, recipient, conversationRecipient, threadRecipients, threadId, body, timestamp, slideDeck));
-          }
-        } else if (threadRecipients != null && threadRecipients.notifyType == RecipientDatabase.NOTIFY_TYPE_NONE) {
-          // do nothing, no notifications
-        } else {
-          notificationState.addNotification(new NotificationItem(id, mms, recipient, conversationRecipient, threadRecipients, threadId, body, timestamp, slideDeck));
-        }
-      }
-    }
-
-    reader.close();
-    return notificationState;
-  }
-
   private void updateBadge(Context context, int count) {
     try {
       if (count == 0) ShortcutBadger.removeCount(context);
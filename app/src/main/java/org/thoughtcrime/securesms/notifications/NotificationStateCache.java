@@ -0,0 +1,246 @@
+package org.thoughtcrime.securesms.notifications;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.session.libsession.utilities.Address;
+import org.session.libsession.utilities.Contact;
+import org.session.libsession.utilities.TextSecurePreferences;
+import org.session.libsession.utilities.recipients.Recipient;
+import org.thoughtcrime.securesms.contactshare.ContactUtil;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MessagingDatabase;
+import org.thoughtcrime.securesms.database.MmsDatabase;
+import org.thoughtcrime.securesms.database.RecipientDatabase;
+import org.thoughtcrime.securesms.database.SmsDatabase;
+import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
+import org.thoughtcrime.securesms.database.model.Quote;
+import org.thoughtcrime.securesms.mms.SlideDeck;
+import org.thoughtcrime.securesms.service.KeyCachingService;
+import org.thoughtcrime.securesms.util.SpanUtil;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+import network.loki.messenger.R;
+
+/**
+ * Keeps the unread messages shown by {@link DefaultMessageNotifier} between updates, keyed by thread.
+ *
+ * Each update only loads the messages inserted since the previous one and drops the ones that have been
+ * read, deleted or dismissed in the meantime, so the messages of the unread backlog aren't loaded again
+ * on every update. Thread recipients and whether a message mentions the user are worked out once.
+ */
+class NotificationStateCache {
+
+  private static final Comparator<Entry> ENTRY_COMPARATOR = (lhs, rhs) -> {
+    int result = Long.compare(lhs.dateReceived, rhs.dateReceived);
+    if (result == 0) result = Boolean.compare(lhs.item.isMms(), rhs.item.isMms());
+    if (result == 0) result = Long.compare(lhs.item.getId(), rhs.item.getId());
+    return result;
+  };
+
+  private final Map<Long, Entry>     smsEntries       = new HashMap<>();
+  private final Map<Long, Entry>     mmsEntries       = new HashMap<>();
+  private final TreeSet<Entry>       orderedEntries   = new TreeSet<>(ENTRY_COMPARATOR);
+  private final Map<Long, Recipient> threadRecipients = new HashMap<>();
+
+  private long    lastSmsId = -1;
+  private long    lastMmsId = -1;
+  private boolean locked;
+
+  /**
+   * @return The notification state for all unread messages, oldest first like the unread cursor it replaces.
+   */
+  synchronized @NonNull NotificationState update(@NonNull Context context) {
+    boolean isLocked = KeyCachingService.isLocked(context);
+
+    if (isLocked != locked) {
+      clear();
+      locked = isLocked;
+    }
+
+    SmsDatabase smsDatabase = DatabaseFactory.getSmsDatabase(context);
+    MmsDatabase mmsDatabase = DatabaseFactory.getMmsDatabase(context);
+
+    if (!removeStaleEntries(smsDatabase, smsEntries, lastSmsId)) lastSmsId = -1;
+    if (!removeStaleEntries(mmsDatabase, mmsEntries, lastMmsId)) lastMmsId = -1;
+
+    String localNumber = TextSecurePreferences.getLocalNumber(context);
+
+    SmsDatabase.Reader smsReader = smsDatabase.getUnreadMessagesAfter(lastSmsId);
+    try {
+      MessageRecord record;
+      while ((record = smsReader.getNext()) != null) {
+        addEntry(context, record, localNumber, smsEntries);
+        lastSmsId = Math.max(lastSmsId, record.getId());
+      }
+    } finally {
+      smsReader.close();
+    }
+
+    MmsDatabase.Reader mmsReader = mmsDatabase.getUnreadMessagesAfter(lastMmsId);
+    try {
+      MessageRecord record;
+      while ((record = mmsReader.getNext()) != null) {
+        addEntry(context, record, localNumber, mmsEntries);
+        lastMmsId = Math.max(lastMmsId, record.getId());
+      }
+    } finally {
+      mmsReader.close();
+    }
+
+    return buildState();
+  }
+
+  synchronized boolean isEmpty() {
+    return orderedEntries.isEmpty();
+  }
+
+  synchronized void clear() {
+    smsEntries.clear();
+    mmsEntries.clear();
+    orderedEntries.clear();
+    threadRecipients.clear();
+    lastSmsId = -1;
+    lastMmsId = -1;
+  }
+
+  /**
+   * Drops the entries whose messages are no longer unread, or whose ID now belongs to another message.
+   *
+   * @return false if an unread message up to the last loaded ID isn't among the entries, because it was
+   *         marked unread again or took the ID of a deleted one, and the table has to be reloaded.
+   */
+  private boolean removeStaleEntries(@NonNull MessagingDatabase database, @NonNull Map<Long, Entry> entries, long lastId) {
+    if (lastId == -1) {
+      return true;
+    }
+
+    Map<Long, Long>                  unreadDates = database.getUnreadMessageDates(lastId);
+    Iterator<Map.Entry<Long, Entry>> iterator    = entries.entrySet().iterator();
+
+    while (iterator.hasNext()) {
+      Map.Entry<Long, Entry> entry      = iterator.next();
+      Long                   unreadDate = unreadDates.get(entry.getKey());
+
+      if (unreadDate == null || unreadDate != entry.getValue().dateReceived) {
+        orderedEntries.remove(entry.getValue());
+        iterator.remove();
+      }
+    }
+
+    if (unreadDates.size() != entries.size()) {
+      for (Entry entry : entries.values()) {
+        orderedEntries.remove(entry);
+      }
+      entries.clear();
+      return false;
+    }
+
+    return true;
+  }
+
+  private void addEntry(@NonNull Context context, @NonNull MessageRecord record, @Nullable String localNumber, @NonNull Map<Long, Entry> entries) {
+    long         threadId        = record.getThreadId();
+    Recipient    threadRecipient = getThreadRecipient(context, threadId);
+    SlideDeck    slideDeck       = null;
+    CharSequence body            = record.getDisplayBody(context);
+
+    if (locked) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_locked_message));
+    } else if (record.isMms() && !((MmsMessageRecord) record).getSharedContacts().isEmpty()) {
+      Contact contact = ((MmsMessageRecord) record).getSharedContacts().get(0);
+      body = ContactUtil.getStringSummary(context, contact);
+    } else if (record.isMms() && TextUtils.isEmpty(body) && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
+      slideDeck = ((MediaMmsMessageRecord) record).getSlideDeck();
+      body = SpanUtil.italic(slideDeck.getBody());
+    } else if (record.isMms() && !record.isMmsNotification() && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
+      slideDeck = ((MediaMmsMessageRecord) record).getSlideDeck();
+      String message      = slideDeck.getBody() + ": " + record.getBody();
+      int    italicLength = message.length() - body.length();
+      body = SpanUtil.italic(message, italicLength);
+    } else if (record.isOpenGroupInvitation()) {
+      body = SpanUtil.italic(context.getString(R.string.ThreadRecord_open_group_invitation));
+    }
+
+    boolean isQuoteMentioned = false;
+    if (record instanceof MmsMessageRecord) {
+      Quote   quote        = ((MmsMessageRecord) record).getQuote();
+      Address quoteAddress = quote != null ? quote.getAuthor() : null;
+      isQuoteMentioned = quoteAddress != null && Objects.equals(localNumber, quoteAddress.serialize());
+    }
+
+    boolean mentioned = isQuoteMentioned || body.toString().contains("@" + localNumber);
+
+    NotificationItem item = new NotificationItem(record.getId(), record.isMms() || record.isMmsNotification(),
+                                                 record.getIndividualRecipient(), record.getRecipient(),
+                                                 threadRecipient, threadId, body, record.getTimestamp(), slideDeck);
+    Entry entry = new Entry(item, record.getDateReceived(), mentioned);
+
+    Entry previous = entries.put(record.getId(), entry);
+    if (previous != null) orderedEntries.remove(previous);
+    orderedEntries.add(entry);
+  }
+
+  private @Nullable Recipient getThreadRecipient(@NonNull Context context, long threadId) {
+    if (threadId == -1) return null;
+
+    Recipient recipient = threadRecipients.get(threadId);
+
+    if (recipient == null) {
+      recipient = DatabaseFactory.getThreadDatabase(context).getRecipientForThreadId(threadId);
+      if (recipient != null) threadRecipients.put(threadId, recipient);
+    }
+
+    return recipient;
+  }
+
+  /**
+   * Mute and notification type settings are applied here rather than when a message is loaded,
+   * so that changing them takes effect on the next update.
+   */
+  private @NonNull NotificationState buildState() {
+    NotificationState notificationState = new NotificationState();
+    Set<Long>         threads           = new HashSet<>();
+
+    for (Entry entry : orderedEntries) {
+      Recipient threadRecipient = threadRecipients.get(entry.item.getThreadId());
+      threads.add(entry.item.getThreadId());
+
+      if (threadRecipient == null) {
+        notificationState.addNotification(entry.item);
+      } else if (threadRecipient.isMuted() || threadRecipient.notifyType == RecipientDatabase.NOTIFY_TYPE_NONE) {
+        // do nothing, no notifications
+      } else if (threadRecipient.notifyType != RecipientDatabase.NOTIFY_TYPE_MENTIONS || entry.mentioned) {
+        notificationState.addNotification(entry.item);
+      }
+    }
+
+    threadRecipients.keySet().retainAll(threads);
+    return notificationState;
+  }
+
+  private static class Entry {
+    private final NotificationItem item;
+    private final long             dateReceived;
+    private final boolean          mentioned;
+
+    private Entry(@NonNull NotificationItem item, long dateReceived, boolean mentioned) {
+      this.item         = item;
+      this.dateReceived = dateReceived;
+      this.mentioned    = mentioned;
+    }
+  }
+}
@@ -5,6 +5,7 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import androidx.annotation.NonNull;
 import android.text.TextUtils;
+import androidx.annotation.Nullable;
 
 import com.annimon.stream.Stream;
 
@@ -25,14 +26,25 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages data retrieval for search.
+ *
+ * Messages are returned a page at a time. Starting a new query cancels the ones that are still
+ * queued or running, whose callbacks are then never called. While the user is typing, a query
+ * that only narrows down the previous one searches just the previous results if they all fit in
+ * one page.
  */
 public class SearchRepository {
 
   private static final String TAG = SearchRepository.class.getSimpleName();
 
+  public static final int PAGE_SIZE = 100;
+
+  private static final long NARROWING_MAX_AGE_MS = TimeUnit.SECONDS.toMillis(10);
+
   private static final Set<Character> BANNED_CHARACTERS = new HashSet<>();
   static {
     // Several ranges of invalid ASCII characters
@@ -55,6 +67,9 @@ public class SearchRepository {
   private final ThreadDatabase   threadDatabase;
   private final ContactAccessor  contactAccessor;
   private final Executor         executor;
+  private final AtomicInteger    latestQueryId;
+
+  private volatile CompleteResult lastCompleteResult;
 
   public SearchRepository(@NonNull Context context,
                           @NonNull SearchDatabase searchDatabase,
@@ -67,15 +82,23 @@ public class SearchRepository {
     this.threadDatabase   = threadDatabase;
     this.contactAccessor  = contactAccessor;
     this.executor         = executor;
+    this.latestQueryId    = new AtomicInteger();
   }
 
+  /**
+   * Messages are ranked by relevance.
+   */
   public void query(@NonNull String query, @NonNull Callback<SearchResult> callback) {
+    int queryId = latestQueryId.incrementAndGet();
+
     if (TextUtils.isEmpty(query)) {
       callback.onResult(SearchResult.EMPTY);
       return;
     }
 
     executor.execute(() -> {
+      if (isCancelled(queryId)) return;
+
       Stopwatch timer = new Stopwatch("FtsQuery");
 
       String cleanQuery = sanitizeQuery(query);
@@ -87,30 +110,68 @@ public class SearchRepository {
       CursorList<ThreadRecord> conversations = queryConversations(cleanQuery);
       timer.split("conversations");
 
-      CursorList<MessageResult> messages = queryMessages(cleanQuery);
+      CursorList<MessageResult> messages = queryMessages(cleanQuery, -1, true, null, queryId);
       timer.split("messages");
 
       timer.stop(TAG);
 
+      if (messages == null) {
+        contacts.close();
+        conversations.close();
+        return;
+      }
+
       callback.onResult(new SearchResult(cleanQuery, contacts, conversations, messages));
     });
   }
 
+  /**
+   * Returns the first page of messages in the thread, newest first.
+   */
   public void query(@NonNull String query, long threadId, @NonNull Callback<CursorList<MessageResult>> callback) {
+    int queryId = latestQueryId.incrementAndGet();
+
     if (TextUtils.isEmpty(query)) {
       callback.onResult(CursorList.emptyList());
       return;
     }
 
+    queryThread(query, threadId, null, queryId, callback);
+  }
+
+  /**
+   * Returns the page of messages in the thread that comes after {@code last}, unless the query has
+   * been cancelled or replaced by another one since.
+   */
+  public void queryNextPage(@NonNull String query, long threadId, @NonNull MessageResult last, @NonNull Callback<CursorList<MessageResult>> callback) {
+    queryThread(query, threadId, last, latestQueryId.get(), callback);
+  }
+
+  /**
+   * Cancels every query that hasn't returned its result yet.
+   */
+  public void cancelPendingQueries() {
+    latestQueryId.incrementAndGet();
+  }
+
+  private void queryThread(@NonNull String query, long threadId, @Nullable MessageResult after, int queryId, @NonNull Callback<CursorList<MessageResult>> callback) {
     executor.execute(() -> {
+      if (isCancelled(queryId)) return;
+
       long startTime = System.currentTimeMillis();
-      CursorList<MessageResult> messages = queryMessages(sanitizeQuery(query), threadId);
+      CursorList<MessageResult> messages = queryMessages(sanitizeQuery(query), threadId, false, after, queryId);
       Log.d(TAG, "[ConversationQuery] " + (System.currentTimeMillis() - startTime) + " ms");
 
-      callback.onResult(messages);
+      if (messages != null) {
+        callback.onResult(messages);
+      }
     });
   }
 
+  private boolean isCancelled(int queryId) {
+    return queryId != latestQueryId.get();
+  }
+
   private CursorList<Recipient> queryContacts(String query) {
     return CursorList.emptyList();
     /* Loki - We don't need contacts permission
@@ -135,16 +196,47 @@ public class SearchRepository {
                                  : CursorList.emptyList();
   }
 
-  private CursorList<MessageResult> queryMessages(@NonNull String query) {
-    Cursor messages = searchDatabase.queryMessages(query);
-    return messages != null ? new CursorList<>(messages, new MessageModelBuilder(context))
-                            : CursorList.emptyList();
-  }
+  /**
+   * @return The page of messages after {@code after}, or null if the query was cancelled.
+   */
+  private @Nullable CursorList<MessageResult> queryMessages(@NonNull String query, long threadId, boolean ranked, @Nullable MessageResult after, int queryId) {
+    SearchDatabase.PageKey    pageKey    = null;
+    SearchDatabase.MessageIds within     = null;
+    long                      searchedAt = System.currentTimeMillis();
+
+    if (after != null) {
+      pageKey = new SearchDatabase.PageKey(after.rank, after.receivedTimestampMs, after.isMms, after.messageId);
+    } else {
+      CompleteResult previous = lastCompleteResult;
+
+      if (previous != null && previous.isNarrowedBy(query, threadId)) {
+        within     = previous.messageIds;
+        searchedAt = previous.searchedAt;
+      }
+    }
+
+    if (within != null && within.size() == 0) {
+      lastCompleteResult = new CompleteResult(query, threadId, within, searchedAt);
+      return CursorList.emptyList();
+    }
+
+    Cursor messages = searchDatabase.queryMessages(query, threadId, ranked, pageKey, within, PAGE_SIZE);
+
+    if (messages == null) {
+      return CursorList.emptyList();
+    }
 
-  private CursorList<MessageResult> queryMessages(@NonNull String query, long threadId) {
-    Cursor messages = searchDatabase.queryMessages(query, threadId);
-    return messages != null ? new CursorList<>(messages, new MessageModelBuilder(context))
-                            : CursorList.emptyList();
+    if (isCancelled(queryId)) {
+      messages.close();
+      return null;
+    }
+
+    if (after == null) {
+      lastCompleteResult = messages.getCount() < PAGE_SIZE ? new CompleteResult(query, threadId, SearchDatabase.getMessageIds(messages), searchedAt)
+                                                           : null;
+    }
+
+    return new CursorList<>(messages, new MessageModelBuilder(context));
   }
 
   /**
@@ -215,8 +307,41 @@ public class SearchRepository {
       String    body                  = cursor.getString(cursor.getColumnIndexOrThrow(SearchDatabase.SNIPPET));
       long      receivedMs            = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
       long      threadId              = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.THREAD_ID));
+      long      messageId             = cursor.getLong(cursor.getColumnIndexOrThrow(SearchDatabase.MESSAGE_ID));
+      boolean   isMms                 = cursor.getInt(cursor.getColumnIndexOrThrow(SearchDatabase.IS_MMS)) == 1;
+      double    rank                  = cursor.getDouble(cursor.getColumnIndexOrThrow(SearchDatabase.RANK));
+
+      return new MessageResult(conversationRecipient, messageRecipient, body, threadId, receivedMs, messageId, isMms, rank);
+    }
+  }
+
+  /**
+   * All the messages that matched a query, which is the case when they fit in one page.
+   */
+  private static class CompleteResult {
+
+    private final String                    query;
+    private final long                      threadId;
+    private final SearchDatabase.MessageIds messageIds;
+    private final long                      searchedAt;
+
+    CompleteResult(@NonNull String query, long threadId, @NonNull SearchDatabase.MessageIds messageIds, long searchedAt) {
+      this.query      = query;
+      this.threadId   = threadId;
+      this.messageIds = messageIds;
+      this.searchedAt = searchedAt;
+    }
 
-      return new MessageResult(conversationRecipient, messageRecipient, body, threadId, receivedMs);
+    /**
+     * Every prefix token of this query is also a prefix of a token in one that extends it, so it
+     * can only match a subset of these messages. Only used for a short while after the database
+     * was last searched, as messages that arrived since then are missing.
+     */
+    boolean isNarrowedBy(@NonNull String query, long threadId) {
+      return this.threadId == threadId          &&
+             this.query.trim().length() > 0     &&
+             query.startsWith(this.query)       &&
+             System.currentTimeMillis() - searchedAt < NARROWING_MAX_AGE_MS;
     }
   }
 
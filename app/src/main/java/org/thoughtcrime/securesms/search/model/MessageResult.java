@@ -14,17 +14,26 @@ public class MessageResult {
   public final String    bodySnippet;
   public final long      threadId;
   public final long      receivedTimestampMs;
+  public final long      messageId;
+  public final boolean   isMms;
+  public final double    rank;
 
   public MessageResult(@NonNull Recipient conversationRecipient,
                        @NonNull Recipient messageRecipient,
                        @NonNull String bodySnippet,
                        long threadId,
-                       long receivedTimestampMs)
+                       long receivedTimestampMs,
+                       long messageId,
+                       boolean isMms,
+                       double rank)
   {
     this.conversationRecipient = conversationRecipient;
     this.messageRecipient      = messageRecipient;
     this.bodySnippet           = bodySnippet;
     this.threadId              = threadId;
     this.receivedTimestampMs   = receivedTimestampMs;
+    this.messageId             = messageId;
+    this.isMms                 = isMms;
+    this.rank                  = rank;
   }
 }
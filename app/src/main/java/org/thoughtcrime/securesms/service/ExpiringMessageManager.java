@@ -16,6 +16,7 @@ import org.session.libsignal.messages.SignalServiceGroup;
 import org.session.libsignal.utilities.Log;
 
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MessagingDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.SmsDatabase;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
@@ -23,8 +24,8 @@ import org.session.libsession.messaging.messages.signal.IncomingMediaMessage;
 import org.thoughtcrime.securesms.mms.MmsException;
 
 import java.io.IOException;
-import java.util.Comparator;
-import java.util.TreeSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -32,8 +33,13 @@ public class ExpiringMessageManager implements SSKEnvironment.MessageExpirationM
 
   private static final String TAG = ExpiringMessageManager.class.getSimpleName();
 
-  private final TreeSet<ExpiringMessageReference> expiringMessageReferences = new TreeSet<>(new ExpiringMessageComparator());
-  private final Executor                          executor                  = Executors.newSingleThreadExecutor();
+  /** Messages expiring within this window of the earliest one are deleted in the same batch. */
+  private static final long BATCH_WINDOW_MILLIS = 1000;
+
+  private final Object   lock     = new Object();
+  private final Executor executor = Executors.newSingleThreadExecutor();
+
+  private boolean scheduleChanged;
 
   private final SmsDatabase smsDatabase;
   private final MmsDatabase mmsDatabase;
@@ -44,7 +50,6 @@ public class ExpiringMessageManager implements SSKEnvironment.MessageExpirationM
     this.smsDatabase = DatabaseFactory.getSmsDatabase(context);
     this.mmsDatabase = DatabaseFactory.getMmsDatabase(context);
 
-    executor.execute(new LoadTask());
     executor.execute(new ProcessTask());
   }
 
@@ -55,15 +60,16 @@ public class ExpiringMessageManager implements SSKEnvironment.MessageExpirationM
   public void scheduleDeletion(long id, boolean mms, long startedAtTimestamp, long expiresInMillis) {
     long expiresAtMillis = startedAtTimestamp + expiresInMillis;
 
-    synchronized (expiringMessageReferences) {
-      expiringMessageReferences.add(new ExpiringMessageReference(id, mms, expiresAtMillis));
-      expiringMessageReferences.notifyAll();
-    }
+    if (mms) mmsDatabase.setExpiresAt(id, expiresAtMillis);
+    else     smsDatabase.setExpiresAt(id, expiresAtMillis);
+
+    checkSchedule();
   }
 
   public void checkSchedule() {
-    synchronized (expiringMessageReferences) {
-      expiringMessageReferences.notifyAll();
+    synchronized (lock) {
+      scheduleChanged = true;
+      lock.notifyAll();
     }
   }
 
@@ -177,101 +183,57 @@ public class ExpiringMessageManager implements SSKEnvironment.MessageExpirationM
     }
   }
 
-  private class LoadTask implements Runnable {
-
-    public void run() {
-      SmsDatabase.Reader smsReader = smsDatabase.readerFor(smsDatabase.getExpirationStartedMessages());
-      MmsDatabase.Reader mmsReader = mmsDatabase.getExpireStartedMessages();
-
-      MessageRecord messageRecord;
-
-      while ((messageRecord = smsReader.getNext()) != null) {
-        expiringMessageReferences.add(new ExpiringMessageReference(messageRecord.getId(),
-                                                                   messageRecord.isMms(),
-                                                                   messageRecord.getExpireStarted() + messageRecord.getExpiresIn()));
-      }
-
-      while ((messageRecord = mmsReader.getNext()) != null) {
-        expiringMessageReferences.add(new ExpiringMessageReference(messageRecord.getId(),
-                                                                   messageRecord.isMms(),
-                                                                   messageRecord.getExpireStarted() + messageRecord.getExpiresIn()));
-      }
-
-      smsReader.close();
-      mmsReader.close();
-    }
-  }
-
+  /**
+   * Deletes every message that is due (or due within {@link #BATCH_WINDOW_MILLIS}) in one
+   * transaction per thread, then sleeps until the next expiration time recorded in the database.
+   */
   @SuppressWarnings("InfiniteLoopStatement")
   private class ProcessTask implements Runnable {
     public void run() {
       while (true) {
-        ExpiringMessageReference expiredMessage = null;
-
-        synchronized (expiringMessageReferences) {
-          try {
-            while (expiringMessageReferences.isEmpty()) expiringMessageReferences.wait();
+        long now = System.currentTimeMillis();
 
-            ExpiringMessageReference nextReference = expiringMessageReferences.first();
-            long                     waitTime      = nextReference.expiresAtMillis - System.currentTimeMillis();
+        deleteMessagesExpiringBefore(smsDatabase, now + BATCH_WINDOW_MILLIS);
+        deleteMessagesExpiringBefore(mmsDatabase, now + BATCH_WINDOW_MILLIS);
 
-            if (waitTime > 0) {
-              ExpirationListener.setAlarm(context, waitTime);
-              expiringMessageReferences.wait(waitTime);
-            } else {
-              expiredMessage = nextReference;
-              expiringMessageReferences.remove(nextReference);
+        synchronized (lock) {
+          try {
+            if (!scheduleChanged) {
+              long nextExpiration = getNextExpirationTime();
+
+              if (nextExpiration == 0) {
+                lock.wait();
+              } else {
+                long waitTime = nextExpiration - System.currentTimeMillis();
+
+                if (waitTime > 0) {
+                  ExpirationListener.setAlarm(context, waitTime);
+                  lock.wait(waitTime);
+                }
+              }
             }
 
+            scheduleChanged = false;
           } catch (InterruptedException e) {
             Log.w(TAG, e);
           }
         }
-
-        if (expiredMessage != null) {
-          if (expiredMessage.mms) mmsDatabase.deleteMessage(expiredMessage.id);
-          else                    smsDatabase.deleteMessage(expiredMessage.id);
-        }
       }
     }
-  }
-
-  private static class ExpiringMessageReference {
-    private final long    id;
-    private final boolean mms;
-    private final long    expiresAtMillis;
-
-    private ExpiringMessageReference(long id, boolean mms, long expiresAtMillis) {
-      this.id = id;
-      this.mms = mms;
-      this.expiresAtMillis = expiresAtMillis;
-    }
-
-    @Override
-    public boolean equals(Object other) {
-      if (other == null) return false;
-      if (!(other instanceof ExpiringMessageReference)) return false;
 
-      ExpiringMessageReference that = (ExpiringMessageReference)other;
-      return this.id == that.id && this.mms == that.mms && this.expiresAtMillis == that.expiresAtMillis;
+    private void deleteMessagesExpiringBefore(MessagingDatabase database, long timestamp) {
+      for (Map.Entry<Long, List<Long>> thread : database.getMessagesExpiringBefore(timestamp).entrySet()) {
+        database.deleteMessages(thread.getKey(), thread.getValue());
+      }
     }
 
-    @Override
-    public int hashCode() {
-      return (int)this.id ^ (mms ? 1 : 0) ^ (int)expiresAtMillis;
-    }
-  }
+    private long getNextExpirationTime() {
+      long nextSms = smsDatabase.getNextExpirationTime();
+      long nextMms = mmsDatabase.getNextExpirationTime();
 
-  private static class ExpiringMessageComparator implements Comparator<ExpiringMessageReference> {
-    @Override
-    public int compare(ExpiringMessageReference lhs, ExpiringMessageReference rhs) {
-      if      (lhs.expiresAtMillis < rhs.expiresAtMillis) return -1;
-      else if (lhs.expiresAtMillis > rhs.expiresAtMillis) return 1;
-      else if (lhs.id < rhs.id)                           return -1;
-      else if (lhs.id > rhs.id)                           return 1;
-      else if (!lhs.mms && rhs.mms)                       return -1;
-      else if (lhs.mms && !rhs.mms)                       return 1;
-      else                                                return 0;
+      if      (nextSms == 0) return nextMms;
+      else if (nextMms == 0) return nextSms;
+      else                   return Math.min(nextSms, nextMms);
     }
   }
 
@@ -3,8 +3,12 @@ package org.thoughtcrime.securesms.util;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.database.Cursor;
+import androidx.annotation.Nullable;
 import androidx.loader.content.AsyncTaskLoader;
 
+import org.thoughtcrime.securesms.database.CursorSnapshot;
+import org.thoughtcrime.securesms.database.DiffCursor;
+
 /**
  * A Loader similar to CursorLoader that doesn't require queries to go through the ContentResolver
  * to get the benefits of reloading when content has changed.
@@ -18,6 +22,7 @@ public abstract class AbstractCursorLoader extends AsyncTaskLoader<Cursor> {
   protected final Context                  context;
   private   final ForceLoadContentObserver observer;
   protected       Cursor                   cursor;
+  private volatile CursorSnapshot          lastSnapshot;
 
   public AbstractCursorLoader(Context context) {
     super(context);
@@ -27,6 +32,14 @@ public abstract class AbstractCursorLoader extends AsyncTaskLoader<Cursor> {
 
   public abstract Cursor getCursor();
 
+  /**
+   * Loaders that return a callback here deliver {@link DiffCursor}s, diffed in the background
+   * against the previously loaded cursor.
+   */
+  protected @Nullable CursorSnapshot.ItemCallback getDiffCallback() {
+    return null;
+  }
+
   @Override
   public void deliverResult(Cursor newCursor) {
     if (isReset()) {
@@ -75,6 +88,13 @@ public abstract class AbstractCursorLoader extends AsyncTaskLoader<Cursor> {
     if (newCursor != null) {
       newCursor.getCount();
       newCursor.registerContentObserver(observer);
+
+      CursorSnapshot.ItemCallback diffCallback = getDiffCallback();
+      if (diffCallback != null) {
+        DiffCursor diffCursor = DiffCursor.create(newCursor, lastSnapshot, diffCallback);
+        lastSnapshot = diffCursor.getSnapshot();
+        return diffCursor;
+      }
     }
     return newCursor;
   }
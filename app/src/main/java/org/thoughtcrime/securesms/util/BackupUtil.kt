@@ -17,6 +17,7 @@ import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsignal.utilities.ByteUtil
 import org.session.libsignal.utilities.Log
 import org.thoughtcrime.securesms.backup.BackupEvent
+import org.thoughtcrime.securesms.backup.BackupExportCheckpoint
 import org.thoughtcrime.securesms.backup.BackupPassphrase
 import org.thoughtcrime.securesms.backup.BackupProtos.SharedPreference
 import org.thoughtcrime.securesms.backup.FullBackupExporter
@@ -106,6 +107,8 @@ object BackupUtil {
     fun disableBackups(context: Context, deleteBackupFiles: Boolean) {
         BackupPassphrase.set(context, null)
         TextSecurePreferences.setBackupEnabled(context, false)
+        // A partial backup can't be resumed anymore once backups are disabled
+        BackupExportCheckpoint.load(context)?.let { BackupExportCheckpoint.discard(context, it) }
         if (deleteBackupFiles) {
             deleteAllBackupFiles(context)
         }
@@ -189,7 +192,23 @@ object BackupUtil {
         val dirUri = getSelectedBackupDirIfValid(context)
                 ?: throw IOException("Backup save directory is not selected or invalid")
 
-        val date = Date()
+        // An interrupted export is continued in its existing file, a new one is only created otherwise.
+        val exportedFile = FullBackupExporter.export(context,
+                AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                DatabaseFactory.getBackupDatabase(context),
+                backupPassword) { startedAt -> createBackupDocument(context, dirUri, Date(startedAt)) }
+
+        //TODO Use real file size.
+        val record = DatabaseFactory.getLokiBackupFilesDatabase(context)
+                .insertBackupFile(BackupFileRecord(exportedFile.fileUri, -1, Date(exportedFile.startedAt)))
+
+        Log.v(TAG, "A backup file was created: ${exportedFile.fileUri}")
+
+        return record
+    }
+
+    @Throws(IOException::class)
+    private fun createBackupDocument(context: Context, dirUri: Uri, date: Date): Uri {
         val timestamp = SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US).format(date)
         val fileName = String.format("session-%s.backup", timestamp)
 
@@ -203,26 +222,7 @@ object BackupUtil {
             Toast.makeText(context, "Cannot create writable file in the dir $dirUri", Toast.LENGTH_LONG).show()
             throw IOException("Cannot create writable file in the dir $dirUri")
         }
-
-        try {
-            FullBackupExporter.export(context,
-                    AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                    DatabaseFactory.getBackupDatabase(context),
-                    fileUri,
-                    backupPassword)
-        } catch (e: Exception) {
-            // Delete the backup file on any error.
-            DocumentsContract.deleteDocument(context.contentResolver, fileUri)
-            throw e
-        }
-
-        //TODO Use real file size.
-        val record = DatabaseFactory.getLokiBackupFilesDatabase(context)
-                .insertBackupFile(BackupFileRecord(fileUri, -1, date))
-
-        Log.v(TAG, "A backup file was created: $fileUri")
-
-        return record
+        return fileUri
     }
 
     @JvmStatic
@@ -232,16 +232,7 @@ object BackupUtil {
         db.getBackupFiles().forEach { record ->
             if (except != null && except.contains(record)) return@forEach
 
-            // Try to delete the related file. The operation may fail in many cases
-            // (the user moved/deleted the file, revoked the write permission, etc), so that's OK.
-            try {
-                val result = DocumentsContract.deleteDocument(context.contentResolver, record.uri)
-                if (!result) {
-                    Log.w(TAG, "Failed to delete backup file: ${record.uri}")
-                }
-            } catch (e: Exception) {
-                Log.w(TAG, "Failed to delete backup file: ${record.uri}", e)
-            }
+            deleteBackupDocument(context, record.uri)
 
             db.deleteBackupFile(record)
 
@@ -249,6 +240,22 @@ object BackupUtil {
         }
     }
 
+    /**
+     * Tries to delete the given backup file. The operation may fail in many cases
+     * (the user moved/deleted the file, revoked the write permission, etc), so that's OK.
+     */
+    @JvmStatic
+    fun deleteBackupDocument(context: Context, fileUri: Uri) {
+        try {
+            val result = DocumentsContract.deleteDocument(context.contentResolver, fileUri)
+            if (!result) {
+                Log.w(TAG, "Failed to delete backup file: $fileUri")
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to delete backup file: $fileUri", e)
+        }
+    }
+
     @JvmStatic
     fun computeBackupKey(passphrase: String, salt: ByteArray?): ByteArray {
         return try {
@@ -30,6 +30,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -43,11 +44,11 @@ public class BitmapUtil {
 
   private static final String TAG = BitmapUtil.class.getSimpleName();
 
-  private static final int MAX_COMPRESSION_QUALITY          = 95;
-  private static final int MIN_COMPRESSION_QUALITY          = 45;
-  private static final int MAX_COMPRESSION_ATTEMPTS         = 5;
-  private static final int MIN_COMPRESSION_QUALITY_DECREASE = 5;
-  private static final int MAX_IMAGE_HALF_SCALES            = 3;
+  private static final int MAX_COMPRESSION_QUALITY  = 95;
+  private static final int MIN_COMPRESSION_QUALITY  = 45;
+  private static final int MAX_COMPRESSION_ATTEMPTS = 5;
+  private static final int MAX_IMAGE_HALF_SCALES    = 3;
+  private static final int DETAIL_SAMPLE_SIZE       = 64;
 
   @WorkerThread
   public static <T> ScaleResult createScaledBytes(@NonNull Context context, @NonNull T model, @NonNull MediaConstraints constraints)
@@ -78,84 +79,172 @@ public class BitmapUtil {
                                                   int maxImageSize,
                                                   @NonNull CompressFormat format)
       throws BitmapDecodingException
-  {
-    return createScaledBytes(context, model, maxImageWidth, maxImageHeight, maxImageSize, format, 1, 0);
-  }
-
-  @WorkerThread
-  private static <T> ScaleResult createScaledBytes(@NonNull Context context,
-                                                   @NonNull T model,
-                                                   final int maxImageWidth,
-                                                   final int maxImageHeight,
-                                                   final int maxImageSize,
-                                                   @NonNull CompressFormat format,
-                                                   final int sizeAttempt,
-                                                   int totalAttempts)
-      throws BitmapDecodingException
   {
     try {
-      int    quality  = MAX_COMPRESSION_QUALITY;
-      int    attempts = 0;
-      byte[] bytes;
-
-      Bitmap scaledBitmap = GlideApp.with(context.getApplicationContext())
-                                    .asBitmap()
-                                    .load(model)
-                                    .skipMemoryCache(true)
-                                    .diskCacheStrategy(DiskCacheStrategy.NONE)
-                                    .centerInside()
-                                    .submit(maxImageWidth, maxImageHeight)
-                                    .get();
-
-      if (scaledBitmap == null) {
+      Bitmap decodedBitmap = GlideApp.with(context.getApplicationContext())
+                                     .asBitmap()
+                                     .load(model)
+                                     .skipMemoryCache(true)
+                                     .diskCacheStrategy(DiskCacheStrategy.NONE)
+                                     .centerInside()
+                                     .submit(maxImageWidth, maxImageHeight)
+                                     .get();
+
+      if (decodedBitmap == null) {
         throw new BitmapDecodingException("Unable to decode image");
       }
 
-      Log.i(TAG, String.format(Locale.US,"Initial scaled bitmap has size of %d bytes.", scaledBitmap.getByteCount()));
+      Log.i(TAG, String.format(Locale.US,"Initial scaled bitmap has size of %d bytes.", decodedBitmap.getByteCount()));
       Log.i(TAG, String.format(Locale.US, "Max dimensions %d x %d, %d bytes", maxImageWidth, maxImageHeight, maxImageSize));
 
       try {
-        do {
-          totalAttempts++;
-          ByteArrayOutputStream baos = new ByteArrayOutputStream();
-          scaledBitmap.compress(format, quality, baos);
-          bytes = baos.toByteArray();
-
-          Log.d(TAG, "iteration with quality " + quality + " size " + bytes.length + " bytes.");
-          if (quality == MIN_COMPRESSION_QUALITY) break;
-
-          int nextQuality = (int)Math.floor(quality * Math.sqrt((double)maxImageSize / bytes.length));
-          if (quality - nextQuality < MIN_COMPRESSION_QUALITY_DECREASE) {
-            nextQuality = quality - MIN_COMPRESSION_QUALITY_DECREASE;
-          }
-          quality = Math.max(nextQuality, MIN_COMPRESSION_QUALITY);
-        }
-        while (bytes.length > maxImageSize && attempts++ < MAX_COMPRESSION_ATTEMPTS);
+        return compress(model, decodedBitmap, maxImageSize, format);
+      } finally {
+        decodedBitmap.recycle();
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      throw new BitmapDecodingException(e);
+    }
+  }
 
-        if (bytes.length > maxImageSize) {
-          if (sizeAttempt <= MAX_IMAGE_HALF_SCALES) {
-            scaledBitmap.recycle();
-            scaledBitmap = null;
+  /**
+   * Compresses an already decoded bitmap. The scale and first quality are estimated from how much
+   * detail the bitmap has, the quality is then narrowed down with a bounded search, and if even the
+   * lowest quality is too large the decoded bitmap is scaled down further rather than decoded again.
+   */
+  private static <T> ScaleResult compress(@NonNull T model, @NonNull Bitmap decodedBitmap, int maxImageSize, @NonNull CompressFormat format)
+      throws BitmapDecodingException
+  {
+    double  minScale = 1.0 / (1 << MAX_IMAGE_HALF_SCALES);
+    double  detail   = estimateDetail(decodedBitmap);
+    boolean lossy    = format != CompressFormat.PNG;
 
-            Log.i(TAG, "Halving dimensions and retrying.");
-            return createScaledBytes(context, model, maxImageWidth / 2, maxImageHeight / 2, maxImageSize, format, sizeAttempt + 1, totalAttempts);
-          } else {
-            throw new BitmapDecodingException("Unable to scale image below " + bytes.length + " bytes.");
-          }
-        }
+    ImageCompressionPlanner.Plan plan = ImageCompressionPlanner.plan(decodedBitmap.getWidth(), decodedBitmap.getHeight(), detail, maxImageSize,
+                                                                     MIN_COMPRESSION_QUALITY, MAX_COMPRESSION_QUALITY, minScale);
+
+    ReusableByteArrayOutputStream buffer       = new ReusableByteArrayOutputStream();
+    double                        scale        = plan.scale;
+    int                           quality      = plan.quality;
+    int                           sizeAttempts = 0;
+
+    Log.d(TAG, String.format(Locale.US, "Estimated detail %.2f, scale %.2f, quality %d.", detail, scale, quality));
+
+    while (true) {
+      sizeAttempts++;
+
+      Bitmap  bitmap  = scaleBitmap(decodedBitmap, scale);
+      Encoder encoder = new Encoder(bitmap, format, buffer, maxImageSize);
 
-        if (bytes.length <= 0) {
-          throw new BitmapDecodingException("Decoding failed. Bitmap has a length of " + bytes.length + " bytes.");
+      try {
+        int bestQuality = lossy ? ImageCompressionPlanner.findQuality(encoder, quality, MIN_COMPRESSION_QUALITY, MAX_COMPRESSION_QUALITY, maxImageSize, MAX_COMPRESSION_ATTEMPTS)
+                                : encoder.encode(MAX_COMPRESSION_QUALITY) <= maxImageSize ? MAX_COMPRESSION_QUALITY : -1;
+
+        if (bestQuality != -1) {
+          Log.i(TAG, String.format(Locale.US, "createScaledBytes(%s) -> quality %d, %d attempt(s) over %d sizes.", model.getClass().getName(), bestQuality, encoder.attempts, sizeAttempts));
+          return new ScaleResult(encoder.bestBytes, bitmap.getWidth(), bitmap.getHeight());
         }
 
-        Log.i(TAG, String.format(Locale.US, "createScaledBytes(%s) -> quality %d, %d attempt(s) over %d sizes.", model.getClass().getName(), quality, totalAttempts, sizeAttempt));
+        if (scale <= minScale || encoder.lastSize <= 0) {
+          throw new BitmapDecodingException("Unable to scale image below " + encoder.lastSize + " bytes.");
+        }
 
-        return new ScaleResult(bytes, scaledBitmap.getWidth(), scaledBitmap.getHeight());
+        Log.i(TAG, "Still " + encoder.lastSize + " bytes at the lowest quality, scaling down and retrying.");
+        scale   = Math.max(minScale, ImageCompressionPlanner.nextScale(scale, encoder.lastSize, maxImageSize));
+        quality = ImageCompressionPlanner.estimateQuality((long) (decodedBitmap.getWidth() * scale) * (long) (decodedBitmap.getHeight() * scale), detail,
+                                                          maxImageSize, MIN_COMPRESSION_QUALITY, MAX_COMPRESSION_QUALITY);
+      } catch (IOException e) {
+        throw new BitmapDecodingException(e);
       } finally {
-        if (scaledBitmap != null) scaledBitmap.recycle();
+        if (bitmap != decodedBitmap) bitmap.recycle();
       }
-    } catch (InterruptedException | ExecutionException e) {
-      throw new BitmapDecodingException(e);
+    }
+  }
+
+  private static @NonNull Bitmap scaleBitmap(@NonNull Bitmap bitmap, double scale) {
+    if (scale >= 1) return bitmap;
+
+    int width  = Math.max(1, (int) Math.round(bitmap.getWidth() * scale));
+    int height = Math.max(1, (int) Math.round(bitmap.getHeight() * scale));
+
+    return Bitmap.createScaledBitmap(bitmap, width, height, true);
+  }
+
+  /**
+   * Samples the luminance of pairs of neighbouring rows spread over the bitmap.
+   */
+  private static double estimateDetail(@NonNull Bitmap bitmap) {
+    int width       = bitmap.getWidth();
+    int height      = bitmap.getHeight();
+    int sampleWidth = Math.min(width, DETAIL_SAMPLE_SIZE);
+    int rows        = Math.min(height / 2, DETAIL_SAMPLE_SIZE / 2);
+
+    if (rows == 0 || sampleWidth <= 1) return 1;
+
+    int[] row       = new int[width];
+    int[] luminance = new int[rows * 2 * sampleWidth];
+    int   x0        = (width - sampleWidth) / 2;
+
+    for (int i = 0; i < rows; i++) {
+      int y = (int) ((long) i * (height - 1) / rows);
+
+      for (int j = 0; j < 2; j++) {
+        bitmap.getPixels(row, 0, width, 0, y + j, width, 1);
+
+        for (int x = 0; x < sampleWidth; x++) {
+          int pixel = row[x0 + x];
+          luminance[(i * 2 + j) * sampleWidth + x] = (((pixel >> 16) & 0xff) * 3 + ((pixel >> 8) & 0xff) * 6 + (pixel & 0xff)) / 10;
+        }
+      }
+    }
+
+    return ImageCompressionPlanner.estimateDetail(luminance, sampleWidth);
+  }
+
+  /**
+   * Encodes into a shared buffer and only copies out the best result that fits.
+   */
+  private static final class Encoder implements ImageCompressionPlanner.Encoder {
+    private final Bitmap                        bitmap;
+    private final CompressFormat                format;
+    private final ReusableByteArrayOutputStream buffer;
+    private final int                           maxImageSize;
+
+    private byte[] bestBytes;
+    private int    bestQuality = -1;
+    private int    lastSize;
+    private int    attempts;
+
+    private Encoder(@NonNull Bitmap bitmap, @NonNull CompressFormat format, @NonNull ReusableByteArrayOutputStream buffer, int maxImageSize) {
+      this.bitmap       = bitmap;
+      this.format       = format;
+      this.buffer       = buffer;
+      this.maxImageSize = maxImageSize;
+    }
+
+    @Override
+    public int encode(int quality) throws IOException {
+      attempts++;
+      buffer.reset();
+
+      if (!bitmap.compress(format, quality, buffer)) {
+        throw new IOException("Failed to compress bitmap.");
+      }
+
+      lastSize = buffer.size();
+      Log.d(TAG, "iteration with quality " + quality + " size " + lastSize + " bytes.");
+
+      if (lastSize > 0 && lastSize <= maxImageSize && quality > bestQuality) {
+        bestQuality = quality;
+        bestBytes   = buffer.copyBytes();
+      }
+
+      return lastSize > 0 ? lastSize : Integer.MAX_VALUE;
+    }
+  }
+
+  private static final class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+    private @NonNull byte[] copyBytes() {
+      return Arrays.copyOf(buf, count);
     }
   }
 
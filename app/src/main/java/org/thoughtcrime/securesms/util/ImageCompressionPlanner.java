@@ -0,0 +1,156 @@
+package org.thoughtcrime.securesms.util;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * Works out how to fit an image into a byte budget with as few encodes as possible.
+ *
+ * The size of a JPEG grows with the number of pixels, with the quality and with how much detail
+ * the image has. {@link #plan} uses a simple model of that to pick a scale and a first quality to
+ * try, and {@link #findQuality} then narrows down on the highest quality that fits with a bounded
+ * binary search around it.
+ */
+final class ImageCompressionPlanner {
+
+  /** Bits per pixel of an image without any detail at the reference quality. */
+  private static final double FLAT_BITS_PER_PIXEL     = 0.3;
+  /** Extra bits per pixel of an image with as much detail as {@link #estimateDetail} reports. */
+  private static final double DETAILED_BITS_PER_PIXEL = 3.7;
+  private static final int    REFERENCE_QUALITY       = 75;
+  /** Quality steps over which the size doubles. */
+  private static final double QUALITY_DOUBLING_STEPS  = 15;
+  /** How much of the budget to aim for when picking a scale, as the model is only approximate. */
+  private static final double SCALE_SAFETY_FACTOR     = 0.9;
+
+  interface Encoder {
+    /**
+     * @return The size in bytes of the image encoded at the given quality.
+     */
+    int encode(int quality) throws IOException;
+  }
+
+  static final class Plan {
+    final double scale;
+    final int    quality;
+
+    Plan(double scale, int quality) {
+      this.scale   = scale;
+      this.quality = quality;
+    }
+  }
+
+  private ImageCompressionPlanner() {}
+
+  /**
+   * @param luminance    Sampled luminance values (0 - 255) in rows of {@code sampleWidth}, where
+   *                     neighbouring values are neighbouring pixels in the image.
+   * @return How much fine detail the samples have, from 0 for a flat image to 1 for noise.
+   */
+  static double estimateDetail(@NonNull int[] luminance, int sampleWidth) {
+    if (sampleWidth <= 1 || luminance.length < 2 * sampleWidth) return 1;
+
+    long total = 0;
+    int  count = 0;
+
+    for (int i = 0; i + sampleWidth < luminance.length; i++) {
+      if ((i + 1) % sampleWidth != 0) {
+        total += Math.abs(luminance[i] - luminance[i + 1]);
+        count++;
+      }
+
+      total += Math.abs(luminance[i] - luminance[i + sampleWidth]);
+      count++;
+    }
+
+    // Photos average up to about a tenth of the range between neighbouring pixels
+    return Math.min(1, total / (double) count / 32);
+  }
+
+  static int estimateSize(long pixels, double detail, int quality) {
+    double bitsPerPixel = (FLAT_BITS_PER_PIXEL + DETAILED_BITS_PER_PIXEL * detail) *
+                          Math.pow(2, (quality - REFERENCE_QUALITY) / QUALITY_DOUBLING_STEPS);
+
+    return (int) Math.min(Integer.MAX_VALUE, pixels * bitsPerPixel / 8);
+  }
+
+  /**
+   * @return The scale (at most 1 and at least {@code minScale}) and the quality to try first, so
+   *         that the estimated size is within {@code maxBytes}.
+   */
+  static @NonNull Plan plan(int width, int height, double detail, int maxBytes, int minQuality, int maxQuality, double minScale) {
+    long   pixels = (long) width * height;
+    double scale  = 1;
+
+    if (estimateSize(pixels, detail, minQuality) > maxBytes) {
+      scale = Math.sqrt(SCALE_SAFETY_FACTOR * maxBytes / estimateSize(pixels, detail, minQuality));
+      scale = Math.max(scale, minScale);
+    }
+
+    long scaledPixels = Math.max(1, Math.round(pixels * scale * scale));
+    int  quality      = estimateQuality(scaledPixels, detail, maxBytes, minQuality, maxQuality);
+
+    return new Plan(scale, quality);
+  }
+
+  /**
+   * @return The scale to try next after the image at {@code scale} was still {@code minQualitySize}
+   *         bytes at the lowest quality.
+   */
+  static double nextScale(double scale, int minQualitySize, int maxBytes) {
+    double ratio = Math.sqrt(SCALE_SAFETY_FACTOR * maxBytes / minQualitySize);
+    return scale * Math.min(ratio, SCALE_SAFETY_FACTOR);
+  }
+
+  static int estimateQuality(long pixels, double detail, int maxBytes, int minQuality, int maxQuality) {
+    double bitsPerPixel = 8.0 * maxBytes / pixels;
+    double quality      = REFERENCE_QUALITY + QUALITY_DOUBLING_STEPS * log2(bitsPerPixel / (FLAT_BITS_PER_PIXEL + DETAILED_BITS_PER_PIXEL * detail));
+
+    return (int) Math.max(minQuality, Math.min(maxQuality, Math.floor(quality)));
+  }
+
+  /**
+   * Finds the highest quality between {@code minQuality} and {@code maxQuality} at which the image
+   * fits in {@code maxBytes}, starting from the estimate. If the estimate doesn't fit, the lowest
+   * quality is tried next so that an image that can't fit at this scale costs only two encodes.
+   *
+   * @return The best quality that fit, or -1 if none did. In that case the last encode was at
+   *         {@code minQuality}, unless {@code maxAttempts} ran out before.
+   */
+  static int findQuality(@NonNull Encoder encoder, int estimate, int minQuality, int maxQuality, int maxBytes, int maxAttempts)
+      throws IOException
+  {
+    int low      = minQuality;
+    int high     = maxQuality;
+    int best     = -1;
+    int quality  = Math.max(minQuality, Math.min(maxQuality, estimate));
+    int attempts = 0;
+
+    while (low <= high && attempts++ < maxAttempts) {
+      int size = encoder.encode(quality);
+
+      if (size <= maxBytes) {
+        best = quality;
+        low  = quality + 1;
+      } else {
+        high = quality - 1;
+
+        if (best == -1 && quality != minQuality) {
+          quality = minQuality;
+          continue;
+        } else if (best == -1) {
+          break;
+        }
+      }
+
+      quality = low + (high - low + 1) / 2;
+    }
+
+    return best;
+  }
+
+  private static double log2(double value) {
+    return Math.log(value) / Math.log(2);
+  }
+}
@@ -0,0 +1,40 @@
+package org.thoughtcrime.securesms.util;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * Keeps a list that's showing its first item there when items are inserted or moved in front of
+ * it. With fine-grained updates {@link LinearLayoutManager} holds on to its current anchor, which
+ * would otherwise leave the new first item just outside of the viewport.
+ */
+public class ScrollToTopObserver extends RecyclerView.AdapterDataObserver {
+
+  private final RecyclerView recyclerView;
+
+  public ScrollToTopObserver(@NonNull RecyclerView recyclerView) {
+    this.recyclerView = recyclerView;
+  }
+
+  @Override
+  public void onItemRangeInserted(int positionStart, int itemCount) {
+    if (positionStart == 0) scrollToTopIfNeeded();
+  }
+
+  @Override
+  public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+    if (toPosition == 0) scrollToTopIfNeeded();
+  }
+
+  private void scrollToTopIfNeeded() {
+    RecyclerView.LayoutManager layoutManager = recyclerView.getLayoutManager();
+
+    // The views still have their positions from before the update until the next layout
+    if (layoutManager instanceof LinearLayoutManager &&
+        ((LinearLayoutManager) layoutManager).findFirstVisibleItemPosition() == 0)
+    {
+      recyclerView.scrollToPosition(0);
+    }
+  }
+}
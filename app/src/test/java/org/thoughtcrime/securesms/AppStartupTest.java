@@ -0,0 +1,125 @@
+package org.thoughtcrime.securesms;
+
+import android.app.Application;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link AppStartup} logs its timings, which needs the Android framework.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public class AppStartupTest {
+
+  @Test
+  public void execute_blockingTasksRunInOrderBeforeOthers() {
+    List<String> events  = new ArrayList<>();
+    AppStartup   subject = new AppStartup(Runnable::run);
+
+    subject.addNonBlocking("c", () -> events.add("c"))
+           .addBlocking("a", () -> events.add("a"))
+           .addBlocking("b", () -> events.add("b"))
+           .execute();
+
+    assertEquals(Arrays.asList("a", "b", "c"), events);
+  }
+
+  @Test
+  public void execute_nonBlockingTasksWaitForTheirDependencies() throws InterruptedException {
+    List<String>    events   = Collections.synchronizedList(new ArrayList<>());
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    AppStartup      subject  = new AppStartup(executor);
+
+    subject.addNonBlocking("d", () -> events.add("d"), "b", "c")
+           .addNonBlocking("b", () -> { sleep(20); events.add("b"); }, "a")
+           .addNonBlocking("c", () -> events.add("c"), "a")
+           .addNonBlocking("a", () -> { sleep(20); events.add("a"); })
+           .execute();
+
+    waitForTimings(subject, 4);
+    executor.shutdown();
+
+    assertEquals(4, events.size());
+    assertEquals("a", events.get(0));
+    assertEquals("d", events.get(3));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void execute_unknownDependency() {
+    new AppStartup(Runnable::run).addNonBlocking("a", () -> {}, "b").execute();
+  }
+
+  @Test
+  public void onCriticalRenderEventEnd_startsPostRenderTasks() {
+    List<String> events  = new ArrayList<>();
+    AppStartup   subject = new AppStartup(Runnable::run);
+
+    subject.addPostRender("a", () -> events.add("a")).execute();
+
+    assertTrue(events.isEmpty());
+
+    subject.onCriticalRenderEventEnd();
+    subject.onCriticalRenderEventEnd();
+
+    assertEquals(Collections.singletonList("a"), events);
+  }
+
+  @Test
+  public void execute_postRenderTasksRunIfAlreadyRendered() {
+    List<String> events  = new ArrayList<>();
+    AppStartup   subject = new AppStartup(Runnable::run);
+
+    subject.addPostRender("a", () -> events.add("a"));
+    subject.onCriticalRenderEventEnd();
+
+    assertTrue(events.isEmpty());
+
+    subject.execute();
+
+    assertEquals(Collections.singletonList("a"), events);
+  }
+
+  @Test
+  public void getTimings_containsEveryFinishedTask() {
+    AppStartup subject = new AppStartup(Runnable::run);
+
+    subject.addBlocking("a", () -> sleep(10))
+           .addNonBlocking("b", () -> {})
+           .addPostRender("c", () -> {})
+           .execute();
+    subject.onCriticalRenderEventEnd();
+
+    assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<>(subject.getTimings().keySet()));
+    assertTrue(subject.getTimings().get("a") >= 10);
+  }
+
+  private static void waitForTimings(AppStartup subject, int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+
+    while (subject.getTimings().size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
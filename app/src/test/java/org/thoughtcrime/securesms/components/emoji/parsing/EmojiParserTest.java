@@ -0,0 +1,150 @@
+package org.thoughtcrime.securesms.components.emoji.parsing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EmojiParserTest {
+
+  private static final String[] EMOJIS = {
+      "\u2764\uFE0F",                                                     // red heart
+      "\u263A",                                                           // smiling face, without a presentation selector
+      "\uD83D\uDE00",                                                     // grinning face
+      "\uD83D\uDC4D",                                                     // thumbs up
+      "\uD83D\uDC68",                                                     // man
+      "\uD83D\uDC68\u200D\uD83D\uDC69\u200D\uD83D\uDC67",                 // family: man, woman, girl
+      "\uD83D\uDC68\u200D\uD83D\uDC69\u200D\uD83D\uDC67\u200D\uD83D\uDC66", // family: man, woman, girl, boy
+      "\uD83C\uDDE9\uD83C\uDDEA",                                         // flag of Germany
+      "\uD83C\uDFF3\uFE0F\u200D\uD83C\uDF08"                              // rainbow flag
+  };
+
+  private EmojiTree       tree;
+  private EmojiDrawInfo[] drawInfos;
+
+  @Before
+  public void setUp() {
+    tree      = new EmojiTree();
+    drawInfos = new EmojiDrawInfo[EMOJIS.length];
+
+    for (int i = 0; i < EMOJIS.length; i++) {
+      drawInfos[i] = new EmojiDrawInfo(null, i);
+      tree.add(EMOJIS[i], drawInfos[i]);
+    }
+
+    tree.add("\u263A\uFE0F", drawInfos[1]);
+  }
+
+  @Test
+  public void findCandidates_prefersLongestMatch() {
+    String text = "hi " + EMOJIS[6] + EMOJIS[4];
+
+    EmojiParser.CandidateList candidates = new EmojiParser(tree).findCandidates(text);
+
+    assertEquals(2, candidates.size());
+    assertFalse(candidates.allEmojis);
+    assertSame(drawInfos[6], candidates.list.get(0).getDrawInfo());
+    assertEquals(3, candidates.list.get(0).getStartIndex());
+    assertEquals(3 + EMOJIS[6].length(), candidates.list.get(0).getEndIndex());
+    assertSame(drawInfos[4], candidates.list.get(1).getDrawInfo());
+  }
+
+  @Test
+  public void findCandidates_fallsBackToShorterMatch() {
+    // A partial family sequence should match the man, leaving the joiner and the rest unmatched.
+    String text = "\uD83D\uDC68\u200D\uD83D\uDC69";
+
+    EmojiParser.CandidateList candidates = new EmojiParser(tree).findCandidates(text);
+
+    assertEquals(1, candidates.size());
+    assertSame(drawInfos[4], candidates.list.get(0).getDrawInfo());
+    assertEquals(2, candidates.list.get(0).getEndIndex());
+  }
+
+  @Test
+  public void findCandidates_matchesWithoutPresentationSelector() {
+    EmojiParser.CandidateList candidates = new EmojiParser(tree).findCandidates("\u2764");
+
+    assertEquals(1, candidates.size());
+    assertTrue(candidates.allEmojis);
+    assertSame(drawInfos[0], candidates.list.get(0).getDrawInfo());
+  }
+
+  @Test
+  public void findCandidates_includesFitzpatrickModifier() {
+    String text = EMOJIS[3] + Fitzpatrick.TYPE_4.unicode;
+
+    EmojiParser.CandidateList candidates = new EmojiParser(tree).findCandidates(text);
+
+    assertEquals(1, candidates.size());
+    assertEquals(text.length(), candidates.list.get(0).getEndIndex());
+  }
+
+  @Test
+  public void findCandidates_matchesTreeWalk() {
+    String text = createEmojiHeavyText(new Random(42), 2000);
+
+    List<int[]> expected = findCandidatesByTreeWalk(text);
+    List<int[]> actual   = new ArrayList<>();
+
+    for (EmojiParser.Candidate candidate : new EmojiParser(tree).findCandidates(text)) {
+      actual.add(new int[] { candidate.getStartIndex(), candidate.getEndIndex() });
+    }
+
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i)[0], actual.get(i)[0]);
+      assertEquals(expected.get(i)[1], actual.get(i)[1]);
+    }
+  }
+
+  private String createEmojiHeavyText(Random random, int length) {
+    StringBuilder builder = new StringBuilder();
+
+    while (builder.length() < length) {
+      int choice = random.nextInt(EMOJIS.length + 2);
+
+      if      (choice < EMOJIS.length)      builder.append(EMOJIS[choice]);
+      else if (choice == EMOJIS.length)     builder.append("lol ");
+      else                                  builder.append(Fitzpatrick.TYPE_1_2.unicode);
+    }
+
+    return builder.toString();
+  }
+
+  /**
+   * The previous parsing strategy, which probes the tree from the root for every candidate end position.
+   */
+  private List<int[]> findCandidatesByTreeWalk(String text) {
+    List<int[]> results = new ArrayList<>();
+
+    for (int i = 0; i < text.length(); i++) {
+      int best = -1;
+
+      for (int j = i + 1; j <= text.length(); j++) {
+        EmojiTree.Matches status = tree.isEmoji(text, i, j);
+
+        if      (status.exactMatch())      best = j;
+        else if (status.impossibleMatch()) break;
+      }
+
+      if (best != -1) {
+        if (best + 2 <= text.length() && Fitzpatrick.fitzpatrickFromUnicode(text, best) != null) {
+          best += 2;
+        }
+
+        results.add(new int[] { i, best });
+        i = best - 1;
+      }
+    }
+
+    return results;
+  }
+}
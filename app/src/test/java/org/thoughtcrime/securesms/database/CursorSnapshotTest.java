@@ -0,0 +1,121 @@
+package org.thoughtcrime.securesms.database;
+
+import android.database.Cursor;
+
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CursorSnapshotTest {
+
+  private static final CursorSnapshot.ItemCallback CALLBACK = new CursorSnapshot.ItemCallback() { };
+
+  @Test
+  public void diff_identicalCursors_producesNoUpdates() {
+    CursorSnapshot oldSnapshot = snapshotOf(new Object[][] { { 3L, "c" }, { 2L, "b" }, { 1L, "a" } });
+    CursorSnapshot newSnapshot = snapshotOf(new Object[][] { { 3L, "c" }, { 2L, "b" }, { 1L, "a" } });
+
+    assertTrue(dispatch(oldSnapshot, newSnapshot).isEmpty());
+  }
+
+  @Test
+  public void diff_newRow_producesSingleInsert() {
+    CursorSnapshot oldSnapshot = snapshotOf(new Object[][] { { 2L, "b" }, { 1L, "a" } });
+    CursorSnapshot newSnapshot = snapshotOf(new Object[][] { { 3L, "c" }, { 2L, "b" }, { 1L, "a" } });
+
+    List<String> updates = dispatch(oldSnapshot, newSnapshot);
+
+    assertEquals(1, updates.size());
+    assertEquals("insert 0 1", updates.get(0));
+  }
+
+  @Test
+  public void diff_changedRow_producesSingleChange() {
+    CursorSnapshot oldSnapshot = snapshotOf(new Object[][] { { 3L, "c" }, { 2L, "b" }, { 1L, "a" } });
+    CursorSnapshot newSnapshot = snapshotOf(new Object[][] { { 3L, "c" }, { 2L, "edited" }, { 1L, "a" } });
+
+    List<String> updates = dispatch(oldSnapshot, newSnapshot);
+
+    assertEquals(1, updates.size());
+    assertEquals("change 1 1", updates.get(0));
+  }
+
+  @Test
+  public void diff_nullColumnBecomingSet_producesChange() {
+    CursorSnapshot oldSnapshot = snapshotOf(new Object[][] { { 1L, null } });
+    CursorSnapshot newSnapshot = snapshotOf(new Object[][] { { 1L, "a" } });
+
+    assertEquals(1, dispatch(oldSnapshot, newSnapshot).size());
+  }
+
+  @Test
+  public void getId_outOfRange_returnsNoId() {
+    CursorSnapshot snapshot = snapshotOf(new Object[][] { { 7L, "a" } });
+
+    assertEquals(7L, snapshot.getId(0));
+    assertEquals(CursorSnapshot.NO_ID, snapshot.getId(-1));
+    assertEquals(CursorSnapshot.NO_ID, snapshot.getId(1));
+    assertEquals(0, snapshot.getPosition(7L));
+    assertEquals(-1, snapshot.getPosition(8L));
+  }
+
+  private static List<String> dispatch(CursorSnapshot oldSnapshot, CursorSnapshot newSnapshot) {
+    List<String> updates = new ArrayList<>();
+
+    oldSnapshot.diff(newSnapshot, CALLBACK).dispatchUpdatesTo(new ListUpdateCallback() {
+      @Override
+      public void onInserted(int position, int count) {
+        updates.add("insert " + position + " " + count);
+      }
+
+      @Override
+      public void onRemoved(int position, int count) {
+        updates.add("remove " + position + " " + count);
+      }
+
+      @Override
+      public void onMoved(int fromPosition, int toPosition) {
+        updates.add("move " + fromPosition + " " + toPosition);
+      }
+
+      @Override
+      public void onChanged(int position, int count, @Nullable Object payload) {
+        updates.add("change " + position + " " + count);
+      }
+    });
+
+    return updates;
+  }
+
+  /**
+   * Mocks a cursor with an ID column and a nullable string column.
+   */
+  private static CursorSnapshot snapshotOf(Object[][] rows) {
+    Cursor cursor   = mock(Cursor.class);
+    int[]  position = { -1 };
+
+    when(cursor.getCount()).thenReturn(rows.length);
+    when(cursor.getColumnCount()).thenReturn(2);
+    when(cursor.getColumnIndexOrThrow("_id")).thenReturn(0);
+    when(cursor.moveToPosition(anyInt())).thenAnswer(invocation -> {
+      position[0] = (Integer) invocation.getArguments()[0];
+      return position[0] >= 0 && position[0] < rows.length;
+    });
+    when(cursor.getType(0)).thenReturn(Cursor.FIELD_TYPE_INTEGER);
+    when(cursor.getType(1)).thenAnswer(invocation -> rows[position[0]][1] == null ? Cursor.FIELD_TYPE_NULL : Cursor.FIELD_TYPE_STRING);
+    when(cursor.getLong(0)).thenAnswer(invocation -> rows[position[0]][0]);
+    when(cursor.getString(1)).thenAnswer(invocation -> rows[position[0]][1]);
+
+    return CursorSnapshot.create(cursor, CALLBACK);
+  }
+}
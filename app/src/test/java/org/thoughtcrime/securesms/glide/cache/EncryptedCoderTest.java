@@ -0,0 +1,288 @@
+package org.thoughtcrime.securesms.glide.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.session.libsession.utilities.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class EncryptedCoderTest {
+
+  private static final byte[] LEGACY_MAGIC_BYTES = {(byte)0x91, (byte)0x5e, (byte)0x6d, (byte)0xb4,
+                                                    (byte)0x09, (byte)0xa6, (byte)0x68, (byte)0xbe,
+                                                    (byte)0xe5, (byte)0xb1, (byte)0x1b, (byte)0xd7,
+                                                    (byte)0x29, (byte)0xe5, (byte)0x04, (byte)0xcc};
+
+  private final EncryptedCoder subject = new EncryptedCoder();
+  private final byte[]         secret  = new byte[32];
+  private final Random         random  = new Random(42);
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    random.nextBytes(secret);
+    directory = File.createTempFile("encrypted-coder", "");
+    directory.delete();
+    directory.mkdir();
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = directory.listFiles();
+
+    if (files != null) {
+      for (File file : files) file.delete();
+    }
+
+    directory.delete();
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    byte[] data = randomBytes(20000);
+    File   file = new File(directory, "file");
+
+    write(subject.createEncryptedOutputStream(secret, file), data);
+
+    assertArrayEquals(data, read(subject.createEncryptedInputStream(secret, file)));
+  }
+
+  @Test
+  public void readsLegacyFiles() throws Exception {
+    byte[] data = randomBytes(20000);
+    File   file = new File(directory, "file");
+
+    write(createLegacyOutputStream(secret, file), data);
+
+    assertArrayEquals(data, read(subject.createEncryptedInputStream(secret, file)));
+  }
+
+  @Test
+  public void legacyReadsNewFiles() throws Exception {
+    byte[] data = randomBytes(20000);
+    File   file = new File(directory, "file");
+
+    write(subject.createEncryptedOutputStream(secret, file), data);
+
+    assertArrayEquals(data, read(createLegacyInputStream(secret, file)));
+  }
+
+  @Test
+  public void nestedStreamsOnOneThread() throws IOException {
+    byte[] first  = randomBytes(5000);
+    byte[] second = randomBytes(5000);
+    File   file1  = new File(directory, "file1");
+    File   file2  = new File(directory, "file2");
+
+    try (OutputStream outputStream1 = subject.createEncryptedOutputStream(secret, file1);
+         OutputStream outputStream2 = subject.createEncryptedOutputStream(secret, file2))
+    {
+      outputStream1.write(first, 0, 2500);
+      outputStream2.write(second, 0, 2500);
+      outputStream1.write(first, 2500, 2500);
+      outputStream2.write(second, 2500, 2500);
+    }
+
+    try (InputStream inputStream1 = subject.createEncryptedInputStream(secret, file1);
+         InputStream inputStream2 = subject.createEncryptedInputStream(secret, file2))
+    {
+      assertArrayEquals(second, read(inputStream2));
+      assertArrayEquals(first, read(inputStream1));
+    }
+  }
+
+  @Test
+  public void notAnEncryptedFile() throws IOException {
+    File file = new File(directory, "file");
+
+    write(new FileOutputStream(file), randomBytes(1000));
+
+    assertMiss(file, secret);
+  }
+
+  @Test
+  public void truncatedFile() throws IOException {
+    File file = new File(directory, "file");
+
+    write(new FileOutputStream(file), LEGACY_MAGIC_BYTES);
+
+    assertMiss(file, secret);
+  }
+
+  @Test
+  public void keyChange() throws IOException {
+    File   file        = new File(directory, "file");
+    byte[] otherSecret = randomBytes(32);
+
+    write(subject.createEncryptedOutputStream(secret, file), randomBytes(1000));
+
+    assertMiss(file, otherSecret);
+    read(subject.createEncryptedInputStream(secret, file));
+  }
+
+  @Test
+  public void metrics() throws IOException {
+    EncryptedCoder.Metrics before = EncryptedCoder.getMetrics();
+    File                   file   = new File(directory, "file");
+
+    write(subject.createEncryptedOutputStream(secret, file), randomBytes(1000));
+    read(subject.createEncryptedInputStream(secret, file));
+    assertMiss(new File(directory, "missing"), secret);
+
+    EncryptedCoder.onDecoded(1000);
+    EncryptedCoder.onDecoded(1000);
+    EncryptedCoder.onDecodeError();
+
+    EncryptedCoder.Metrics after = EncryptedCoder.getMetrics();
+
+    assertEquals(1, after.writes - before.writes);
+    assertEquals(2, after.decodes - before.decodes);
+    assertEquals(1, after.errors - before.errors);
+    assertEquals(2000, after.decodeNanos - before.decodeNanos);
+  }
+
+  @Test
+  @Ignore("Benchmark, prints timings rather than asserting. Run manually.")
+  public void benchmark_readThumbnails() throws Exception {
+    List<File> files      = new ArrayList<>();
+    int        iterations = 5;
+
+    for (int i = 0; i < 200; i++) {
+      File file = new File(directory, "thumbnail" + i);
+      write(subject.createEncryptedOutputStream(secret, file), randomBytes(8 * 1024));
+      files.add(file);
+    }
+
+    for (int i = 0; i < 2; i++) {
+      for (File file : files) {
+        read(createLegacyInputStream(secret, file));
+        read(subject.createEncryptedInputStream(secret, file));
+      }
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      for (File file : files) {
+        read(createLegacyInputStream(secret, file));
+      }
+    }
+    long legacyNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      for (File file : files) {
+        read(subject.createEncryptedInputStream(secret, file));
+      }
+    }
+    long reusedNanos = System.nanoTime() - start;
+
+    System.out.println(String.format("Reading %d cache files: per-read ciphers %.3f ms, per-thread ciphers %.3f ms",
+                                     files.size(),
+                                     legacyNanos / 1e6 / iterations,
+                                     reusedNanos / 1e6 / iterations));
+  }
+
+  private void assertMiss(File file, byte[] secret) {
+    try {
+      subject.createEncryptedInputStream(secret, file).close();
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static void write(OutputStream outputStream, byte[] data) throws IOException {
+    try (OutputStream out = outputStream) {
+      out.write(data);
+    }
+  }
+
+  private static byte[] read(InputStream inputStream) throws IOException {
+    return Util.readFully(inputStream);
+  }
+
+  /**
+   * The original implementation, which sets up a new {@link Mac} and {@link Cipher} for every file.
+   */
+  private static OutputStream createLegacyOutputStream(byte[] masterKey, File file) throws Exception {
+    byte[] random = Util.getSecretBytes(32);
+    Mac    mac    = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(masterKey, "HmacSHA256"));
+
+    FileOutputStream fileOutputStream = new FileOutputStream(file);
+    byte[]           iv               = new byte[16];
+    byte[]           key              = mac.doFinal(random);
+
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+
+    fileOutputStream.write(LEGACY_MAGIC_BYTES);
+    fileOutputStream.write(random);
+
+    CipherOutputStream outputStream = new CipherOutputStream(fileOutputStream, cipher);
+    outputStream.write(LEGACY_MAGIC_BYTES);
+
+    return outputStream;
+  }
+
+  private static InputStream createLegacyInputStream(byte[] masterKey, File file) throws Exception {
+    Mac    mac    = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(masterKey, "HmacSHA256"));
+
+    FileInputStream fileInputStream     = new FileInputStream(file);
+    byte[]          theirMagic          = new byte[LEGACY_MAGIC_BYTES.length];
+    byte[]          theirRandom         = new byte[32];
+    byte[]          theirEncryptedMagic = new byte[LEGACY_MAGIC_BYTES.length];
+
+    Util.readFully(fileInputStream, theirMagic);
+    Util.readFully(fileInputStream, theirRandom);
+
+    if (!MessageDigest.isEqual(theirMagic, LEGACY_MAGIC_BYTES)) {
+      throw new IOException("Not an encrypted cache file!");
+    }
+
+    byte[] iv  = new byte[16];
+    byte[] key = mac.doFinal(theirRandom);
+
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+
+    CipherInputStream inputStream = new CipherInputStream(fileInputStream, cipher);
+    Util.readFully(inputStream, theirEncryptedMagic);
+
+    if (!MessageDigest.isEqual(theirEncryptedMagic, LEGACY_MAGIC_BYTES)) {
+      throw new IOException("Key change on encrypted cache file!");
+    }
+
+    return inputStream;
+  }
+}
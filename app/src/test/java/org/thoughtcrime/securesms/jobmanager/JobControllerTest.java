@@ -0,0 +1,275 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.session.libsession.messaging.utilities.Data;
+import org.session.libsession.utilities.Debouncer;
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
+import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage;
+import org.thoughtcrime.securesms.jobs.FastJobStorage;
+import org.thoughtcrime.securesms.jobs.JobManagerFactories;
+import org.thoughtcrime.securesms.jobs.TrimThreadJob;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Jobs log through {@link JobLogger}, which needs the Android framework.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public class JobControllerTest {
+
+  @BeforeClass
+  public static void registerFactories() {
+    JobManagerFactories.getJobFactories(mock(Application.class));
+  }
+
+  @Test
+  public void multipleRunners_runEveryJobOnce() throws Exception {
+    JobDatabase        database      = noopDatabase(0);
+    ExecutorService    writeExecutor = Executors.newSingleThreadExecutor();
+    AtomicIntegerArray runs          = new AtomicIntegerArray(1000);
+    JobController      subject       = createController(new FastJobStorage(database, writeExecutor), job -> runs.incrementAndGet(job.index));
+
+    submitJobs(subject, runs.length(), i -> null);
+    runJobs(subject, 4, runs.length());
+
+    for (int i = 0; i < runs.length(); i++) {
+      assertEquals(1, runs.get(i));
+    }
+
+    writeExecutor.shutdown();
+    assertTrue(writeExecutor.awaitTermination(10, TimeUnit.SECONDS));
+
+    verify(database, times(runs.length())).insertJobs(anyListOf(FullSpec.class));
+    verify(database, times(runs.length())).updateJobRunningState(anyString(), eq(true));
+    verify(database, times(runs.length())).deleteJobs(anyListOf(String.class));
+  }
+
+  @Test
+  public void multipleRunners_runJobsInQueueOneAtATimeInOrder() throws Exception {
+    int             queueCount    = 4;
+    int[]           lastIndex     = new int[queueCount];
+    AtomicInteger[] runningCounts = new AtomicInteger[queueCount];
+    List<String>    errors        = Collections.synchronizedList(new ArrayList<>());
+    ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+
+    for (int i = 0; i < queueCount; i++) {
+      lastIndex[i]     = -1;
+      runningCounts[i] = new AtomicInteger();
+    }
+
+    JobController subject = createController(new FastJobStorage(noopDatabase(0), writeExecutor), job -> {
+      int queue = job.index % queueCount;
+
+      if (runningCounts[queue].incrementAndGet() != 1) {
+        errors.add("Ran two jobs of queue " + queue + " at once.");
+      }
+
+      if (job.index < lastIndex[queue]) {
+        errors.add("Ran job " + job.index + " after job " + lastIndex[queue] + ".");
+      }
+
+      lastIndex[queue] = job.index;
+      Thread.yield();
+      runningCounts[queue].decrementAndGet();
+    });
+
+    submitJobs(subject, 400, i -> "q" + (i % queueCount));
+    runJobs(subject, 4, 400);
+
+    writeExecutor.shutdown();
+
+    assertEquals(Collections.emptyList(), errors);
+  }
+
+  @Test
+  @Ignore("Benchmark, prints timings rather than asserting. Run manually.")
+  public void benchmark_jobsPerSecondWithSlowDatabase() throws Exception {
+    int jobCount = 200;
+
+    for (int threadCount : new int[] { 1, 2, 4 }) {
+      double synchronousJobsPerSecond = measureJobsPerSecond(new FastJobStorage(noopDatabase(1)), threadCount, jobCount);
+
+      ExecutorService writeExecutor            = Executors.newSingleThreadExecutor();
+      double          writeBehindJobsPerSecond = measureJobsPerSecond(new FastJobStorage(noopDatabase(1), writeExecutor), threadCount, jobCount);
+
+      writeExecutor.shutdown();
+      writeExecutor.awaitTermination(1, TimeUnit.MINUTES);
+
+      System.out.println(String.format("%d jobs on %d runners with 1 ms writes: synchronous writes %.0f jobs/s, write-behind %.0f jobs/s",
+                                       jobCount,
+                                       threadCount,
+                                       synchronousJobsPerSecond,
+                                       writeBehindJobsPerSecond));
+    }
+  }
+
+  private double measureJobsPerSecond(@NonNull JobStorage jobStorage, int threadCount, int jobCount) throws InterruptedException {
+    JobController subject = createController(jobStorage, job -> Thread.sleep(1));
+
+    submitJobs(subject, jobCount, i -> null);
+
+    long start = System.nanoTime();
+    runJobs(subject, threadCount, jobCount);
+    long nanos = System.nanoTime() - start;
+
+    return jobCount / (nanos / 1e9);
+  }
+
+  private static @NonNull JobController createController(@NonNull JobStorage jobStorage, @NonNull TestJob.Work work) {
+    Map<String, Job.Factory> jobFactories = new HashMap<>();
+    jobFactories.put(TestJob.KEY, (Job.Factory<TestJob>) (parameters, data) -> new TestJob(parameters, data.getInt("index"), work));
+
+    JobController controller = new JobController(mock(Application.class),
+                                                 jobStorage,
+                                                 new JobInstantiator(jobFactories),
+                                                 new ConstraintInstantiator(Collections.emptyMap()),
+                                                 new JsonDataSerializer(),
+                                                 object -> { },
+                                                 mock(Scheduler.class),
+                                                 mock(Debouncer.class),
+                                                 () -> { });
+    controller.init();
+
+    return controller;
+  }
+
+  private static void submitJobs(@NonNull JobController controller, int count, @NonNull QueueForIndex queueForIndex) {
+    for (int i = 0; i < count; i++) {
+      Job.Parameters parameters = new Job.Parameters.Builder().setQueue(queueForIndex.get(i)).build();
+      Job            job        = new TestJob(parameters, i, null);
+
+      controller.submitNewJobChain(Collections.singletonList(Collections.singletonList(job)));
+    }
+  }
+
+  /**
+   * Runs jobs the way {@link JobRunner} does, until {@code jobCount} jobs have been pulled. Test
+   * jobs always succeed.
+   */
+  private static void runJobs(@NonNull JobController controller, int threadCount, int jobCount) throws InterruptedException {
+    AtomicInteger remaining = new AtomicInteger(jobCount);
+    List<Thread>  threads   = new ArrayList<>(threadCount);
+
+    for (int i = 0; i < threadCount; i++) {
+      threads.add(new Thread(() -> {
+        while (remaining.getAndDecrement() > 0) {
+          Job job = controller.pullNextEligibleJobForExecution();
+
+          job.run();
+          controller.onJobFinished(job);
+          controller.onSuccess(job);
+        }
+      }));
+    }
+
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+  }
+
+  /**
+   * @param writeMillis How long each write takes.
+   */
+  private static @NonNull JobDatabase noopDatabase(long writeMillis) {
+    JobDatabase    database = mock(JobDatabase.class);
+    Answer<Object> write    = invocation -> {
+      if (writeMillis > 0) Thread.sleep(writeMillis);
+      return null;
+    };
+
+    when(database.getAllJobSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllConstraintSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllDependencySpecs()).thenReturn(Collections.emptyList());
+
+    doAnswer(write).when(database).insertJobs(anyListOf(FullSpec.class));
+    doAnswer(write).when(database).updateJobRunningState(anyString(), anyBoolean());
+    doAnswer(write).when(database).updateJobAfterRetry(anyString(), anyBoolean(), anyInt(), anyLong());
+    doAnswer(write).when(database).updateAllJobsToBePending();
+    doAnswer(write).when(database).deleteJobs(anyListOf(String.class));
+
+    return database;
+  }
+
+  private interface QueueForIndex {
+    @Nullable String get(int index);
+  }
+
+  private static final class TestJob extends Job {
+
+    /** {@link FastJobStorage} only returns jobs with a known key. */
+    static final String KEY = TrimThreadJob.KEY;
+
+    private final int  index;
+    private final Work work;
+
+    TestJob(@NonNull Parameters parameters, int index, @Nullable Work work) {
+      super(parameters);
+      this.index = index;
+      this.work  = work;
+    }
+
+    @Override
+    public @NonNull Data serialize() {
+      return new Data.Builder().putInt("index", index).build();
+    }
+
+    @Override
+    public @NonNull String getFactoryKey() {
+      return KEY;
+    }
+
+    @Override
+    public @NonNull Result run() {
+      try {
+        work.run(this);
+        return Result.SUCCESS;
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public void onCanceled() {
+    }
+
+    interface Work {
+      void run(@NonNull TestJob job) throws InterruptedException;
+    }
+  }
+}
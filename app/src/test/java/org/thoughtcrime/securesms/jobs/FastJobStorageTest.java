@@ -1,10 +1,15 @@
 package org.thoughtcrime.securesms.jobs;
 
+import android.app.Application;
+
 import androidx.annotation.NonNull;
 
 import com.annimon.stream.Stream;
 
+import org.junit.BeforeClass;
+import org.junit.Ignore;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.thoughtcrime.securesms.database.JobDatabase;
 import org.thoughtcrime.securesms.jobmanager.Data;
 import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
@@ -13,16 +18,25 @@ import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 public class FastJobStorageTest {
@@ -30,6 +44,11 @@ public class FastJobStorageTest {
   private static final JsonDataSerializer serializer = new JsonDataSerializer();
   private static final String             EMPTY_DATA = serializer.serialize(Data.EMPTY);
 
+  @BeforeClass
+  public static void registerFactories() {
+    JobManagerFactories.getJobFactories(mock(Application.class));
+  }
+
   @Test
   public void init_allStoredDataAvailable() {
     FastJobStorage subject = new FastJobStorage(fixedDataDatabase(DataSet1.FULL_SPECS));
@@ -272,6 +291,138 @@ public class FastJobStorageTest {
     assertEquals("1", jobs.get(0).getId());
   }
 
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_inCreatedOrderRegardlessOfRunTime() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", TrimThreadJob.KEY, null, 2, 5, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", TrimThreadJob.KEY, null, 1, 8, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(2, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+    assertEquals("1", jobs.get(1).getId());
+    assertEquals(1, subject.getPendingJobsWithNoDependenciesInCreatedOrder(6).size());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_nextInQueueAfterFirstIsDeleted() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", TrimThreadJob.KEY, "q", 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, true),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", TrimThreadJob.KEY, "q", 1, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+
+    assertEquals(0, subject.getPendingJobsWithNoDependenciesInCreatedOrder(10).size());
+
+    subject.deleteJob("1");
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_eligibleAfterDependencyIsDeleted() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", TrimThreadJob.KEY, null, 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, true),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", TrimThreadJob.KEY, null, 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.singletonList(new DependencySpec("2", "1")));
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+    subject.deleteJob("1");
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_eligibleAgainAfterRetry() {
+    FullSpec fullSpec = new FullSpec(new JobSpec("1", TrimThreadJob.KEY, "q", 0, 0, 0, 3, 0, -1, -1, EMPTY_DATA, false),
+                                     Collections.emptyList(),
+                                     Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Collections.singletonList(fullSpec)));
+    subject.init();
+
+    subject.updateJobRunningState("1", true);
+    assertEquals(0, subject.getPendingJobsWithNoDependenciesInCreatedOrder(10).size());
+
+    subject.updateJobAfterRetry("1", false, 1, 20);
+    assertEquals(0, subject.getPendingJobsWithNoDependenciesInCreatedOrder(10).size());
+    assertEquals(1, subject.getPendingJobsWithNoDependenciesInCreatedOrder(20).size());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_matchesFullScan() {
+    Random         random  = new Random(42);
+    FastJobStorage subject = new FastJobStorage(noopDatabase());
+
+    subject.insertJobs(createJobs(random, 0, 500));
+
+    for (int i = 0; i < 2000; i++) {
+      List<JobSpec> jobs = subject.getAllJobSpecs();
+      JobSpec       job  = jobs.get(random.nextInt(jobs.size()));
+
+      switch (random.nextInt(4)) {
+        case 0:  subject.updateJobRunningState(job.getId(), !job.isRunning());                                    break;
+        case 1:  subject.updateJobAfterRetry(job.getId(), false, job.getRunAttempt() + 1, random.nextInt(100));    break;
+        case 2:  subject.deleteJob(job.getId());                                                                   break;
+        default: subject.insertJobs(createJobs(random, 500 + i, 1));                                               break;
+      }
+
+      long currentTime = random.nextInt(100);
+      assertEquals(getPendingJobsByFullScan(subject, currentTime), subject.getPendingJobsWithNoDependenciesInCreatedOrder(currentTime));
+    }
+  }
+
+  @Test
+  @Ignore("Benchmark, prints timings rather than asserting. Run manually.")
+  public void benchmark_pendingJobsAfterBacklog() {
+    FastJobStorage subject    = new FastJobStorage(noopDatabase());
+    int            iterations = 20;
+
+    subject.insertJobs(createJobs(new Random(7), 0, 3000));
+
+    for (int i = 0; i < 3; i++) {
+      getPendingJobsByFullScan(subject, 50);
+      subject.getPendingJobsWithNoDependenciesInCreatedOrder(50);
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      getPendingJobsByFullScan(subject, 50);
+    }
+    long fullScanNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      subject.getPendingJobsWithNoDependenciesInCreatedOrder(50);
+    }
+    long indexedNanos = System.nanoTime() - start;
+
+    System.out.println(String.format("Pending jobs out of %d: full scan %.2f ms, indexed %.2f ms",
+                                     subject.getAllJobSpecs().size(),
+                                     fullScanNanos / 1e6 / iterations,
+                                     indexedNanos / 1e6 / iterations));
+  }
+
   @Test
   public void deleteJobs_writesToDatabase() {
     JobDatabase    database = noopDatabase();
@@ -301,6 +452,101 @@ public class FastJobStorageTest {
     assertEquals(0, dependencies.size());
   }
 
+  @Test
+  public void writeExecutor_writesToDatabaseInOrderAfterReturning() {
+    JobDatabase    database = noopDatabase();
+    List<Runnable> writes   = new ArrayList<>();
+    FastJobStorage subject  = new FastJobStorage(database, writes::add);
+
+    subject.insertJobs(DataSet1.FULL_SPECS);
+    subject.updateJobRunningState("id1", true);
+
+    verifyZeroInteractions(database);
+    assertTrue(subject.getJobSpec("id1").isRunning());
+    assertEquals(2, writes.size());
+
+    for (Runnable write : writes) {
+      write.run();
+    }
+
+    InOrder inOrder = inOrder(database);
+    inOrder.verify(database).insertJobs(DataSet1.FULL_SPECS);
+    inOrder.verify(database).updateJobRunningState("id1", true);
+  }
+
+  @Test
+  public void writeExecutor_deleteWaitsForEarlierWrites() throws InterruptedException {
+    JobDatabase     database      = noopDatabase();
+    ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+    CountDownLatch  blocked       = new CountDownLatch(1);
+    FastJobStorage  subject       = new FastJobStorage(database, writeExecutor);
+
+    writeExecutor.execute(() -> {
+      try {
+        blocked.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    });
+
+    subject.insertJobs(DataSet1.FULL_SPECS);
+    subject.updateJobRunningState("id1", true);
+
+    verifyZeroInteractions(database);
+
+    blocked.countDown();
+    subject.deleteJob("id1");
+
+    InOrder inOrder = inOrder(database);
+    inOrder.verify(database).insertJobs(DataSet1.FULL_SPECS);
+    inOrder.verify(database).updateJobRunningState("id1", true);
+    inOrder.verify(database).deleteJobs(Collections.singletonList("id1"));
+    assertNull(subject.getJobSpec("id1"));
+
+    writeExecutor.shutdown();
+    assertTrue(writeExecutor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  private List<FullSpec> createJobs(@NonNull Random random, int firstId, int count) {
+    List<FullSpec> fullSpecs = new ArrayList<>(count);
+
+    for (int i = firstId; i < firstId + count; i++) {
+      String               queueKey     = random.nextInt(3) == 0 ? null : "q" + random.nextInt(20);
+      List<DependencySpec> dependencies = new ArrayList<>();
+
+      if (i > 0 && random.nextInt(10) == 0) {
+        dependencies.add(new DependencySpec(String.valueOf(i), String.valueOf(random.nextInt(i))));
+      }
+
+      JobSpec jobSpec = new JobSpec(String.valueOf(i), TrimThreadJob.KEY, queueKey, random.nextInt(50), random.nextInt(100), 0, 3, 0, -1, -1, EMPTY_DATA, false);
+
+      fullSpecs.add(new FullSpec(jobSpec, Collections.emptyList(), dependencies));
+    }
+
+    return fullSpecs;
+  }
+
+  /**
+   * The previous implementation, which scans every job and, for each one in a queue, sorts the whole queue.
+   */
+  private List<JobSpec> getPendingJobsByFullScan(@NonNull FastJobStorage storage, long currentTime) {
+    List<JobSpec>        jobs         = storage.getAllJobSpecs();
+    List<DependencySpec> dependencies = storage.getAllDependencySpecs();
+
+    return Stream.of(jobs)
+                 .filter(j -> JobManagerFactories.hasFactoryForKey(j.getFactoryKey()))
+                 .filterNot(JobSpec::isRunning)
+                 .filter(j -> j.getQueueKey() == null || Stream.of(jobs)
+                                                               .filter(other -> j.getQueueKey().equals(other.getQueueKey()))
+                                                               .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
+                                                               .toList()
+                                                               .get(0)
+                                                               .equals(j))
+                 .filterNot(j -> Stream.of(dependencies).anyMatch(d -> d.getJobId().equals(j.getId())))
+                 .filter(j -> j.getNextRunAttemptTime() <= currentTime)
+                 .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
+                 .toList();
+  }
 
   private JobDatabase noopDatabase() {
     JobDatabase database = mock(JobDatabase.class);
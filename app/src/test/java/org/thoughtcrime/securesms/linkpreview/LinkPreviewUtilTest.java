@@ -1,7 +1,12 @@
 package org.thoughtcrime.securesms.linkpreview;
 
+import androidx.annotation.NonNull;
+
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -70,4 +75,88 @@ public class LinkPreviewUtilTest {
   public void isLegal_emptyUrl() {
     assertFalse(LinkPreviewUtil.isLegalUrl(""));
   }
+
+  @Test
+  public void readHead_stopsAtEndOfHead() throws IOException {
+    String        head   = "<html><head><title>Title</title><meta property=\"og:image\" content=\"https://foo.com/a.png\"/>";
+    ChunkedReader reader = new ChunkedReader(head + "</head><body>" + repeat("lorem ipsum ", 100000) + "</body></html>", 4096);
+
+    assertEquals(head, LinkPreviewUtil.readHead(reader, 1024 * 1024));
+    assertTrue(reader.read < 3 * 4096);
+  }
+
+  @Test
+  public void readHead_stopsAtBodyWithoutEndOfHead() throws IOException {
+    String head = "<html><title>Title</title>";
+
+    assertEquals(head, LinkPreviewUtil.readHead(new StringReader(head + "<BODY class=\"x\">text</BODY>"), 1024));
+  }
+
+  @Test
+  public void readHead_findsEndOfHeadSplitAcrossReads() throws IOException {
+    String head = "<html><head><title>Title</title>";
+
+    for (int chunkSize = 1; chunkSize < 12; chunkSize++) {
+      assertEquals(head, LinkPreviewUtil.readHead(new ChunkedReader(head + "< / HEAD ><body></body>", chunkSize), 1024));
+    }
+  }
+
+  @Test
+  public void readHead_stopsAtMaxLength() throws IOException {
+    String html = "<html><head>" + repeat("<meta name=\"a\" content=\"b\"/>", 1000);
+
+    assertEquals(html.substring(0, 500), LinkPreviewUtil.readHead(new StringReader(html), 500));
+  }
+
+  @Test
+  public void readHead_wholePageWithoutHead() throws IOException {
+    String html = "<title>Title</title>";
+
+    assertEquals(html, LinkPreviewUtil.readHead(new StringReader(html), 1024));
+  }
+
+  @Test
+  public void parseOpenGraphFields_fromHead() throws IOException {
+    String html = "<html><head><title>Fallback</title><meta property=\"og:title\" content=\"Title\"/></head><body><meta property=\"og:image\" content=\"https://foo.com/a.png\"/></body></html>";
+
+    LinkPreviewUtil.OpenGraph openGraph = LinkPreviewUtil.parseOpenGraphFields(LinkPreviewUtil.readHead(new StringReader(html), 1024), text -> text);
+
+    assertEquals("Title", openGraph.getTitle().get());
+  }
+
+  private static String repeat(String value, int count) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      builder.append(value);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Returns at most {@code chunkSize} characters per read, like a network stream would, and counts
+   * how many were read in total.
+   */
+  private static final class ChunkedReader extends Reader {
+    private final StringReader reader;
+    private final int          chunkSize;
+
+    private int read;
+
+    private ChunkedReader(@NonNull String text, int chunkSize) {
+      this.reader    = new StringReader(text);
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public int read(@NonNull char[] buffer, int offset, int length) throws IOException {
+      int count = reader.read(buffer, offset, Math.min(length, chunkSize));
+      if (count > 0) read += count;
+      return count;
+    }
+
+    @Override
+    public void close() {
+      reader.close();
+    }
+  }
 }
@@ -0,0 +1,118 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImageCompressionPlannerTest {
+
+  private static final int MIN_QUALITY  = 45;
+  private static final int MAX_QUALITY  = 95;
+  private static final int MAX_ATTEMPTS = 5;
+
+  @Test
+  public void estimateDetail_flatImage() {
+    int[] luminance = new int[64 * 64];
+    Arrays.fill(luminance, 128);
+
+    assertEquals(0, ImageCompressionPlanner.estimateDetail(luminance, 64), 0);
+  }
+
+  @Test
+  public void estimateDetail_noise() {
+    Random random    = new Random(42);
+    int[]  luminance = new int[64 * 64];
+
+    for (int i = 0; i < luminance.length; i++) {
+      luminance[i] = random.nextInt(256);
+    }
+
+    assertEquals(1, ImageCompressionPlanner.estimateDetail(luminance, 64), 0);
+  }
+
+  @Test
+  public void plan_fullScaleWhenItFits() {
+    ImageCompressionPlanner.Plan plan = ImageCompressionPlanner.plan(1600, 1200, 0.3, 1024 * 1024, MIN_QUALITY, MAX_QUALITY, 0.125);
+
+    assertEquals(1, plan.scale, 0);
+    assertTrue(plan.quality >= MIN_QUALITY && plan.quality <= MAX_QUALITY);
+  }
+
+  @Test
+  public void plan_scalesDownWhenLowestQualityIsTooLarge() {
+    int                          maxBytes = 200 * 1024;
+    ImageCompressionPlanner.Plan plan     = ImageCompressionPlanner.plan(4000, 3000, 1, maxBytes, MIN_QUALITY, MAX_QUALITY, 0.125);
+
+    long scaledPixels = Math.round(4000 * 3000 * plan.scale * plan.scale);
+
+    assertTrue(plan.scale < 1);
+    assertTrue(ImageCompressionPlanner.estimateSize(scaledPixels, 1, MIN_QUALITY) <= maxBytes);
+  }
+
+  @Test
+  public void plan_neverBelowMinScale() {
+    ImageCompressionPlanner.Plan plan = ImageCompressionPlanner.plan(8000, 8000, 1, 1024, MIN_QUALITY, MAX_QUALITY, 0.125);
+
+    assertEquals(0.125, plan.scale, 0);
+    assertEquals(MIN_QUALITY, plan.quality);
+  }
+
+  @Test
+  public void findQuality_findsHighestFittingQuality() throws IOException {
+    for (int limit = MIN_QUALITY; limit <= MAX_QUALITY; limit++) {
+      for (int estimate = MIN_QUALITY; estimate <= MAX_QUALITY; estimate += 10) {
+        FakeEncoder encoder = new FakeEncoder();
+        int         best    = ImageCompressionPlanner.findQuality(encoder, estimate, MIN_QUALITY, MAX_QUALITY, limit * 100, 10);
+
+        assertEquals(limit, best);
+      }
+    }
+  }
+
+  @Test
+  public void findQuality_boundedAttemptsStillFit() throws IOException {
+    FakeEncoder encoder = new FakeEncoder();
+    int         best    = ImageCompressionPlanner.findQuality(encoder, 90, MIN_QUALITY, MAX_QUALITY, 6000, MAX_ATTEMPTS);
+
+    assertEquals(MAX_ATTEMPTS, encoder.qualities.size());
+    assertTrue(best >= MIN_QUALITY && best <= 60);
+  }
+
+  @Test
+  public void findQuality_twoAttemptsWhenNothingFits() throws IOException {
+    FakeEncoder encoder = new FakeEncoder();
+    int         best    = ImageCompressionPlanner.findQuality(encoder, 80, MIN_QUALITY, MAX_QUALITY, 100, MAX_ATTEMPTS);
+
+    assertEquals(-1, best);
+    assertEquals(Arrays.asList(80, MIN_QUALITY), encoder.qualities);
+  }
+
+  @Test
+  public void findQuality_oneAttemptWhenEstimateIsExact() throws IOException {
+    FakeEncoder encoder = new FakeEncoder();
+    int         best    = ImageCompressionPlanner.findQuality(encoder, MAX_QUALITY, MIN_QUALITY, MAX_QUALITY, MAX_QUALITY * 100, MAX_ATTEMPTS);
+
+    assertEquals(MAX_QUALITY, best);
+    assertEquals(1, encoder.qualities.size());
+  }
+
+  /**
+   * Encodes to a hundred bytes per quality step.
+   */
+  private static final class FakeEncoder implements ImageCompressionPlanner.Encoder {
+    private final List<Integer> qualities = new ArrayList<>();
+
+    @Override
+    public int encode(int quality) {
+      qualities.add(quality);
+      return quality * 100;
+    }
+  }
+}
@@ -36,6 +36,12 @@ interface StorageProtocol {
     // Signal
     fun getOrGenerateRegistrationID(): Int
 
+    // Transactions
+    /**
+     * Runs [block] in a single database transaction, which is rolled back if it throws.
+     */
+    fun <T> runInTransaction(block: () -> T): T
+
     // Jobs
     fun persistJob(job: Job)
     fun markJobAsSucceeded(jobId: String)
@@ -134,6 +140,7 @@ interface StorageProtocol {
     fun getThreadId(recipient: Recipient): Long?
     fun getThreadIdForMms(mmsId: Long): Long
     fun getLastUpdated(threadID: Long): Long
+    fun getMessageCount(threadID: Long): Int
     fun trimThread(threadID: Long, threadLimit: Int)
 
     // Contacts
@@ -0,0 +1,69 @@
+package org.session.libsession.messaging.mentions
+
+import java.util.TreeMap
+
+/**
+ * The mention candidates of a single thread, searchable by the start of any word in their display name. Every word
+ * start of a name is kept as a key in a sorted map, so a query only visits the names it actually matches.
+ */
+class MentionIndex {
+    private val displayNames = mutableMapOf<String, String>() // Public key to display name
+    private val wordIndex = TreeMap<String, MutableSet<String>>() // Lower-cased name from a word start to public keys
+
+    val size: Int
+        @Synchronized get() = displayNames.size
+
+    @Synchronized
+    fun getDisplayName(publicKey: String): String? {
+        return displayNames[publicKey]
+    }
+
+    @Synchronized
+    fun put(publicKey: String, displayName: String) {
+        val previousDisplayName = displayNames.put(publicKey, displayName)
+        if (previousDisplayName == displayName) { return }
+        if (previousDisplayName != null) { removeFromWordIndex(publicKey, previousDisplayName) }
+        getWordKeys(displayName).forEach { wordIndex.getOrPut(it) { mutableSetOf() }.add(publicKey) }
+    }
+
+    @Synchronized
+    fun remove(publicKey: String) {
+        val displayName = displayNames.remove(publicKey) ?: return
+        removeFromWordIndex(publicKey, displayName)
+    }
+
+    /**
+     * Returns the candidates with a word in their display name that starts with [query], ordered by how early in the
+     * name the match is and then alphabetically. Queries shorter than two characters return every candidate.
+     */
+    @Synchronized
+    fun search(query: String): List<Mention> {
+        if (query.length < 2) {
+            return displayNames.entries.sortedBy { it.value }.map { Mention(it.key, it.value) }
+        }
+        val key = query.toLowerCase()
+        val matchPositions = mutableMapOf<String, Int>()
+        wordIndex.subMap(key, true, key + Character.MAX_VALUE, false).forEach { (wordKey, publicKeys) ->
+            publicKeys.forEach { publicKey ->
+                val position = displayNames.getValue(publicKey).toLowerCase().length - wordKey.length
+                matchPositions[publicKey] = minOf(matchPositions[publicKey] ?: position, position)
+            }
+        }
+        return matchPositions.entries
+            .sortedWith(compareBy({ it.value }, { displayNames.getValue(it.key) }))
+            .map { Mention(it.key, displayNames.getValue(it.key)) }
+    }
+
+    private fun removeFromWordIndex(publicKey: String, displayName: String) {
+        getWordKeys(displayName).forEach { wordKey ->
+            val publicKeys = wordIndex[wordKey] ?: return@forEach
+            publicKeys.remove(publicKey)
+            if (publicKeys.isEmpty()) { wordIndex.remove(wordKey) }
+        }
+    }
+
+    private fun getWordKeys(displayName: String): Set<String> {
+        val name = displayName.toLowerCase()
+        return name.indices.filter { it == 0 || !name[it - 1].isLetterOrDigit() }.map { name.substring(it) }.toSet()
+    }
+}
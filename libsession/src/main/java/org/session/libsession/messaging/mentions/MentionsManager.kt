@@ -2,41 +2,52 @@ package org.session.libsession.messaging.mentions
 
 import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.contacts.Contact
+import java.util.concurrent.ConcurrentHashMap
 
 object MentionsManager {
-    var userPublicKeyCache = mutableMapOf<Long, Set<String>>() // Thread ID to set of user hex encoded public keys
+    private val mentionIndexes = ConcurrentHashMap<Long, ThreadMentionIndex>() // Thread ID to mention index
 
-    fun cache(publicKey: String, threadID: Long) {
-        val cache = userPublicKeyCache[threadID]
-        if (cache != null) {
-            userPublicKeyCache[threadID] = cache.plus(publicKey)
-        } else {
-            userPublicKeyCache[threadID] = setOf( publicKey )
-        }
+    private class ThreadMentionIndex(val index: MentionIndex, val contactContext: Contact.ContactContext)
+
+    fun hasMentionIndex(threadID: Long): Boolean {
+        return mentionIndexes.containsKey(threadID)
     }
 
-    fun getMentionCandidates(query: String, threadID: Long, isOpenGroup: Boolean): List<Mention> {
-        val cache = userPublicKeyCache[threadID] ?: return listOf()
-        // Prepare
-        val context = if (isOpenGroup) Contact.ContactContext.OPEN_GROUP else Contact.ContactContext.REGULAR
-        val storage = MessagingModuleConfiguration.shared.storage
-        val userPublicKey = storage.getUserPublicKey()
-        // Gather candidates
-        var candidates: List<Mention> = cache.mapNotNull { publicKey ->
-            val contact = storage.getContactWithSessionID(publicKey)
-            val displayName = contact?.displayName(context) ?: return@mapNotNull null
-            Mention(publicKey, displayName)
+    /**
+     * Indexes the display names of the given users for the given thread. Users without a display name are left out
+     * until a message from them comes in.
+     */
+    fun setMentionIndex(threadID: Long, isOpenGroup: Boolean, publicKeys: Collection<String>, contacts: Collection<Contact>) {
+        val contactContext = if (isOpenGroup) Contact.ContactContext.OPEN_GROUP else Contact.ContactContext.REGULAR
+        val contactsBySessionID = contacts.associateBy { it.sessionID }
+        val index = MentionIndex()
+        publicKeys.forEach { publicKey ->
+            val displayName = contactsBySessionID[publicKey]?.displayName(contactContext) ?: return@forEach
+            index.put(publicKey, displayName)
         }
-        candidates = candidates.filter { it.publicKey != userPublicKey }
-        // Sort alphabetically first
-        candidates.sortedBy { it.displayName }
-        if (query.length >= 2) {
-            // Filter out any non-matching candidates
-            candidates = candidates.filter { it.displayName.toLowerCase().contains(query.toLowerCase()) }
-            // Sort based on where in the candidate the query occurs
-            candidates.sortedBy { it.displayName.toLowerCase().indexOf(query.toLowerCase()) }
+        mentionIndexes[threadID] = ThreadMentionIndex(index, contactContext)
+    }
+
+    /**
+     * Adds the sender of a new message to the thread's mention index if it has been loaded. Senders who are already
+     * indexed are only looked up again when the profile name their message came with doesn't match the indexed name.
+     */
+    fun cache(publicKey: String, threadID: Long, profileName: String? = null) {
+        val threadMentionIndex = mentionIndexes[threadID] ?: return
+        val indexedDisplayName = threadMentionIndex.index.getDisplayName(publicKey)
+        if (indexedDisplayName != null) {
+            if (profileName == null) { return }
+            val profileDisplayName = Contact(publicKey).apply { name = profileName }.displayName(threadMentionIndex.contactContext)
+            if (profileDisplayName == indexedDisplayName) { return }
         }
-        // Return
-        return candidates
+        val storage = MessagingModuleConfiguration.shared.storage
+        val displayName = storage.getContactWithSessionID(publicKey)?.displayName(threadMentionIndex.contactContext) ?: return
+        threadMentionIndex.index.put(publicKey, displayName)
+    }
+
+    fun getMentionCandidates(query: String, threadID: Long): List<Mention> {
+        val threadMentionIndex = mentionIndexes[threadID] ?: return listOf()
+        val userPublicKey = MessagingModuleConfiguration.shared.storage.getUserPublicKey()
+        return threadMentionIndex.index.search(query).filter { it.publicKey != userPublicKey }
     }
 }
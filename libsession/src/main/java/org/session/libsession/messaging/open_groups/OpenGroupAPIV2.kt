@@ -7,6 +7,8 @@ import com.fasterxml.jackson.databind.type.TypeFactory
 import kotlinx.coroutines.*
 import kotlinx.coroutines.flow.MutableSharedFlow
 import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.all
+import nl.komponents.kovenant.deferred
 import nl.komponents.kovenant.functional.bind
 import nl.komponents.kovenant.functional.map
 import okhttp3.Headers
@@ -23,6 +25,8 @@ import org.session.libsignal.utilities.Base64.*
 import org.session.libsignal.utilities.HTTP.Verb.*
 import org.whispersystems.curve25519.Curve25519
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
 
 object OpenGroupAPIV2 {
     private val moderators: HashMap<String, Set<String>> = hashMapOf() // Server URL to (channel ID to set of moderator IDs)
@@ -30,6 +34,9 @@ object OpenGroupAPIV2 {
     val defaultRooms = MutableSharedFlow<List<DefaultGroup>>(replay = 1)
     private val hasPerformedInitialPoll = mutableMapOf<String, Boolean>()
     private var hasUpdatedLastOpenDate = false
+    private val authTokens = ConcurrentHashMap<String, AuthToken>() // Server URL and room ID to auth token
+    private val pendingAuthTokenRequests = ConcurrentHashMap<String, Promise<String, Exception>>()
+    private val authTokenRefreshInterval = TimeUnit.DAYS.toMillis(1)
 
     private val timeSinceLastOpen by lazy {
         val context = MessagingModuleConfiguration.shared.context
@@ -57,6 +64,8 @@ object OpenGroupAPIV2 {
 
     data class Info(val id: String, val name: String, val imageID: String?)
 
+    private data class AuthToken(val token: String, val acquiredAt: Long)
+
     @JsonNaming(PropertyNamingStrategy.SnakeCaseStrategy::class)
     data class CompactPollRequest(val roomID: String, val authToken: String, val fromDeletionServerID: Long?, val fromMessageServerID: Long?)
     data class CompactPollResult(val messages: List<OpenGroupMessageV2>, val deletions: List<MessageDeletion>, val moderators: List<String>)
@@ -132,9 +141,8 @@ object OpenGroupAPIV2 {
                     // indication that the token we're using has expired. Note that a 403 has a different meaning; it means that
                     // we provided a valid token but it doesn't have a high enough permission level for the route in question.
                     if (e is OnionRequestAPI.HTTPRequestFailedAtDestinationException && e.statusCode == 401) {
-                        val storage = MessagingModuleConfiguration.shared.storage
                         if (request.room != null) {
-                            storage.removeAuthToken(request.room, request.server)
+                            invalidateAuthToken(request.room, request.server)
                         }
                     }
                 }
@@ -158,17 +166,64 @@ object OpenGroupAPIV2 {
     }
 
     // region Authorization
+    /**
+     * Returns the auth token for the given room. Tokens are served from memory (falling back to the database) and
+     * ones older than [authTokenRefreshInterval] are renewed in the background while the current one stays in use,
+     * so only a room that has no token at all has to wait for one to be acquired.
+     */
     fun getAuthToken(room: String, server: String): Promise<String, Exception> {
-        val storage = MessagingModuleConfiguration.shared.storage
-        return storage.getAuthToken(room, server)?.let {
-            Promise.of(it)
-        } ?: run {
+        val cachedAuthToken = getCachedAuthToken(room, server) ?: return acquireAuthToken(room, server)
+        if (System.currentTimeMillis() - cachedAuthToken.acquiredAt > authTokenRefreshInterval) {
+            acquireAuthToken(room, server)
+        }
+        return Promise.of(cachedAuthToken.token)
+    }
+
+    private fun getCachedAuthToken(room: String, server: String): AuthToken? {
+        val key = "$server.$room"
+        authTokens[key]?.let { return it }
+        val token = MessagingModuleConfiguration.shared.storage.getAuthToken(room, server) ?: return null
+        // The database doesn't record when a token was acquired, so count its age from when it was loaded
+        val authToken = AuthToken(token, System.currentTimeMillis())
+        return authTokens.putIfAbsent(key, authToken) ?: authToken
+    }
+
+    /**
+     * Requests and claims a new auth token, sharing the request with any other caller waiting on the same room.
+     */
+    private fun acquireAuthToken(room: String, server: String): Promise<String, Exception> {
+        val key = "$server.$room"
+        val deferred = deferred<String, Exception>()
+        pendingAuthTokenRequests.putIfAbsent(key, deferred.promise)?.let { return it }
+        // The shared request has to settle and leave the map whatever happens, or the room would wait on it forever
+        try {
             requestNewAuthToken(room, server)
                 .bind { claimAuthToken(it, room, server) }
-                .success { authToken ->
-                    storage.setAuthToken(room, server, authToken)
+                .success { token ->
+                    try {
+                        MessagingModuleConfiguration.shared.storage.setAuthToken(room, server, token)
+                        authTokens[key] = AuthToken(token, System.currentTimeMillis())
+                        deferred.resolve(token)
+                    } catch (e: Exception) {
+                        deferred.reject(e)
+                    } finally {
+                        pendingAuthTokenRequests.remove(key)
+                    }
+                }
+                .fail { e ->
+                    pendingAuthTokenRequests.remove(key)
+                    deferred.reject(e)
                 }
+        } catch (e: Exception) {
+            pendingAuthTokenRequests.remove(key)
+            deferred.reject(e)
         }
+        return deferred.promise
+    }
+
+    private fun invalidateAuthToken(room: String, server: String) {
+        authTokens.remove("$server.$room")
+        MessagingModuleConfiguration.shared.storage.removeAuthToken(room, server)
     }
 
     fun requestNewAuthToken(room: String, server: String): Promise<String, Exception> {
@@ -203,7 +258,7 @@ object OpenGroupAPIV2 {
     fun deleteAuthToken(room: String, server: String): Promise<Unit, Exception> {
         val request = Request(verb = DELETE, room = room, server = server, endpoint = "auth_token")
         return send(request).map {
-            MessagingModuleConfiguration.shared.storage.removeAuthToken(room, server)
+            invalidateAuthToken(room, server)
         }
     }
     // endregion
@@ -358,9 +413,27 @@ object OpenGroupAPIV2 {
     // endregion
 
     // region General
-    @Suppress("UNCHECKED_CAST")
     fun compactPoll(rooms: List<String>, server: String): Promise<Map<String, CompactPollResult>, Exception> {
+        // Missing tokens are all requested at once. Rooms that already have a token are polled right away and the
+        // others join a later poll; only if no room has a token yet does the poll wait, for all of them together.
         val authTokenRequests = rooms.associateWith { room -> getAuthToken(room, server) }
+        val readyAuthTokens = authTokenRequests.filterValues { it.isDone() && it.isSuccess() }
+        if (readyAuthTokens.isNotEmpty()) {
+            return compactPoll(readyAuthTokens.mapValues { it.value.get() }, server)
+        }
+        val settledAuthTokenRequests = authTokenRequests.map { (room, request) ->
+            request.map { room to it as String? }.recover { e ->
+                Log.e("Loki", "Failed to get auth token for $room.", e)
+                room to null
+            }
+        }
+        return all(settledAuthTokenRequests, cancelOthersOnError = false).bind { authTokens ->
+            compactPoll(authTokens.toMap(), server)
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun compactPoll(authTokens: Map<String, String?>, server: String): Promise<Map<String, CompactPollResult>, Exception> {
         val storage = MessagingModuleConfiguration.shared.storage
         val context = MessagingModuleConfiguration.shared.context
         val timeSinceLastOpen = this.timeSinceLastOpen
@@ -371,13 +444,8 @@ object OpenGroupAPIV2 {
             hasUpdatedLastOpenDate = true
             TextSecurePreferences.setLastOpenDate(context)
         }
-        val requests = rooms.mapNotNull { room ->
-            val authToken = try {
-                authTokenRequests[room]?.get()
-            } catch (e: Exception) {
-                Log.e("Loki", "Failed to get auth token for $room.", e)
-                null
-            } ?: return@mapNotNull null
+        val requests = authTokens.mapNotNull { (room, authToken) ->
+            if (authToken == null) return@mapNotNull null
             CompactPollRequest(
                 roomID = room,
                 authToken = authToken,
@@ -396,8 +464,9 @@ object OpenGroupAPIV2 {
                 // we provided a valid token but it doesn't have a high enough permission level for the route in question.
                 val statusCode = json["status_code"] as? Int ?: return@mapNotNull null
                 if (statusCode == 401) {
-                    // delete auth token and return null
-                    storage.removeAuthToken(roomID, server)
+                    // delete the auth token and start acquiring a new one, so that the next poll doesn't have to wait for it
+                    invalidateAuthToken(roomID, server)
+                    acquireAuthToken(roomID, server)
                 }
                 // Moderators
                 val moderators = json["moderators"] as? List<String> ?: return@mapNotNull null
@@ -4,6 +4,7 @@ import android.text.TextUtils
 import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.jobs.AttachmentDownloadJob
 import org.session.libsession.messaging.jobs.JobQueue
+import org.session.libsession.messaging.mentions.MentionsManager
 import org.session.libsession.messaging.messages.Message
 import org.session.libsession.messaging.messages.control.*
 import org.session.libsession.messaging.messages.visible.Attachment
@@ -168,6 +169,64 @@ fun MessageReceiver.handleUnsendRequest(message: UnsendRequest) {
 
 // region Visible Messages
 fun MessageReceiver.handleVisibleMessage(message: VisibleMessage, proto: SignalServiceProtos.Content, openGroupID: String?) {
+    val context = MessagingModuleConfiguration.shared.context
+    val messageID = persistVisibleMessage(message, proto, openGroupID, true)
+    // Start attachment downloads if needed
+    startAttachmentDownloads(messageID)
+    // Cancel any typing indicators if needed
+    cancelTypingIndicatorsIfNeeded(message.sender!!)
+    // Notify the user if needed
+    SSKEnvironment.shared.notificationManager.updateNotification(context, message.threadID!!)
+}
+
+/**
+ * Handles the visible messages from one open group poll together. They're persisted in a single transaction, each
+ * sender's profile is only updated from their latest message and the user is notified once at the end. If anything
+ * goes wrong the transaction is rolled back and the messages are handled one by one instead, so that a single bad
+ * message doesn't hold back the rest.
+ */
+fun MessageReceiver.handleOpenGroupMessages(messages: List<Pair<VisibleMessage, SignalServiceProtos.Content>>, openGroupID: String) {
+    if (messages.isEmpty()) { return }
+    val storage = MessagingModuleConfiguration.shared.storage
+    val context = MessagingModuleConfiguration.shared.context
+    val latestMessagePerSender = messages.associateBy { it.first.sender!! }.values.map { it.first }.toSet()
+    val messageIDs = try {
+        storage.runInTransaction {
+            messages.map { (message, proto) ->
+                persistVisibleMessage(message, proto, openGroupID, latestMessagePerSender.contains(message))
+            }
+        }
+    } catch (e: Exception) {
+        Log.w("Loki", "Couldn't handle open group messages in a batch; handling them one by one.", e)
+        messages.mapNotNull { (message, proto) ->
+            try {
+                persistVisibleMessage(message, proto, openGroupID, true)
+            } catch (e: Exception) {
+                Log.e("Loki", "Exception handling message", e)
+                null
+            }
+        }
+    }
+    messageIDs.forEach { startAttachmentDownloads(it) }
+    latestMessagePerSender.forEach { cancelTypingIndicatorsIfNeeded(it.sender!!) }
+    val threadID = messages.mapNotNull { it.first.threadID }.firstOrNull() ?: return
+    SSKEnvironment.shared.notificationManager.updateNotification(context, threadID)
+}
+
+private fun startAttachmentDownloads(messageID: Long) {
+    val storage = MessagingModuleConfiguration.shared.storage
+    storage.getAttachmentsForMessage(messageID).forEach { attachment ->
+        attachment.attachmentId?.let { id ->
+            val downloadJob = AttachmentDownloadJob(id.rowId, messageID)
+            JobQueue.shared.add(downloadJob)
+        }
+    }
+}
+
+/**
+ * Persists the given message along with its quote, link previews and attachments and returns its ID.
+ */
+private fun MessageReceiver.persistVisibleMessage(message: VisibleMessage, proto: SignalServiceProtos.Content, openGroupID: String?, updateProfile: Boolean): Long {
     val storage = MessagingModuleConfiguration.shared.storage
     val context = MessagingModuleConfiguration.shared.context
     val userPublicKey = storage.getUserPublicKey()
@@ -182,7 +241,7 @@ fun MessageReceiver.handleVisibleMessage(message: VisibleMessage, proto: SignalS
     }
     // Update profile if needed
     val profile = message.profile
-    if (profile != null && userPublicKey != message.sender) {
+    if (updateProfile && profile != null && userPublicKey != message.sender) {
         val profileManager = SSKEnvironment.shared.profileManager
         val recipient = Recipient.from(context, Address.fromSerialized(message.sender!!), false)
         val name = profile.displayName!!
@@ -238,23 +297,13 @@ fun MessageReceiver.handleVisibleMessage(message: VisibleMessage, proto: SignalS
     // Persist the message
     message.threadID = threadID
     val messageID = storage.persist(message, quoteModel, linkPreviews, message.groupPublicKey, openGroupID, attachments) ?: throw MessageReceiver.Error.DuplicateMessage
-    // Parse & persist attachments
-    // Start attachment downloads if needed
-    storage.getAttachmentsForMessage(messageID).forEach { attachment ->
-        attachment.attachmentId?.let { id ->
-            val downloadJob = AttachmentDownloadJob(id.rowId, messageID)
-            JobQueue.shared.add(downloadJob)
-        }
-    }
     val openGroupServerID = message.openGroupServerMessageID
     if (openGroupServerID != null) {
         val isSms = !(message.isMediaMessage() || attachments.isNotEmpty())
         storage.setOpenGroupServerMessageID(messageID, openGroupServerID, threadID, isSms)
     }
-    // Cancel any typing indicators if needed
-    cancelTypingIndicatorsIfNeeded(message.sender!!)
-    // Notify the user if needed
-    SSKEnvironment.shared.notificationManager.updateNotification(context, threadID)
+    MentionsManager.cache(message.sender!!, threadID, message.profile?.displayName)
+    return messageID
 }
 //endregion
 
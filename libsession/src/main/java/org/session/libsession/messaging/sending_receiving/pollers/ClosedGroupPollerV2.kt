@@ -1,6 +1,7 @@
 package org.session.libsession.messaging.sending_receiving.pollers
 
 import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.all
 import nl.komponents.kovenant.functional.bind
 import nl.komponents.kovenant.functional.map
 import org.session.libsession.messaging.MessagingModuleConfiguration
@@ -8,34 +9,40 @@ import org.session.libsession.messaging.jobs.JobQueue
 import org.session.libsession.messaging.jobs.MessageReceiveJob
 import org.session.libsession.snode.SnodeAPI
 import org.session.libsession.utilities.GroupUtil
-import org.session.libsignal.crypto.getRandomElementOrNull
 import org.session.libsignal.utilities.Log
-import org.session.libsignal.utilities.successBackground
+import org.session.libsignal.utilities.Snode
+import org.session.libsignal.utilities.recover
+import java.security.SecureRandom
 import java.util.*
 import java.util.concurrent.Executors
 import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
+import kotlin.math.max
 import kotlin.math.min
 
+/**
+ * Polls all closed groups from a single scheduled task. Each group keeps its own activity-based poll interval, but
+ * groups that come due at about the same time are polled together: their swarms are resolved up front and the groups
+ * are spread over as few snodes as possible, so that groups whose swarms overlap are retrieved from the same snode in
+ * the same round instead of each picking a random one.
+ */
 class ClosedGroupPollerV2 {
-    private val executorService = Executors.newScheduledThreadPool(4)
-    private var isPolling = mutableMapOf<String, Boolean>()
-    private var futures = mutableMapOf<String, ScheduledFuture<*>>()
-
-    private fun isPolling(groupPublicKey: String): Boolean {
-        return isPolling[groupPublicKey] ?: false
-    }
+    private val executorService = Executors.newSingleThreadScheduledExecutor()
+    private val nextPollTimes = mutableMapOf<String, Long>() // Group public key to the time of its next poll
+    private val inFlightGroups = mutableSetOf<String>()
+    private var future: ScheduledFuture<*>? = null
 
     companion object {
         private val minPollInterval = 4 * 1000
         private val maxPollInterval = 4 * 60 * 1000
+        /** Groups due within this window of a round are polled in that round rather than in one of their own. */
+        private val batchWindow = 2 * 1000
 
         @JvmStatic
         val shared = ClosedGroupPollerV2()
     }
 
     class InsufficientSnodesException() : Exception("No snodes left to poll.")
-    class PollingCanceledException() : Exception("Polling canceled.")
 
     fun start() {
         val storage = MessagingModuleConfiguration.shared.storage
@@ -43,10 +50,11 @@ class ClosedGroupPollerV2 {
         allGroupPublicKeys.forEach { startPolling(it) }
     }
 
+    @Synchronized
     fun startPolling(groupPublicKey: String) {
         if (isPolling(groupPublicKey)) { return }
-        isPolling[groupPublicKey] = true
-        setUpPolling(groupPublicKey)
+        nextPollTimes[groupPublicKey] = System.currentTimeMillis()
+        scheduleNextRound()
     }
 
     fun stop() {
@@ -55,27 +63,121 @@ class ClosedGroupPollerV2 {
         allGroupPublicKeys.forEach { stopPolling(it) }
     }
 
+    @Synchronized
     fun stopPolling(groupPublicKey: String) {
-        futures[groupPublicKey]?.cancel(false)
-        isPolling[groupPublicKey] = false
+        nextPollTimes.remove(groupPublicKey)
+        scheduleNextRound()
+    }
+
+    @Synchronized
+    private fun isPolling(groupPublicKey: String): Boolean {
+        return nextPollTimes.containsKey(groupPublicKey)
+    }
+
+    /**
+     * Polls the given groups once, independently of the schedule.
+     */
+    fun poll(groupPublicKeys: Collection<String>): Promise<Unit, Exception> {
+        return pollGroups(groupPublicKeys.toList())
+    }
+
+    fun poll(groupPublicKey: String): Promise<Unit, Exception> {
+        return poll(listOf(groupPublicKey))
+    }
+
+    @Synchronized
+    private fun scheduleNextRound() {
+        future?.cancel(false)
+        val nextPollTime = nextPollTimes.filterKeys { !inFlightGroups.contains(it) }.values.minOrNull() ?: return
+        val delay = max(nextPollTime - System.currentTimeMillis(), 0)
+        future = executorService.schedule(::pollDueGroups, delay, TimeUnit.MILLISECONDS)
+    }
+
+    private fun pollDueGroups() {
+        val dueGroups = synchronized(this) {
+            val cutoff = System.currentTimeMillis() + batchWindow
+            val dueGroups = nextPollTimes.filter { (groupPublicKey, nextPollTime) ->
+                nextPollTime <= cutoff && !inFlightGroups.contains(groupPublicKey)
+            }.keys.toList()
+            inFlightGroups.addAll(dueGroups)
+            dueGroups
+        }
+        if (dueGroups.isEmpty()) { return scheduleNextRound() }
+        pollGroups(dueGroups).always {
+            synchronized(this) {
+                dueGroups.forEach { groupPublicKey ->
+                    inFlightGroups.remove(groupPublicKey)
+                    if (!isPolling(groupPublicKey)) { return@forEach }
+                    val pollInterval = getPollInterval(groupPublicKey)
+                    if (pollInterval != null) {
+                        nextPollTimes[groupPublicKey] = System.currentTimeMillis() + pollInterval
+                    } else {
+                        nextPollTimes.remove(groupPublicKey) // The group's thread is gone
+                    }
+                }
+                scheduleNextRound()
+            }
+        }
+    }
+
+    /**
+     * Polls each of the given groups once. Failures are logged per group and don't fail the returned promise.
+     */
+    private fun pollGroups(groupPublicKeys: List<String>): Promise<Unit, Exception> {
+        val swarmRequests = groupPublicKeys.map { groupPublicKey ->
+            SnodeAPI.getSwarm(groupPublicKey).map { groupPublicKey to it }.recover { e ->
+                Log.d("Loki", "Couldn't get swarm for closed group with public key: $groupPublicKey due to error: $e.")
+                groupPublicKey to setOf<Snode>()
+            }
+        }
+        return all(swarmRequests, cancelOthersOnError = false).bind { swarms ->
+            val assignments = assignSnodes(swarms.toMap())
+            val pollRequests = groupPublicKeys.map { groupPublicKey ->
+                val snode = assignments[groupPublicKey]
+                val promise = if (snode != null) poll(groupPublicKey, snode) else Promise.ofFail<Unit, Exception>(InsufficientSnodesException())
+                promise.recover { e ->
+                    Log.d("Loki", "Polling failed for closed group with public key: $groupPublicKey due to error: $e.")
+                }
+            }
+            all(pollRequests, cancelOthersOnError = false).map { }
+        }
     }
 
-    private fun setUpPolling(groupPublicKey: String) {
-        poll(groupPublicKey).success {
-            pollRecursively(groupPublicKey)
-        }.fail {
-            // The error is logged in poll(_:)
-            pollRecursively(groupPublicKey)
+    /**
+     * Greedily picks the snode that is in the most remaining swarms until every group has one, so that groups whose
+     * swarms share a snode are polled from it together. Ties are broken randomly to keep spreading load over swarms.
+     */
+    private fun assignSnodes(swarms: Map<String, Set<Snode>>): Map<String, Snode> {
+        val result = mutableMapOf<String, Snode>()
+        val remainingGroups = swarms.filterValues { it.isNotEmpty() }.keys.toMutableSet()
+        val random = SecureRandom() // Should be cryptographically secure
+        while (remainingGroups.isNotEmpty()) {
+            val candidates = remainingGroups.flatMap { swarms.getValue(it) }.groupingBy { it }.eachCount()
+            val maxCount = candidates.values.maxOrNull() ?: break
+            val snode = candidates.filterValues { it == maxCount }.keys.shuffled(random).first()
+            val groups = remainingGroups.filter { swarms.getValue(it).contains(snode) }
+            groups.forEach { result[it] = snode }
+            remainingGroups.removeAll(groups)
         }
+        return result
     }
 
-    private fun pollRecursively(groupPublicKey: String) {
-        if (!isPolling(groupPublicKey)) { return }
+    private fun poll(groupPublicKey: String, snode: Snode): Promise<Unit, Exception> {
+        return SnodeAPI.getRawMessages(snode, groupPublicKey).map { rawResponse ->
+            val envelopes = SnodeAPI.parseRawMessagesResponse(rawResponse, snode, groupPublicKey)
+            envelopes.forEach { (envelope, serverHash) ->
+                val job = MessageReceiveJob(envelope.toByteArray(), serverHash)
+                JobQueue.shared.add(job)
+            }
+        }
+    }
+
+    private fun getPollInterval(groupPublicKey: String): Long? {
         // Get the received date of the last message in the thread. If we don't have any messages yet, pick some
         // reasonable fake time interval to use instead.
         val storage = MessagingModuleConfiguration.shared.storage
         val groupID = GroupUtil.doubleEncodeGroupID(groupPublicKey)
-        val threadID = storage.getThreadId(groupID) ?: return
+        val threadID = storage.getThreadId(groupID) ?: return null
         val lastUpdated = storage.getLastUpdated(threadID)
         val timeSinceLastMessage = if (lastUpdated != -1L) Date().time - lastUpdated else 5 * 60 * 1000
         val minPollInterval = Companion.minPollInterval
@@ -83,33 +185,6 @@ class ClosedGroupPollerV2 {
         val a = (Companion.maxPollInterval - minPollInterval).toDouble() / limit.toDouble()
         val nextPollInterval = a * min(timeSinceLastMessage, limit) + minPollInterval
         Log.d("Loki", "Next poll interval for closed group with public key: $groupPublicKey is ${nextPollInterval / 1000} s.")
-        executorService?.schedule({
-            poll(groupPublicKey).success {
-                pollRecursively(groupPublicKey)
-            }.fail {
-                // The error is logged in poll(_:)
-                pollRecursively(groupPublicKey)
-            }
-        }, nextPollInterval.toLong(), TimeUnit.MILLISECONDS)
-    }
-
-    fun poll(groupPublicKey: String): Promise<Unit, Exception> {
-        if (!isPolling(groupPublicKey)) { return Promise.of(Unit) }
-        val promise = SnodeAPI.getSwarm(groupPublicKey).bind { swarm ->
-            val snode = swarm.getRandomElementOrNull() ?: throw InsufficientSnodesException() // Should be cryptographically secure
-            if (!isPolling(groupPublicKey)) { throw PollingCanceledException() }
-            SnodeAPI.getRawMessages(snode, groupPublicKey).map { SnodeAPI.parseRawMessagesResponse(it, snode, groupPublicKey) }
-        }
-        promise.success { envelopes ->
-            if (!isPolling(groupPublicKey)) { return@success }
-            envelopes.forEach { (envelope, serverHash) ->
-                val job = MessageReceiveJob(envelope.toByteArray(), serverHash)
-                JobQueue.shared.add(job)
-            }
-        }
-        promise.fail {
-            Log.d("Loki", "Polling failed for closed group with public key: $groupPublicKey due to error: $it.")
-        }
-        return promise.map { }
+        return nextPollInterval.toLong()
     }
 }
@@ -6,46 +6,115 @@ import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.jobs.JobQueue
 import org.session.libsession.messaging.jobs.MessageReceiveJob
 import org.session.libsession.messaging.jobs.TrimThreadJob
+import org.session.libsession.messaging.messages.visible.VisibleMessage
 import org.session.libsession.messaging.open_groups.OpenGroupAPIV2
 import org.session.libsession.messaging.open_groups.OpenGroupMessageV2
 import org.session.libsession.messaging.sending_receiving.MessageReceiver
-import org.session.libsession.messaging.sending_receiving.handle
+import org.session.libsession.messaging.sending_receiving.handleOpenGroupMessages
 import org.session.libsession.utilities.Address
 import org.session.libsession.utilities.GroupUtil
+import org.session.libsession.utilities.TextSecurePreferences
+import org.session.libsession.utilities.concurrent.SignalExecutors
 import org.session.libsignal.protos.SignalServiceProtos
 import org.session.libsignal.utilities.Log
 import org.session.libsignal.utilities.successBackground
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
 import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.Semaphore
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.math.max
+import kotlin.math.min
 
+/**
+ * Polls the rooms of one open group server. The poll interval starts at [minPollInterval], doubles after every poll that
+ * brings in nothing new up to [maxPollInterval] and drops back to the minimum as soon as there is activity in any room or
+ * [pollNow] is called. At most [maxConcurrentPolls] servers are polled at the same time, across all pollers.
+ */
 class OpenGroupPollerV2(private val server: String, private val executorService: ScheduledExecutorService?) {
-    var hasStarted = false
+    @Volatile var hasStarted = false
     var isCaughtUp = false
     var secondToLastJob: MessageReceiveJob? = null
     private var future: ScheduledFuture<*>? = null
+    @Volatile private var pollInterval = minPollInterval
+    /** Set by [pollNow] so that a poll that was already in progress doesn't back off when it completes. */
+    private val isPollRequested = AtomicBoolean(false)
 
     companion object {
-        private val pollInterval: Long = 4 * 1000
+        private const val minPollInterval: Long = 4 * 1000
+        private const val maxPollInterval: Long = 2 * 60 * 1000
+        private const val busyRetryInterval: Long = 500
+        private const val maxConcurrentPolls = 2
+        private val pollPermits = Semaphore(maxConcurrentPolls)
         const val maxInactivityPeriod = 14 * 24 * 60 * 60 * 1000
     }
 
     fun startIfNeeded() {
         if (hasStarted) { return }
         hasStarted = true
-        future = executorService?.schedule(::poll, 0, TimeUnit.MILLISECONDS)
+        schedule(0)
     }
 
     fun stop() {
-        future?.cancel(false)
-        hasStarted = false
+        synchronized(this) {
+            future?.cancel(false)
+            hasStarted = false
+        }
+    }
+
+    /**
+     * Goes back to the shortest poll interval and polls right away, unless a poll is already in progress, in which
+     * case the next one follows it after the shortest interval.
+     */
+    fun pollNow() {
+        pollInterval = minPollInterval
+        synchronized(this) {
+            if (!hasStarted) { return }
+            isPollRequested.set(true)
+            if (future?.cancel(false) == true) {
+                schedule(0)
+            }
+        }
+    }
+
+    private fun schedule(delay: Long) {
+        synchronized(this) {
+            if (!hasStarted) { return }
+            future = executorService?.schedule(::pollAndReschedule, delay, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    private fun pollAndReschedule() {
+        if (!pollPermits.tryAcquire()) {
+            schedule(busyRetryInterval)
+            return
+        }
+        val promise = try {
+            poll()
+        } catch (e: Exception) {
+            Log.e("Loki", "Failed to poll open group server: $server.", e)
+            pollPermits.release()
+            schedule(pollInterval)
+            return
+        }
+        promise.always {
+            pollPermits.release()
+            schedule(pollInterval)
+        }
     }
 
     fun poll(isBackgroundPoll: Boolean = false): Promise<Unit, Exception> {
         val storage = MessagingModuleConfiguration.shared.storage
         val rooms = storage.getAllV2OpenGroups().values.filter { it.server == server }.map { it.room }
-        return OpenGroupAPIV2.compactPoll(rooms, server).successBackground { responses ->
+        return OpenGroupAPIV2.compactPoll(rooms, server).map { responses ->
+            val hasActivity = responses.values.any { it.messages.isNotEmpty() || it.deletions.isNotEmpty() }
+            updatePollInterval(hasActivity)
+            responses
+        }.fail {
+            updatePollInterval(false)
+        }.successBackground { responses ->
             responses.forEach { (room, response) ->
                 val openGroupID = "$server.$room"
                 handleNewMessages(room, openGroupID, response.messages, isBackgroundPoll)
@@ -54,11 +123,14 @@ class OpenGroupPollerV2(private val server: String, private val executorService:
                     isCaughtUp = true
                 }
             }
-        }.always {
-            executorService?.schedule(this@OpenGroupPollerV2::poll, OpenGroupPollerV2.pollInterval, TimeUnit.MILLISECONDS)
         }.map { }
     }
 
+    private fun updatePollInterval(hasActivity: Boolean) {
+        val wasPollRequested = isPollRequested.getAndSet(false)
+        pollInterval = if (hasActivity || wasPollRequested) minPollInterval else min(pollInterval * 2, maxPollInterval)
+    }
+
     private fun handleNewMessages(room: String, openGroupID: String, messages: List<OpenGroupMessageV2>, isBackgroundPoll: Boolean) {
         val storage = MessagingModuleConfiguration.shared.storage
         val groupID = GroupUtil.getEncodedOpenGroupID(openGroupID.toByteArray())
@@ -66,30 +138,58 @@ class OpenGroupPollerV2(private val server: String, private val executorService:
         val threadId = storage.getThreadId(Address.fromSerialized(groupID)) ?: -1
         val threadExists = threadId >= 0
         if (!hasStarted || !threadExists) { return }
-        messages.sortedBy { it.serverID!! }.forEach { message ->
-            try {
-                val senderPublicKey = message.sender!!
+        val parsedMessages = parseMessages(messages.sortedBy { it.serverID!! })
+        MessageReceiver.handleOpenGroupMessages(parsedMessages, openGroupID)
+
+        val currentLastMessageServerID = storage.getLastMessageServerID(room, server) ?: 0
+        val actualMax = max(messages.mapNotNull { it.serverID }.maxOrNull() ?: 0, currentLastMessageServerID)
+        if (actualMax > 0) {
+            storage.setLastMessageServerID(room, server, actualMax)
+        }
+        if (parsedMessages.isNotEmpty()) {
+            trimThreadIfNeeded(threadId)
+        }
+    }
+
+    /**
+     * Parses the given messages in parallel, keeping their order. Messages that fail to parse are dropped, as are
+     * messages with the same timestamp as an earlier one in the list, which the parallel duplicate checks can't see.
+     */
+    private fun parseMessages(messages: List<OpenGroupMessageV2>): List<Pair<VisibleMessage, SignalServiceProtos.Content>> {
+        val futures = messages.map { message ->
+            SignalExecutors.BOUNDED.submit(Callable {
                 val builder = SignalServiceProtos.Envelope.newBuilder()
                 builder.type = SignalServiceProtos.Envelope.Type.SESSION_MESSAGE
-                builder.source = senderPublicKey
+                builder.source = message.sender!!
                 builder.sourceDevice = 1
                 builder.content = message.toProto().toByteString()
                 builder.timestamp = message.sentTimestamp
                 val envelope = builder.build()
-                val (parsedMessage, content) = MessageReceiver.parse(envelope.toByteArray(), message.serverID)
-                MessageReceiver.handle(parsedMessage, content, openGroupID)
-            } catch (e: Exception) {
-                Log.e("Loki", "Exception parsing message", e)
+                MessageReceiver.parse(envelope.toByteArray(), message.serverID)
+            })
+        }
+        val timestamps = mutableSetOf<Long>()
+        return futures.mapNotNull { future ->
+            val (parsedMessage, content) = try {
+                future.get()
+            } catch (e: ExecutionException) {
+                Log.e("Loki", "Exception parsing message", e.cause)
+                return@mapNotNull null
             }
+            if (parsedMessage !is VisibleMessage || !timestamps.add(parsedMessage.sentTimestamp!!)) { return@mapNotNull null }
+            parsedMessage to content
         }
+    }
 
-        val currentLastMessageServerID = storage.getLastMessageServerID(room, server) ?: 0
-        val actualMax = max(messages.mapNotNull { it.serverID }.maxOrNull() ?: 0, currentLastMessageServerID)
-        if (actualMax > 0) {
-            storage.setLastMessageServerID(room, server, actualMax)
-        }
-        if (messages.isNotEmpty()) {
-            JobQueue.shared.add(TrimThreadJob(threadId))
+    /**
+     * Only schedules a [TrimThreadJob] once the thread has actually grown past the trim length.
+     */
+    private fun trimThreadIfNeeded(threadID: Long) {
+        val context = MessagingModuleConfiguration.shared.context
+        if (!TextSecurePreferences.isThreadLengthTrimmingEnabled(context)) { return }
+        val storage = MessagingModuleConfiguration.shared.storage
+        if (storage.getMessageCount(threadID) > TextSecurePreferences.getThreadTrimLength(context)) {
+            JobQueue.shared.add(TrimThreadJob(threadID))
         }
     }
 
@@ -98,11 +198,9 @@ class OpenGroupPollerV2(private val server: String, private val executorService:
         val dataProvider = MessagingModuleConfiguration.shared.messageDataProvider
         val groupID = GroupUtil.getEncodedOpenGroupID(openGroupID.toByteArray())
         val threadID = storage.getThreadId(Address.fromSerialized(groupID)) ?: return
-        val deletedMessageIDs = deletions.mapNotNull { deletion ->
-            dataProvider.getMessageID(deletion.deletedMessageServerID, threadID)
-        }
-        deletedMessageIDs.forEach { (messageId, isSms) ->
-            MessagingModuleConfiguration.shared.messageDataProvider.deleteMessage(messageId, isSms)
+        val deletedMessageServerIDs = deletions.map { it.deletedMessageServerID }
+        if (deletedMessageServerIDs.isNotEmpty()) {
+            dataProvider.deleteMessagesForServerIDs(deletedMessageServerIDs, threadID)
         }
         val currentMax = storage.getLastDeletionServerID(room, server) ?: 0L
         val latestMax = deletions.map { it.id }.maxOrNull() ?: 0L
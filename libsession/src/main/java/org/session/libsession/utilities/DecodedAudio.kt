@@ -13,16 +13,12 @@ import java.io.FileDescriptor
 import java.io.IOException
 import java.io.InputStream
 import java.nio.ByteBuffer
-import java.nio.ByteOrder
-import java.nio.ShortBuffer
 import kotlin.jvm.Throws
-import kotlin.math.ceil
 import kotlin.math.roundToInt
-import kotlin.math.sqrt
 
 /**
- * Decodes the audio data and provides access to its sample data.
- * We need this to extract RMS values for waveform visualization.
+ * Decodes the audio data and extracts RMS values for waveform visualization.
+ * The decoded samples are fed to a [RmsAccumulator] chunk by chunk and aren't kept in memory.
  *
  * Use static [DecodedAudio.create] methods to instantiate a [DecodedAudio].
  *
@@ -67,27 +63,7 @@ class DecodedAudio {
     /** Total number of samples per channel in audio file. */
     val numSamples: Int
 
-    val samples: ShortBuffer
-        get() {
-            return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N &&
-                    Build.VERSION.SDK_INT <= Build.VERSION_CODES.N_MR1
-            ) {
-                // Hack for Nougat where asReadOnlyBuffer fails to respect byte ordering.
-                // See https://code.google.com/p/android/issues/detail?id=223824
-                decodedSamples
-            } else {
-                decodedSamples.asReadOnlyBuffer()
-            }
-        }
-
-    /**
-     * Shared buffer with mDecodedBytes.
-     * Has the following format:
-     * {s1c1, s1c2, ..., s1cM, s2c1, ..., s2cM, ..., sNc1, ..., sNcM}
-     * where sicj is the ith sample of the jth channel (a sample is a signed short)
-     * M is the number of channels (e.g. 2 for stereo) and N is the number of samples per channel.
-     */
-    private val decodedSamples: ShortBuffer
+    private val rmsAccumulator: RmsAccumulator
 
     @Throws(IOException::class)
     private constructor(extractor: MediaExtractor, size: Long) {
@@ -139,19 +115,13 @@ class DecodedAudio {
             }
         }
 
-        var decodedSamplesSize: Int = 0  // size of the output buffer containing decoded samples.
-        var decodedSamples: ByteArray? = null
+        rmsAccumulator = RmsAccumulator(channels, if (totalDuration >= 0) expectedNumSamples else 0)
+
         var sampleSize: Int
         val info = MediaCodec.BufferInfo()
         var presentationTime: Long
-        var totalSizeRead: Int = 0
         var doneReading = false
 
-        // Set the size of the decoded samples buffer to 1MB (~6sec of a stereo stream at 44.1kHz).
-        // For longer streams, the buffer size will be increased later on, calculating a rough
-        // estimate of the total size needed to store all the samples in order to resize the buffer
-        // only once.
-        var decodedBytes: ByteBuffer = ByteBuffer.allocate(1 shl 20)
         var firstSampleData = true
         while (true) {
             // read data from file and feed it to the decoder input buffers.
@@ -169,7 +139,6 @@ class DecodedAudio {
                     // seems OK with other devices (MediaCodec has already been configured and
                     // already knows these parameters).
                     extractor.advance()
-                    totalSizeRead += sampleSize
                 } else if (sampleSize < 0) {
                     // All samples have been read.
                     codec.queueInputBuffer(
@@ -180,7 +149,6 @@ class DecodedAudio {
                     presentationTime = extractor.sampleTime
                     codec.queueInputBuffer(inputBufferIndex, 0, sampleSize, presentationTime, 0)
                     extractor.advance()
-                    totalSizeRead += sampleSize
                 }
                 firstSampleData = false
             }
@@ -188,51 +156,16 @@ class DecodedAudio {
             // Get decoded stream from the decoder output buffers.
             val outputBufferIndex: Int = codec.dequeueOutputBuffer(info, 100)
             if (outputBufferIndex >= 0 && info.size > 0) {
-                if (decodedSamplesSize < info.size) {
-                    decodedSamplesSize = info.size
-                    decodedSamples = ByteArray(decodedSamplesSize)
-                }
                 val outputBuffer: ByteBuffer = codec.getOutputBuffer(outputBufferIndex)!!
-                outputBuffer.get(decodedSamples!!, 0, info.size)
+                outputBuffer.position(info.offset)
+                outputBuffer.limit(info.offset + info.size)
+                rmsAccumulator.add(outputBuffer)
                 outputBuffer.clear()
-                // Check if buffer is big enough. Resize it if it's too small.
-                if (decodedBytes.remaining() < info.size) {
-                    // Getting a rough estimate of the total size, allocate 20% more, and
-                    // make sure to allocate at least 5MB more than the initial size.
-                    val position = decodedBytes.position()
-                    var newSize = ((position * (1.0 * dataSize / totalSizeRead)) * 1.2).toInt()
-                    if (newSize - position < info.size + 5 * (1 shl 20)) {
-                        newSize = position + info.size + 5 * (1 shl 20)
-                    }
-                    var newDecodedBytes: ByteBuffer? = null
-                    // Try to allocate memory. If we are OOM, try to run the garbage collector.
-                    var retry = 10
-                    while (retry > 0) {
-                        try {
-                            newDecodedBytes = ByteBuffer.allocate(newSize)
-                            break
-                        } catch (e: OutOfMemoryError) {
-                            // setting android:largeHeap="true" in <application> seem to help not
-                            // reaching this section.
-                            retry--
-                        }
-                    }
-                    if (retry == 0) {
-                        // Failed to allocate memory... Stop reading more data and finalize the
-                        // instance with the data decoded so far.
-                        break
-                    }
-                    decodedBytes.rewind()
-                    newDecodedBytes!!.put(decodedBytes)
-                    decodedBytes = newDecodedBytes
-                    decodedBytes.position(position)
-                }
-                decodedBytes.put(decodedSamples, 0, info.size)
                 codec.releaseOutputBuffer(outputBufferIndex, false)
             }
 
             if ((info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
-                    || (decodedBytes.position() / (2 * channels)) >= expectedNumSamples
+                    || rmsAccumulator.numSamples >= expectedNumSamples
             ) {
                 // We got all the decoded data from the decoder. Stop here.
                 // Theoretically dequeueOutputBuffer(info, ...) should have set info.flags to
@@ -246,10 +179,7 @@ class DecodedAudio {
                 break
             }
         }
-        numSamples = decodedBytes.position() / (channels * 2)  // One sample = 2 bytes.
-        decodedBytes.rewind()
-        decodedBytes.order(ByteOrder.LITTLE_ENDIAN)
-        this.decodedSamples = decodedBytes.asShortBuffer()
+        numSamples = rmsAccumulator.numSamples
         avgBitRate = ((dataSize * 8) * (sampleRate.toFloat() / numSamples) / 1000).toInt()
 
         extractor.release()
@@ -257,92 +187,15 @@ class DecodedAudio {
         codec.release()
     }
 
+    /**
+     * @param maxFrames Defines amount of output RMS frames.
+     * See [RmsAccumulator.calculateRms].
+     *
+     * @return normalized RMS values of the first channel as a signed byte array.
+     */
     fun calculateRms(maxFrames: Int): ByteArray {
-        return calculateRms(this.samples, this.numSamples, this.channels, maxFrames)
-    }
-}
-
-/**
- * Computes audio RMS values for the first channel only.
- *
- * A typical RMS calculation algorithm is:
- * 1. Square each sample
- * 2. Sum the squared samples
- * 3. Divide the sum of the squared samples by the number of samples
- * 4. Take the square root of step 3., the mean of the squared samples
- *
- * @param maxFrames Defines amount of output RMS frames.
- * If number of samples per channel is less than "maxFrames",
- * the result array will match the source sample size instead.
- *
- * @return normalized RMS values as a signed byte array.
- */
-private fun calculateRms(samples: ShortBuffer, numSamples: Int, channels: Int, maxFrames: Int): ByteArray {
-    val numFrames: Int
-    val frameStep: Float
-
-    val samplesPerChannel = numSamples / channels
-    if (samplesPerChannel <= maxFrames) {
-        frameStep = 1f
-        numFrames = samplesPerChannel
-    } else {
-        frameStep = numSamples / maxFrames.toFloat()
-        numFrames = maxFrames
+        return rmsAccumulator.calculateRms(maxFrames)
     }
-
-    val rmsValues = FloatArray(numFrames)
-
-    var squaredFrameSum = 0.0
-    var currentFrameIdx = 0
-
-    fun calculateFrameRms(nextFrameIdx: Int) {
-        rmsValues[currentFrameIdx] = sqrt(squaredFrameSum.toFloat())
-
-        // Advance to the next frame.
-        squaredFrameSum = 0.0
-        currentFrameIdx = nextFrameIdx
-    }
-
-    (0 until numSamples * channels step channels).forEach { sampleIdx ->
-        val channelSampleIdx = sampleIdx / channels
-        val frameIdx = (channelSampleIdx / frameStep).toInt()
-
-        if (currentFrameIdx != frameIdx) {
-            // Calculate RMS value for the previous frame.
-            calculateFrameRms(frameIdx)
-        }
-
-        val samplesInCurrentFrame = ceil((currentFrameIdx + 1) * frameStep) - ceil(currentFrameIdx * frameStep)
-        squaredFrameSum += (samples[sampleIdx] * samples[sampleIdx]) / samplesInCurrentFrame
-    }
-    // Calculate RMS value for the last frame.
-    calculateFrameRms(-1)
-
-//    smoothArray(rmsValues, 1.0f)
-    normalizeArray(rmsValues)
-
-    // Convert normalized result to a signed byte array.
-    return rmsValues.map { value -> normalizedFloatToByte(value) }.toByteArray()
-}
-
-/**
- * Normalizes the array's values to [0..1] range.
- */
-private fun normalizeArray(values: FloatArray) {
-    var maxValue = -Float.MAX_VALUE
-    var minValue = +Float.MAX_VALUE
-    values.forEach { value ->
-        if (value > maxValue) maxValue = value
-        if (value < minValue) minValue = value
-    }
-    val span = maxValue - minValue
-
-    if (span == 0f) {
-        values.indices.forEach { i -> values[i] = 0f }
-        return
-    }
-
-    values.indices.forEach { i -> values[i] = (values[i] - minValue) / span }
 }
 
 private fun smoothArray(values: FloatArray, neighborWeight: Float = 1f): FloatArray {
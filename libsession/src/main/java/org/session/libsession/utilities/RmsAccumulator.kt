@@ -0,0 +1,147 @@
+package org.session.libsession.utilities
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import kotlin.math.min
+import kotlin.math.sqrt
+
+/**
+ * Computes RMS values of 16 bit PCM audio for the first channel only, while it's being decoded.
+ *
+ * A typical RMS calculation algorithm is:
+ * 1. Square each sample
+ * 2. Sum the squared samples
+ * 3. Divide the sum of the squared samples by the number of samples
+ * 4. Take the square root of step 3., the mean of the squared samples
+ *
+ * The decoded chunks aren't kept. Squared samples are summed into at most [maxBuckets] buckets
+ * that each cover the same number of samples. If the audio turns out to be longer than expected,
+ * neighbouring buckets are merged and each bucket covers twice as many samples from then on,
+ * so the memory used doesn't depend on the length of the audio.
+ *
+ * @param channels The number of interleaved channels in the PCM data.
+ * @param expectedNumSamples The expected number of samples per channel, or 0 if it's unknown.
+ * @param maxBuckets Must be even, and limits the number of frames [calculateRms] can return.
+ */
+class RmsAccumulator @JvmOverloads constructor(
+        private val channels: Int,
+        expectedNumSamples: Int,
+        private val maxBuckets: Int = DEFAULT_MAX_BUCKETS
+) {
+
+    companion object {
+        const val DEFAULT_MAX_BUCKETS = 1024
+    }
+
+    private val squaredSums = DoubleArray(maxBuckets)
+    private val sampleCounts = IntArray(maxBuckets)
+    private var samplesPerBucket: Int
+    private var currentBucketIdx = 0
+    private var currentChannelIdx = 0
+
+    /** Number of samples per channel consumed so far. */
+    var numSamples: Int = 0
+        private set
+
+    init {
+        require(channels > 0) { "Invalid number of channels: $channels" }
+        require(maxBuckets >= 2 && maxBuckets % 2 == 0) { "Invalid number of buckets: $maxBuckets" }
+        samplesPerBucket = if (expectedNumSamples > 0) (expectedNumSamples - 1) / maxBuckets + 1 else 1
+    }
+
+    /**
+     * Consumes the remaining little endian samples of [pcm]. A chunk may end in the middle of
+     * a group of interleaved channels, the next one carries on from there.
+     */
+    fun add(pcm: ByteBuffer) {
+        val samples = pcm.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+        pcm.position(pcm.position() + samples.remaining() * 2)
+        add(samples)
+    }
+
+    /** Consumes the remaining interleaved samples of [samples]. */
+    fun add(samples: ShortBuffer) {
+        while (samples.hasRemaining()) {
+            val sample = samples.get()
+            if (currentChannelIdx == 0) {
+                addSample(sample)
+            }
+            currentChannelIdx = (currentChannelIdx + 1) % channels
+        }
+    }
+
+    private fun addSample(sample: Short) {
+        if (sampleCounts[currentBucketIdx] == samplesPerBucket) {
+            currentBucketIdx++
+            if (currentBucketIdx == maxBuckets) {
+                mergeBuckets()
+            }
+        }
+        squaredSums[currentBucketIdx] += (sample * sample).toDouble()
+        sampleCounts[currentBucketIdx]++
+        numSamples++
+    }
+
+    private fun mergeBuckets() {
+        val halfBuckets = maxBuckets / 2
+        for (i in 0 until halfBuckets) {
+            squaredSums[i] = squaredSums[2 * i] + squaredSums[2 * i + 1]
+            sampleCounts[i] = sampleCounts[2 * i] + sampleCounts[2 * i + 1]
+        }
+        squaredSums.fill(0.0, halfBuckets)
+        sampleCounts.fill(0, halfBuckets)
+        samplesPerBucket *= 2
+        currentBucketIdx = halfBuckets
+    }
+
+    /**
+     * @param maxFrames Defines amount of output RMS frames.
+     * If fewer buckets have been filled, the result array will match the number of buckets instead,
+     * which is the number of samples per channel for short audio.
+     *
+     * @return normalized RMS values as a signed byte array.
+     */
+    fun calculateRms(maxFrames: Int): ByteArray {
+        val numBuckets = if (numSamples > 0) currentBucketIdx + 1 else 0
+        val numFrames = min(maxFrames, numBuckets)
+        val rmsValues = FloatArray(numFrames)
+
+        for (frameIdx in 0 until numFrames) {
+            val startBucketIdx = (frameIdx.toLong() * numBuckets / numFrames).toInt()
+            val endBucketIdx = ((frameIdx + 1).toLong() * numBuckets / numFrames).toInt()
+            var squaredFrameSum = 0.0
+            var samplesInFrame = 0L
+            for (bucketIdx in startBucketIdx until endBucketIdx) {
+                squaredFrameSum += squaredSums[bucketIdx]
+                samplesInFrame += sampleCounts[bucketIdx]
+            }
+            rmsValues[frameIdx] = sqrt(squaredFrameSum / samplesInFrame).toFloat()
+        }
+
+        normalizeArray(rmsValues)
+
+        // Convert normalized result to a signed byte array.
+        return rmsValues.map { value -> normalizedFloatToByte(value) }.toByteArray()
+    }
+}
+
+/**
+ * Normalizes the array's values to [0..1] range.
+ */
+private fun normalizeArray(values: FloatArray) {
+    var maxValue = -Float.MAX_VALUE
+    var minValue = +Float.MAX_VALUE
+    values.forEach { value ->
+        if (value > maxValue) maxValue = value
+        if (value < minValue) minValue = value
+    }
+    val span = maxValue - minValue
+
+    if (span == 0f) {
+        values.indices.forEach { i -> values[i] = 0f }
+        return
+    }
+
+    values.indices.forEach { i -> values[i] = (values[i] - minValue) / span }
+}
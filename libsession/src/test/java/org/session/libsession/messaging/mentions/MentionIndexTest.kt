@@ -0,0 +1,70 @@
+package org.session.libsession.messaging.mentions
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class MentionIndexTest {
+
+    @Test
+    fun searchMatchesWordStarts() {
+        val index = MentionIndex()
+        index.put("a", "Alice Smith")
+        index.put("b", "Bob Alison")
+        index.put("c", "Carol")
+        val result = index.search("al")
+        assertEquals(listOf("a", "b"), result.map { it.publicKey })
+        assertTrue(index.search("ice").isEmpty())
+    }
+
+    @Test
+    fun searchIsCaseInsensitive() {
+        val index = MentionIndex()
+        index.put("a", "alice")
+        assertEquals(listOf("a"), index.search("ALI").map { it.publicKey })
+    }
+
+    @Test
+    fun searchOrdersByMatchPositionThenName() {
+        val index = MentionIndex()
+        index.put("a", "Zed Sam")
+        index.put("b", "Sammy")
+        index.put("c", "Sam")
+        assertEquals(listOf("c", "b", "a"), index.search("sa").map { it.publicKey })
+    }
+
+    @Test
+    fun searchMatchesSessionIDSuffixInOpenGroupNames() {
+        val index = MentionIndex()
+        index.put("a", "Alice (...1234abcd)")
+        assertEquals(listOf("a"), index.search("1234").map { it.publicKey })
+    }
+
+    @Test
+    fun shortQueryReturnsEveryoneAlphabetically() {
+        val index = MentionIndex()
+        index.put("b", "Bob")
+        index.put("a", "Alice")
+        assertEquals(listOf("a", "b"), index.search("").map { it.publicKey })
+        assertEquals(listOf("a", "b"), index.search("x").map { it.publicKey })
+    }
+
+    @Test
+    fun putReplacesPreviousName() {
+        val index = MentionIndex()
+        index.put("a", "Alice")
+        index.put("a", "Bea")
+        assertTrue(index.search("al").isEmpty())
+        assertEquals(listOf(Mention("a", "Bea")), index.search("be"))
+        assertEquals(1, index.size)
+    }
+
+    @Test
+    fun removeDropsCandidate() {
+        val index = MentionIndex()
+        index.put("a", "Alice")
+        index.remove("a")
+        assertTrue(index.search("al").isEmpty())
+        assertEquals(0, index.size)
+    }
+}
@@ -0,0 +1,121 @@
+package org.session.libsession.utilities
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import java.util.Random
+
+class RmsAccumulatorTest {
+
+    @Test
+    fun framesFollowAmplitude() {
+        // 32 frames of a square wave, each one louder than the one before.
+        val samples = squareWave(32, 1024) { frameIdx -> (frameIdx + 1) * 1000 }
+
+        val accumulator = RmsAccumulator(1, samples.size)
+        accumulator.add(ShortBuffer.wrap(samples))
+        val rms = accumulator.calculateRms(32)
+
+        assertEquals(32, rms.size)
+        assertEquals(normalizedFloatToByte(0f), rms.first())
+        assertEquals(normalizedFloatToByte(1f), rms.last())
+        for (i in 1 until rms.size) {
+            assertTrue(rms[i] > rms[i - 1])
+        }
+    }
+
+    @Test
+    fun chunkBoundariesDontMatter() {
+        val random = Random(42)
+        val samples = ShortArray(3 * 44100) { random.nextInt(1 shl 16).toShort() }
+        val pcm = toLittleEndianBytes(samples)
+
+        val whole = RmsAccumulator(3, samples.size / 3)
+        whole.add(ByteBuffer.wrap(pcm))
+
+        // Chunks of random whole samples, mostly ending in the middle of a group of channels.
+        val chunked = RmsAccumulator(3, samples.size / 3)
+        var offset = 0
+        while (offset < pcm.size) {
+            val length = minOf(2 * (1 + random.nextInt(2048)), pcm.size - offset)
+            val chunk = ByteBuffer.wrap(pcm, offset, length)
+            chunked.add(chunk)
+            assertFalse(chunk.hasRemaining())
+            offset += length
+        }
+
+        assertEquals(whole.numSamples, chunked.numSamples)
+        assertArrayEquals(whole.calculateRms(32), chunked.calculateRms(32))
+    }
+
+    @Test
+    fun onlyFirstChannelIsUsed() {
+        val random = Random(42)
+        val mono = squareWave(32, 256) { frameIdx -> (frameIdx % 4) * 5000 }
+        val stereo = ShortArray(mono.size * 2) { i ->
+            if (i % 2 == 0) mono[i / 2] else random.nextInt(1 shl 16).toShort()
+        }
+
+        val monoAccumulator = RmsAccumulator(1, mono.size)
+        monoAccumulator.add(ShortBuffer.wrap(mono))
+        val stereoAccumulator = RmsAccumulator(2, mono.size)
+        stereoAccumulator.add(ShortBuffer.wrap(stereo))
+
+        assertEquals(mono.size, stereoAccumulator.numSamples)
+        assertArrayEquals(monoAccumulator.calculateRms(32), stereoAccumulator.calculateRms(32))
+    }
+
+    @Test
+    fun audioLongerThanExpected() {
+        val samples = squareWave(32, 4096) { frameIdx -> (frameIdx * 7919) % 30000 }
+
+        val expected = RmsAccumulator(1, samples.size)
+        expected.add(ShortBuffer.wrap(samples))
+        val unknown = RmsAccumulator(1, 0)
+        unknown.add(ShortBuffer.wrap(samples))
+        val underestimated = RmsAccumulator(1, 100)
+        underestimated.add(ShortBuffer.wrap(samples))
+
+        val rms = expected.calculateRms(32)
+        assertEquals(32, rms.size)
+        assertArrayEquals(rms, unknown.calculateRms(32))
+        assertArrayEquals(rms, underestimated.calculateRms(32))
+    }
+
+    @Test
+    fun shortAudioHasOneFramePerSample() {
+        val samples = shortArrayOf(0, 100, -200, 300, -400)
+
+        val accumulator = RmsAccumulator(1, samples.size)
+        accumulator.add(ShortBuffer.wrap(samples))
+        val rms = accumulator.calculateRms(32)
+
+        assertEquals(samples.size, rms.size)
+        assertEquals(normalizedFloatToByte(0f), rms[0])
+        assertEquals(normalizedFloatToByte(0.25f), rms[1])
+        assertEquals(normalizedFloatToByte(1f), rms[4])
+    }
+
+    @Test
+    fun noSamples() {
+        val accumulator = RmsAccumulator(2, 0)
+
+        assertEquals(0, accumulator.numSamples)
+        assertEquals(0, accumulator.calculateRms(32).size)
+    }
+
+    private fun squareWave(frames: Int, samplesPerFrame: Int, amplitude: (Int) -> Int): ShortArray {
+        return ShortArray(frames * samplesPerFrame) { i ->
+            val value = amplitude(i / samplesPerFrame)
+            (if (i % 2 == 0) value else -value).toShort()
+        }
+    }
+
+    private fun toLittleEndianBytes(samples: ShortArray): ByteArray {
+        val buffer = ByteBuffer.allocate(samples.size * 2).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.asShortBuffer().put(samples)
+        return buffer.array()
+    }
+}